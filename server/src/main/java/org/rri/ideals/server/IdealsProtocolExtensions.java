@@ -0,0 +1,31 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.jsonrpc.services.JsonNotification;
+import org.eclipse.lsp4j.jsonrpc.services.JsonRequest;
+import org.eclipse.lsp4j.jsonrpc.services.JsonSegment;
+import org.rri.ideals.server.diagnostics.VisibleRangesParams;
+import org.rri.ideals.server.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server-side protocol extensions for inspecting the server itself and for hints from the client.
+ */
+@JsonSegment("ideals")
+public interface IdealsProtocolExtensions {
+
+  /**
+   * The ideals/metrics request returns latency summaries of the served requests,
+   * keyed by LSP method and then by request phase (queue-wait, edt-wait, execution, serialization, total).
+   */
+  @JsonRequest
+  CompletableFuture<Map<String, Map<String, LatencyHistogram.Summary>>> metrics();
+
+  /**
+   * The ideals/visibleRanges notification tells which ranges of an open document the client shows,
+   * so they are highlighted and their diagnostics published first.
+   */
+  @JsonNotification
+  void visibleRanges(VisibleRangesParams params);
+}
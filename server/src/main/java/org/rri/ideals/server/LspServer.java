@@ -19,17 +19,22 @@ import org.eclipse.lsp4j.services.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.diagnostics.DiagnosticsListener;
+import org.rri.ideals.server.diagnostics.VisibleRangesParams;
+import org.rri.ideals.server.diagnostics.VisibleRangesService;
 import org.rri.ideals.server.executecommand.WorkspaceExecuteCommandService;
+import org.rri.ideals.server.util.LatencyHistogram;
 import org.rri.ideals.server.util.Metrics;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-public class LspServer implements LanguageServer, LanguageClientAware, LspSession, DumbService.DumbModeListener {
+public class LspServer implements LanguageServer, LanguageClientAware, LspSession, IdealsProtocolExtensions, DumbService.DumbModeListener {
   private final static Logger LOG = Logger.getInstance(LspServer.class);
   private final MyTextDocumentService myTextDocumentService = new MyTextDocumentService(this);
   private final MyWorkspaceService myWorkspaceService = new MyWorkspaceService(this);
@@ -70,6 +75,7 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
 
       //   // todo how about multiple folders
       final var projectRoot = LspPath.fromLspUri(workspaceFolders.get(0).getUri());
+      final var pullDiagnostics = supportsPullDiagnostics(params.getCapabilities());
 
       Metrics.run(() -> "initialize: " + projectRoot, () -> {
 
@@ -79,16 +85,26 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
         assert client != null;
         LspContext.createContext(project, client, params.getCapabilities());
         project.getMessageBus().connect().subscribe(DumbService.DUMB_MODE, this);
-        final var listener = new DiagnosticsListener(project);
-        Disposer.register(disposable, listener);
+        // a client that pulls diagnostics would otherwise get them twice
+        if (!pullDiagnostics) {
+          final var listener = new DiagnosticsListener(project);
+          Disposer.register(disposable, listener);
+        }
 
         LOG.info("LSP was initialized. Project: " + project);
       });
 
-      return new InitializeResult(defaultServerCapabilities());
+      return new InitializeResult(defaultServerCapabilities(pullDiagnostics));
     });
   }
 
+  private static boolean supportsPullDiagnostics(@Nullable ClientCapabilities capabilities) {
+    return Optional.ofNullable(capabilities)
+        .map(ClientCapabilities::getTextDocument)
+        .map(TextDocumentClientCapabilities::getDiagnostic)
+        .isPresent();
+  }
+
   @NotNull
   private CompletionOptions defaultCompletionOptions() {
     var completionOptions = new CompletionOptions(true, List.of(".", "@"));
@@ -100,7 +116,7 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
   }
 
   @NotNull
-  private ServerCapabilities defaultServerCapabilities() {
+  private ServerCapabilities defaultServerCapabilities(boolean pullDiagnostics) {
 
     return MiscUtil.with(new ServerCapabilities(), it -> {
       it.setTextDocumentSync(MiscUtil.with(new TextDocumentSyncOptions(), (syncOptions) -> {
@@ -127,6 +143,12 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
       it.setReferencesProvider(true);
       it.setDocumentHighlightProvider(true);
       it.setDocumentSymbolProvider(true);
+      if (pullDiagnostics) {
+        it.setDiagnosticProvider(MiscUtil.with(new DiagnosticRegistrationOptions(), options -> {
+          options.setInterFileDependencies(true);
+          options.setWorkspaceDiagnostics(true);
+        }));
+      }
       it.setWorkspaceSymbolProvider(true);
 //      it.setCodeLensProvider(new CodeLensOptions(false));
       it.setDocumentFormattingProvider(true);
@@ -199,6 +221,16 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
     return myTextDocumentService;
   }
 
+  @Override
+  public CompletableFuture<Map<String, Map<String, LatencyHistogram.Summary>>> metrics() {
+    return CompletableFuture.completedFuture(Metrics.snapshot());
+  }
+
+  @Override
+  public void visibleRanges(@NotNull VisibleRangesParams params) {
+    getProject().getService(VisibleRangesService.class).update(params);
+  }
+
   @Override
   public void connect(@NotNull LanguageClient client) {
     assert client instanceof MyLanguageClient;
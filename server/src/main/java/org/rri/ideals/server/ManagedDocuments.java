@@ -16,21 +16,41 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.psi.PsiDocumentManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.eclipse.lsp4j.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.diagnostics.VisibleRangesService;
 import org.rri.ideals.server.util.MiscUtil;
 import org.rri.ideals.server.util.TextUtil;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service(Service.Level.PROJECT)
 final public class ManagedDocuments {
   private static final Logger LOG = Logger.getInstance(ManagedDocuments.class);
+  private static final long CHANGE_COALESCING_DELAY_MS = 30;
+  private static final long BACKGROUND_COMMIT_TIMEOUT_MS = 2000;
+  private static final int MAX_RECENT_EDITS = 16;
+
+  // when enabled, edits don't commit PSI synchronously: it's done by the platform's background commit machinery
+  private static final boolean ASYNC_PSI_COMMIT = Boolean.parseBoolean(System.getProperty("ideals.asyncPsiCommit", "true"));
+
   private final ConcurrentHashMap<LspPath, VersionedTextDocumentIdentifier> docs = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<LspPath, PendingChanges> pendingChanges = new ConcurrentHashMap<>();
+  // batches queued and not applied yet, including the ones taken off the queue and being applied on EDT
+  private final AtomicInteger unappliedBatches = new AtomicInteger();
+  private final ConcurrentHashMap<LspPath, Deque<DocumentEdit>> recentEdits = new ConcurrentHashMap<>();
 
   @NotNull
   private final Project project;
@@ -51,6 +71,10 @@ final public class ManagedDocuments {
     if (docs.containsKey(path)) {
       LOG.warn("URI was opened again without being closed, resetting: " + path);
       docs.remove(path);
+      if (pendingChanges.remove(path) != null) {
+        unappliedBatches.decrementAndGet();
+      }
+      recentEdits.remove(path);
     }
     LOG.debug("Handling textDocument/didOpen for: " + path);
 
@@ -73,7 +97,7 @@ final public class ManagedDocuments {
       if (doc.isWritable()) {
         // set IDEA's copy of the document to have the text with potential unsaved in-memory changes from the client
         doc.setText(normalizeText(textDocument.getText()));
-        PsiDocumentManager.getInstance(project).commitDocument(doc);
+        commitIfSynchronous(doc);
       }
 
       // In a unit test, active editors are not updated automatically
@@ -124,6 +148,53 @@ final public class ManagedDocuments {
       return;
     }
 
+    // Update the ground truth right away: further changes are validated against the queued state
+    docs.put(path, textDocument);
+
+    // Changes arriving within CHANGE_COALESCING_DELAY_MS are applied to the document as a single batch
+    pendingChanges.compute(path, (ignored, batch) -> {
+      if (batch == null) {
+        batch = new PendingChanges();
+        unappliedBatches.incrementAndGet();
+        AppExecutorUtil.getAppScheduledExecutorService().schedule(
+            this::flushPendingChanges, CHANGE_COALESCING_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+      batch.changes.addAll(contentChanges);
+      return batch;
+    });
+  }
+
+  /**
+   * Applies all queued content changes to IDEA documents.
+   * <p>
+   * Must be called before serving any request that relies on the latest text of managed documents.
+   * Returns once all the changes queued before the call are applied, including a batch that is being applied
+   * by a concurrent flush.
+   */
+  public void flushPendingChanges() {
+    if (unappliedBatches.get() == 0 || project.isDisposed())
+      return;
+
+    // batches are taken off the queue and applied on EDT only, so they are applied in the order they were queued,
+    // and a batch that a concurrent flush has taken off the queue is applied before this runs
+    ApplicationManager.getApplication().invokeAndWait(() -> {
+      for (var path : List.copyOf(pendingChanges.keySet())) {
+        final var batch = pendingChanges.remove(path);
+        if (batch != null) {
+          try {
+            applyPendingChanges(path, batch.changes);
+          } finally {
+            unappliedBatches.decrementAndGet();
+          }
+        }
+      }
+    });
+  }
+
+  private void applyPendingChanges(@NotNull LspPath path, @NotNull List<TextDocumentContentChangeEvent> contentChanges) {
+    if (project.isDisposed())
+      return;
+
     var file = MiscUtil.resolvePsiFile(project, path);
 
     if (file == null) {
@@ -132,7 +203,7 @@ final public class ManagedDocuments {
     }
 
     // all updates must go through CommandProcessor
-    ApplicationManager.getApplication().invokeAndWait(() -> CommandProcessor.getInstance().executeCommand(
+    CommandProcessor.getInstance().executeCommand(
         project, MiscUtil.asWriteAction(() -> {
           var doc = MiscUtil.getDocument(file);
 
@@ -156,18 +227,96 @@ final public class ManagedDocuments {
           }
 
           try {
-            applyContentChangeEventChanges(doc, contentChanges);
+            final var modificationStamp = doc.getModificationStamp();
+            final var region = applyContentChangeEventChanges(doc, contentChanges);
+            if (region != null) {
+              recordEdit(path, new DocumentEdit(modificationStamp, doc.getModificationStamp(), region));
+            }
           } catch (Exception e) {
             LOG.error("Error on documentChange", e);
           }
 
           // Commit changes to the PSI tree, but not to disk
-          PsiDocumentManager.getInstance(project).commitDocument(doc);
+          commitIfSynchronous(doc);
 
-          // Update the ground truth
-          docs.put(path, textDocument);
+        }), "LSP: UpdateDocument", "", UndoConfirmationPolicy.REQUEST_CONFIRMATION);
+  }
 
-        }), "LSP: UpdateDocument", "", UndoConfirmationPolicy.REQUEST_CONFIRMATION));
+  private void recordEdit(@NotNull LspPath path, @NotNull DocumentEdit edit) {
+    final var edits = recentEdits.computeIfAbsent(path, ignored -> new ArrayDeque<>());
+    synchronized (edits) {
+      edits.addLast(edit);
+      if (edits.size() > MAX_RECENT_EDITS) {
+        edits.removeFirst();
+      }
+    }
+  }
+
+  /**
+   * Tells what part of a document the client has changed between two of its modification stamps, which lets
+   * the results computed for the older text be updated rather than recomputed.
+   *
+   * @return the changed region, or {@code null} if it isn't known: the change is too old, or the document
+   * has been changed by other means than the client's edits in between
+   */
+  @Nullable
+  public TextUtil.ChangedRegion changedSince(@NotNull LspPath path, long modificationStamp, long currentStamp) {
+    final var edits = recentEdits.get(path);
+    if (edits == null) {
+      return null;
+    }
+    synchronized (edits) {
+      TextUtil.ChangedRegion region = null;
+      var stamp = modificationStamp;
+      for (var edit : edits) {
+        if (edit.stampBefore() != stamp) {
+          if (region != null) {
+            return null;
+          }
+          continue;
+        }
+        region = region == null ? edit.region() : region.then(edit.region());
+        stamp = edit.stampAfter();
+        if (stamp == currentStamp) {
+          return region;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Blocks until the PSI of the given document is in sync with its text.
+   * <p>
+   * Only this document is waited for; other uncommitted documents are left to the background commit.
+   */
+  public void waitForCommit(@NotNull Document doc) {
+    final var psiDocumentManager = PsiDocumentManager.getInstance(project);
+    if (psiDocumentManager.isCommitted(doc))
+      return;
+
+    final var app = ApplicationManager.getApplication();
+    if (app.isDispatchThread()) {
+      psiDocumentManager.commitDocument(doc);
+      return;
+    }
+
+    final var committed = new CompletableFuture<Void>();
+    app.invokeLater(() -> psiDocumentManager.performForCommittedDocument(doc, () -> committed.complete(null)));
+    try {
+      committed.get(BACKGROUND_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOG.debug("Background commit is taking too long, committing synchronously");
+      app.invokeAndWait(() -> psiDocumentManager.commitDocument(doc));
+    } catch (InterruptedException | ExecutionException e) {
+      throw MiscUtil.wrap(e);
+    }
+  }
+
+  private void commitIfSynchronous(@NotNull Document doc) {
+    if (!ASYNC_PSI_COMMIT) {
+      PsiDocumentManager.getInstance(project).commitDocument(doc);
+    }
   }
 
   public void syncDocument(@NotNull TextDocumentIdentifier textDocument) {
@@ -183,6 +332,8 @@ final public class ManagedDocuments {
       return;
     }
 
+    flushPendingChanges();
+
     ApplicationManager.getApplication().invokeAndWait(
         MiscUtil.asWriteAction(() -> MiscUtil.invokeWithPsiFileInReadAction(project, path, (psi) -> {
           var doc = MiscUtil.getDocument(psi);
@@ -205,6 +356,8 @@ final public class ManagedDocuments {
 
     var path = LspPath.fromLspUri(uri);
 
+    flushPendingChanges();
+
     final var virtualFile = path.findVirtualFile();
     if (virtualFile != null) {
       ApplicationManager.getApplication().invokeAndWait(() -> {
@@ -212,6 +365,8 @@ final public class ManagedDocuments {
       });
     }
 
+    project.getService(VisibleRangesService.class).forget(path);
+    recentEdits.remove(path);
     if (docs.remove(path) == null) {
       LOG.warn("Attempted to close document without opening it at: " + path);
     }
@@ -230,22 +385,47 @@ final public class ManagedDocuments {
     return uri.matches("^(file|jar|jrt):/.*");
   }
 
-  private void applyContentChangeEventChanges(@NotNull Document doc, @NotNull List<TextDocumentContentChangeEvent> contentChanges) {
-    contentChanges.forEach((it) -> applyChange(doc, it));
+  /**
+   * @return the region covering all the changes, or {@code null} if there are none
+   */
+  @Nullable
+  private TextUtil.ChangedRegion applyContentChangeEventChanges(@NotNull Document doc, @NotNull List<TextDocumentContentChangeEvent> contentChanges) {
+    TextUtil.ChangedRegion region = null;
+    for (var change : contentChanges) {
+      final var changed = applyChange(doc, change);
+      region = region == null ? changed : region.then(changed);
+    }
+    return region;
   }
 
-  private static void applyChange(@NotNull Document doc, TextDocumentContentChangeEvent change) {
+  @NotNull
+  private static TextUtil.ChangedRegion applyChange(@NotNull Document doc, TextDocumentContentChangeEvent change) {
     final var text = normalizeText(change.getText());
     if (change.getRange() == null) {
       // Change is the full insertText of the document
+      final var oldLength = doc.getTextLength();
       doc.setText(text);
+      return new TextUtil.ChangedRegion(0, oldLength, doc.getTextLength());
     } else {
       var textRange = TextUtil.toTextRange(doc, change.getRange());
 
       doc.replaceString(textRange.getStartOffset(), textRange.getEndOffset(), text);
+      return new TextUtil.ChangedRegion(textRange.getStartOffset(), textRange.getEndOffset(),
+          textRange.getStartOffset() + text.length());
     }
   }
 
+  /**
+   * Changes applied to a document at once, with its modification stamps before and after them.
+   */
+  private record DocumentEdit(long stampBefore, long stampAfter, @NotNull TextUtil.ChangedRegion region) {
+  }
+
+  private static final class PendingChanges {
+    @NotNull
+    private final List<TextDocumentContentChangeEvent> changes = new ArrayList<>();
+  }
+
   @NotNull
   private static String normalizeText(@NotNull String text) {
     return text.replace("\r\n", "\n");
@@ -4,7 +4,6 @@ import com.google.gson.GsonBuilder;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.util.concurrency.AppExecutorUtil;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
@@ -13,6 +12,7 @@ import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.codeactions.ActionData;
 import org.rri.ideals.server.codeactions.CodeActionService;
 import org.rri.ideals.server.completions.CompletionService;
+import org.rri.ideals.server.diagnostics.DiagnosticsService;
 import org.rri.ideals.server.extensions.ClassFileContentsCommand;
 import org.rri.ideals.server.extensions.Runnable;
 import org.rri.ideals.server.extensions.RunnablesCommand;
@@ -25,6 +25,7 @@ import org.rri.ideals.server.signature.SignatureHelpService;
 import org.rri.ideals.server.symbol.DocumentSymbolService;
 import org.rri.ideals.server.util.AsyncExecutor;
 import org.rri.ideals.server.util.Metrics;
+import org.rri.ideals.server.util.RequestScheduler;
 
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -100,7 +101,7 @@ public class MyTextDocumentService implements TextDocumentService, ExperimentalP
 
   @Override
   public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
-    return new FindUsagesCommand()
+    return new FindUsagesCommand(params.getPartialResultToken(), params.getWorkDoneToken())
         .runAsync(session.getProject(), params.getTextDocument(), params.getPosition());
   }
 
@@ -118,17 +119,45 @@ public class MyTextDocumentService implements TextDocumentService, ExperimentalP
       return CompletableFuture.completedFuture(List.of());
     }
     final var client = AsyncExecutor.<List<Either<SymbolInformation, DocumentSymbol>>>builder()
-        .cancellable(true)
         .executorContext(session.getProject(), uri, null)
+        .editorRequired(false)
+        .priority(RequestScheduler.Priority.BACKGROUND)
         .build();
 
     return client.compute((executorContext -> documentSymbols().computeDocumentSymbols(executorContext)));
   }
 
+  @Override
+  public CompletableFuture<DocumentDiagnosticReport> diagnostic(DocumentDiagnosticParams params) {
+    final var client = AsyncExecutor.<CompletableFuture<DocumentDiagnosticReport>>builder()
+        .executorContext(session.getProject(), params.getTextDocument().getUri(), null)
+        .editorRequired(false)
+        .priority(RequestScheduler.Priority.BACKGROUND)
+        .supersedable("diagnostic")
+        .build();
+
+    // the report of an open file is completed once the daemon has finished with it, outside the scheduler
+    final var scheduled = client.compute(executorContext ->
+        diagnostics().computeDocumentReport(executorContext, params.getPreviousResultId()));
+    final var result = scheduled.thenCompose(report -> report != null ? report : CompletableFuture.completedFuture(null));
+    result.whenComplete((ignored, error) -> {
+      if (result.isCancelled()) {
+        scheduled.cancel(false);
+        scheduled.thenAccept(report -> {
+          if (report != null) {
+            report.cancel(false);
+          }
+        });
+      }
+    });
+    return result;
+  }
+
   @Override
   public CompletableFuture<List<Either<Command, CodeAction>>> codeAction(CodeActionParams params) {
     final var client = AsyncExecutor.<List<Either<Command, CodeAction>>>builder()
         .executorContext(session.getProject(), params.getTextDocument().getUri(), params.getRange().getStart())
+        .priority(RequestScheduler.Priority.BACKGROUND)
         .build();
 
     return client.compute(executorContext ->
@@ -164,6 +193,11 @@ public class MyTextDocumentService implements TextDocumentService, ExperimentalP
     return session.getProject().getService(CodeActionService.class);
   }
 
+  @NotNull
+  private DiagnosticsService diagnostics() {
+    return session.getProject().getService(DiagnosticsService.class);
+  }
+
   @NotNull
   private CompletionService completions() {
     return session.getProject().getService(CompletionService.class);
@@ -183,7 +217,7 @@ public class MyTextDocumentService implements TextDocumentService, ExperimentalP
   @NotNull
   public CompletableFuture<CompletionItem> resolveCompletionItem(@NotNull CompletionItem unresolved) {
     return CompletableFutures.computeAsync(
-        AppExecutorUtil.getAppExecutorService(),
+        RequestScheduler.getInstance().executor(RequestScheduler.Priority.INTERACTIVE),
         (cancelChecker) ->
             completions().resolveCompletion(unresolved, cancelChecker)
     );
@@ -193,19 +227,21 @@ public class MyTextDocumentService implements TextDocumentService, ExperimentalP
   @NotNull
   public CompletableFuture<Either<List<CompletionItem>, CompletionList>> completion(@NotNull CompletionParams params) {
     final var client = AsyncExecutor.<Either<List<CompletionItem>, CompletionList>>builder()
-        .cancellable(true)
         .executorContext(session.getProject(), params.getTextDocument().getUri(), params.getPosition())
+        .priority(RequestScheduler.Priority.INTERACTIVE)
+        .supersedable("completion")
         .build();
 
-    return client.compute((executorContext -> Either.forLeft(completions().computeCompletions(executorContext))));
+    return client.compute((executorContext -> Either.forRight(completions().computeCompletions(executorContext, params.getPartialResultToken()))));
   }
 
   @Override
   @NotNull
   public CompletableFuture<SignatureHelp> signatureHelp(SignatureHelpParams params) {
     final var client = AsyncExecutor.<SignatureHelp>builder()
-        .cancellable(true)
         .executorContext(session.getProject(), params.getTextDocument().getUri(), params.getPosition())
+        .priority(RequestScheduler.Priority.INTERACTIVE)
+        .supersedable("signatureHelp")
         .build();
     final var signature = signature();
 
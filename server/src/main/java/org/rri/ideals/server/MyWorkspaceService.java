@@ -6,6 +6,7 @@ import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.diagnostics.DiagnosticsService;
 import org.rri.ideals.server.executecommand.WorkspaceExecuteCommandService;
 import org.rri.ideals.server.symbol.WorkspaceSymbolService;
 
@@ -47,6 +48,11 @@ public class MyWorkspaceService implements WorkspaceService {
         .executeCommand(params.getCommand(), params.getArguments(), session.getProject());
   }
 
+  @Override
+  public CompletableFuture<WorkspaceDiagnosticReport> diagnostic(WorkspaceDiagnosticParams params) {
+    return session.getProject().getService(DiagnosticsService.class).computeWorkspaceReport(params);
+  }
+
   private @NotNull WorkspaceSymbolService workspaceSymbol() {
     return session.getProject().getService(WorkspaceSymbolService.class);
   }
@@ -54,6 +60,6 @@ public class MyWorkspaceService implements WorkspaceService {
   @SuppressWarnings("deprecation")
   @Override
   public CompletableFuture<Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>> symbol(WorkspaceSymbolParams params) {
-    return workspaceSymbol().runSearch(params.getQuery());
+    return workspaceSymbol().runSearch(params.getQuery(), params.getPartialResultToken());
   }
 }
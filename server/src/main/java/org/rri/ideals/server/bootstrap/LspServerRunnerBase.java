@@ -51,7 +51,7 @@ public abstract class LspServerRunnerBase {
   }
 
   private CompletableFuture<Void> connectServer(@NotNull Connection connection) {
-    Function<MessageConsumer, MessageConsumer> wrapper = consumer -> consumer;
+    Function<MessageConsumer, MessageConsumer> wrapper = new RequestMetricsWrapper();
 
     var languageServer = new LspServer();
     var launcher = Launcher.createIoLauncher(
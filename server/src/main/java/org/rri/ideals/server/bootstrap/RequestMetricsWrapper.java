@@ -0,0 +1,58 @@
+package org.rri.ideals.server.bootstrap;
+
+import org.eclipse.lsp4j.jsonrpc.MessageConsumer;
+import org.eclipse.lsp4j.jsonrpc.json.StreamMessageConsumer;
+import org.eclipse.lsp4j.jsonrpc.messages.RequestMessage;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseMessage;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Wraps both the incoming and the outgoing message streams to collect per-method request latencies.
+ * <p>
+ * Incoming requests are dispatched with {@link Metrics#runForRequest}, so the executors they spawn
+ * report their phases under the request's method.
+ */
+class RequestMetricsWrapper implements Function<MessageConsumer, MessageConsumer> {
+  private final ConcurrentHashMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+
+  private record PendingRequest(@NotNull String method, long startNanos) {
+  }
+
+  @Override
+  public MessageConsumer apply(MessageConsumer consumer) {
+    if (consumer instanceof StreamMessageConsumer) {
+      return message -> {
+        if (!(message instanceof ResponseMessage response) || response.getId() == null) {
+          consumer.consume(message);
+          return;
+        }
+        final var request = pendingRequests.remove(response.getId());
+        if (request == null) {
+          consumer.consume(message);
+          return;
+        }
+        final var start = System.nanoTime();
+        try {
+          consumer.consume(message);
+        } finally {
+          final var end = System.nanoTime();
+          Metrics.record(request.method(), Metrics.Phase.SERIALIZATION, end - start);
+          Metrics.record(request.method(), Metrics.Phase.TOTAL, end - request.startNanos());
+        }
+      };
+    }
+
+    return message -> {
+      if (message instanceof RequestMessage request && request.getId() != null) {
+        pendingRequests.put(request.getId(), new PendingRequest(request.getMethod(), System.nanoTime()));
+        Metrics.runForRequest(request.getMethod(), () -> consumer.consume(message));
+      } else {
+        consumer.consume(message);
+      }
+    };
+  }
+}
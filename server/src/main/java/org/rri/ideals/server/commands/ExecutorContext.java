@@ -1,11 +1,15 @@
 package org.rri.ideals.server.commands;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.psi.PsiFile;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.function.Supplier;
+
 final public class ExecutorContext {
 
   @NotNull
@@ -13,11 +17,35 @@ final public class ExecutorContext {
   @Nullable
   private final CancelChecker cancelToken;
   @NotNull
-  private final Editor editor;
+  private final Document document;
+  private final int offset;
+  @NotNull
+  private final Supplier<@Nullable Editor> editorSupplier;
+  @Nullable
+  private volatile Editor editor;
 
   public ExecutorContext(@NotNull PsiFile file, @NotNull Editor editor, @Nullable CancelChecker cancelToken) {
     this.file = file;
     this.editor = editor;
+    this.editorSupplier = () -> editor;
+    this.document = editor.getDocument();
+    this.offset = editor.getCaretModel().getOffset();
+    this.cancelToken = cancelToken;
+  }
+
+  /**
+   * Creates a context without an editor. The editor is requested from {@code editorSupplier} on the first
+   * {@link #getEditor()} call and is expected to have its caret at {@code offset}.
+   */
+  public ExecutorContext(@NotNull PsiFile file,
+                         @NotNull Document document,
+                         int offset,
+                         @NotNull Supplier<@Nullable Editor> editorSupplier,
+                         @Nullable CancelChecker cancelToken) {
+    this.file = file;
+    this.document = document;
+    this.offset = offset;
+    this.editorSupplier = editorSupplier;
     this.cancelToken = cancelToken;
   }
 
@@ -29,7 +57,39 @@ final public class ExecutorContext {
     return cancelToken;
   }
 
+  public @NotNull Document getDocument() {
+    return document;
+  }
+
+  /**
+   * @return the offset of the request's position in the document
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Materialises the editor on first use. Doing that requires EDT, so commands executed in a read action
+   * on a pooled thread must ask for the editor up front (see {@link LspCommand#isEditorRequired()}).
+   */
   public @NotNull Editor getEditor() {
-    return editor;
+    var result = editor;
+    if (result == null) {
+      final var application = ApplicationManager.getApplication();
+      if (!application.isDispatchThread() && application.isReadAccessAllowed()) {
+        throw new IllegalStateException("An editor can't be created inside a read action");
+      }
+      synchronized (this) {
+        result = editor;
+        if (result == null) {
+          result = editorSupplier.get();
+          if (result == null) {
+            throw new IllegalStateException("No editor for " + file.getVirtualFile());
+          }
+          editor = result;
+        }
+      }
+    }
+    return result;
   }
 }
@@ -7,6 +7,7 @@ import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.util.AsyncExecutor;
+import org.rri.ideals.server.util.RequestScheduler;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
@@ -17,14 +18,46 @@ public abstract class LspCommand<R> {
   @NotNull
   protected abstract Supplier<@NotNull String> getMessageSupplier();
 
-  protected abstract boolean isCancellable();
-
   protected abstract R execute(@NotNull ExecutorContext ctx);
 
+  /**
+   * Commands run in a non-blocking read action on a pooled thread by default, so independent requests are served
+   * in parallel and get restarted instead of blocking a write action.
+   * Override to return {@code true} only for commands that touch UI components or run write actions.
+   */
   protected boolean isRunInEdt() {
+    return false;
+  }
+
+  /**
+   * Override to return {@code false} for commands that take read actions by themselves, e.g. long searches
+   * reporting partial results, which a restarted read action would report again, or commands with a step
+   * that has to be done on EDT, like creating an editor.
+   */
+  protected boolean isRunInReadAction() {
+    return !isRunInEdt();
+  }
+
+  /**
+   * Override to return {@code false} for commands that only need the file and {@link ExecutorContext#getOffset()},
+   * so they are served without a round-trip to EDT for opening the editor and positioning its caret.
+   */
+  protected boolean isEditorRequired() {
     return true;
   }
 
+  protected @NotNull RequestScheduler.Priority getPriority() {
+    return RequestScheduler.Priority.NAVIGATIONAL;
+  }
+
+  /**
+   * Override to return {@code true} if a newer call of the command for the same document makes
+   * the result of the older one useless, e.g. when it depends on the caret position only.
+   */
+  protected boolean isSupersedable() {
+    return false;
+  }
+
   public @NotNull CompletableFuture<@Nullable R> runAsync(@NotNull Project project, @NotNull TextDocumentIdentifier textDocumentIdentifier) {
     return runAsync(project, textDocumentIdentifier.getUri(), null);
   }
@@ -35,11 +68,16 @@ public abstract class LspCommand<R> {
 
   public @NotNull CompletableFuture<@Nullable R> runAsync(@NotNull Project project, @NotNull String uri, @Nullable Position position) {
     LOG.info(getMessageSupplier().get());
-    var client = AsyncExecutor.<R>builder()
+    var builder = AsyncExecutor.<R>builder()
             .executorContext(project, uri, position)
-            .cancellable(isCancellable())
             .runInEDT(isRunInEdt())
-            .build();
+            .runInReadAction(isRunInReadAction())
+            .editorRequired(isEditorRequired())
+            .priority(getPriority());
+    if (isSupersedable()) {
+      builder.supersedable(getClass().getName());
+    }
+    var client = builder.build();
 
     return client.compute(this::execute);
   }
@@ -0,0 +1,169 @@
+package org.rri.ideals.server.completions;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the results of recent completions, so items of any of them can be resolved and typing more characters
+ * re-filters the latest completion in the same file, whatever other completions have happened in between
+ * (in another file, in a split editor or from another client).
+ * <p>
+ * Completions are evicted least recently used first once there are more than {@link #MAX_ENTRIES} of them or their
+ * estimated size exceeds {@link #MAX_WEIGHT}, and after not being used for {@link #MAX_IDLE_NANOS}.
+ * The latest completion is always kept. The listener given to the store is told the versions it evicts, so whatever
+ * else is kept for them, like a resolve session, can be released; that may be counted in the weight as well.
+ */
+final class CompletionDataStore {
+  static final int MAX_ENTRIES = Integer.getInteger("ideals.completion.maxSessions", 16);
+  static final long MAX_WEIGHT = Long.getLong("ideals.completion.maxCacheBytes", 64L * 1024 * 1024);
+  private static final long MAX_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private static final class Entry {
+    @NotNull
+    private final CompletionService.CompletionData data;
+    private long weight;
+    private long lastAccess;
+
+    private Entry(@NotNull CompletionService.CompletionData data, long lastAccess) {
+      this.data = data;
+      this.weight = data.estimatedSize();
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  private final AtomicInteger nextVersion = new AtomicInteger(1);
+  // access order: the least recently used entry comes first
+  private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  @NotNull
+  private final LongSupplier clock;
+  @NotNull
+  private final IntConsumer evictionListener;
+  private long weight;
+  private int latestVersion;
+
+  CompletionDataStore(@NotNull IntConsumer evictionListener) {
+    this(System::nanoTime, evictionListener);
+  }
+
+  /**
+   * @param evictionListener is called with the version of each evicted completion, while the store is locked
+   */
+  CompletionDataStore(@NotNull LongSupplier clock, @NotNull IntConsumer evictionListener) {
+    this.clock = clock;
+    this.evictionListener = evictionListener;
+  }
+
+  /**
+   * @return a version no other completion data of this store has
+   */
+  int nextVersion() {
+    return nextVersion.getAndIncrement();
+  }
+
+  @Nullable
+  synchronized CompletionService.CompletionData get(int version) {
+    final var entry = entries.get(version);
+    if (entry == null) {
+      return null;
+    }
+    entry.lastAccess = clock.getAsLong();
+    return entry.data;
+  }
+
+  /**
+   * @return whether the data of the version is still kept; unlike {@link #get(int)}, doesn't count as a use
+   */
+  synchronized boolean contains(int version) {
+    return entries.containsKey(version);
+  }
+
+  /**
+   * @return the completion data computed last for the file
+   */
+  @Nullable
+  synchronized CompletionService.CompletionData getLatest(@NotNull VirtualFile file) {
+    Entry latest = null;
+    for (var entry : entries.values()) {
+      if (file.equals(entry.data.file()) && (latest == null || entry.data.version() > latest.data.version())) {
+        latest = entry;
+      }
+    }
+    return latest != null ? latest.data : null;
+  }
+
+  synchronized void add(@NotNull CompletionService.CompletionData data) {
+    final var entry = new Entry(data, clock.getAsLong());
+    final var replaced = entries.put(data.version(), entry);
+    if (replaced != null) {
+      weight -= replaced.weight;
+    }
+    weight += entry.weight;
+    latestVersion = Math.max(latestVersion, data.version());
+    evict();
+  }
+
+  /**
+   * Adds data derived from {@code previous} unless another completion for the same file has been added since.
+   *
+   * @return false if the data isn't added
+   */
+  synchronized boolean addIfLatest(@NotNull CompletionService.CompletionData previous,
+                                   @NotNull CompletionService.CompletionData data) {
+    final var file = previous.file();
+    if (file == null || getLatest(file) != previous) {
+      return false;
+    }
+    add(data);
+    return true;
+  }
+
+  /**
+   * Counts the size of something else kept for the completion in the weight of its data.
+   *
+   * @return false if the data of the version isn't kept anymore
+   */
+  synchronized boolean addWeight(int version, long delta) {
+    final var entry = entries.get(version);
+    if (entry == null) {
+      return false;
+    }
+    entry.weight += delta;
+    weight += delta;
+    evict();
+    return true;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated size of the kept completion data
+   */
+  synchronized long weight() {
+    return weight;
+  }
+
+  private void evict() {
+    final var now = clock.getAsLong();
+    final var iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      final var entry = iterator.next();
+      if (entry.data.version() == latestVersion) {
+        continue;
+      }
+      if (entries.size() > MAX_ENTRIES || weight > MAX_WEIGHT || now - entry.lastAccess > MAX_IDLE_NANOS) {
+        iterator.remove();
+        weight -= entry.weight;
+        evictionListener.accept(entry.data.version());
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.rri.ideals.server.completions;
+
+import com.intellij.codeInsight.template.impl.TemplateManagerImpl;
+import com.intellij.lang.Language;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import org.eclipse.lsp4j.Position;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.util.EditorUtil;
+import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.TextUtil;
+
+/**
+ * A copy of the file the completion was called in, with an editor, shared by the resolves of the completion's items.
+ * <p>
+ * Clients resolve each item the user selects in the list, and parsing the copy and creating the editor used to
+ * dominate the cost of a resolve. After a resolve, {@link #restore()} puts back the lines the insert handler
+ * has changed, so the next one starts from the text the completion was called for.
+ * <p>
+ * Must be used on EDT.
+ */
+final class CompletionResolveSession implements Disposable {
+  @NotNull
+  private final Project project;
+  private final int version;
+  @NotNull
+  private final CharSequence fileText;
+  @NotNull
+  private final Position position;
+  @NotNull
+  private final PsiFile copy;
+  @NotNull
+  private final Document document;
+  // the text the completion was called for; never modified
+  @NotNull
+  private final Document originalDocument;
+  @NotNull
+  private final Editor editor;
+
+  CompletionResolveSession(@NotNull Project project,
+                           int version,
+                           @NotNull CharSequence fileText,
+                           @NotNull Language language,
+                           @NotNull Position position) {
+    this.project = project;
+    this.version = version;
+    this.fileText = fileText;
+    this.position = position;
+    copy = PsiFileFactory.getInstance(project).createFileFromText("copy", language, fileText, true, true, true);
+    final var copyDocument = MiscUtil.getDocument(copy);
+    assert copyDocument != null;
+    document = copyDocument;
+    originalDocument = EditorFactory.getInstance().createDocument(fileText);
+    editor = EditorUtil.createEditor(this, copy, position);
+  }
+
+  /**
+   * @return a rough estimate of the memory a session for the text keeps alive: the two documents, the PSI of the copy
+   * and the editor's caches
+   */
+  static long estimatedSize(@NotNull CharSequence fileText) {
+    return 32L * fileText.length();
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  @NotNull
+  PsiFile getCopy() {
+    return copy;
+  }
+
+  @NotNull
+  Editor getEditor() {
+    return editor;
+  }
+
+  @NotNull
+  Document getOriginalDocument() {
+    return originalDocument;
+  }
+
+  /**
+   * Replaces back the changed lines of the copy and moves the caret to the completion position.
+   *
+   * @return false if the copy can't be reused
+   */
+  boolean restore() {
+    final var templateState = TemplateManagerImpl.getTemplateState(editor);
+    if (templateState != null) {
+      WriteCommandAction.runWriteCommandAction(project, null, null, () -> templateState.gotoEnd(true));
+    }
+
+    final var psiDocumentManager = PsiDocumentManager.getInstance(project);
+    psiDocumentManager.doPostponedOperationsAndUnblockDocument(document);
+    final var region = TextUtil.changedLines(fileText, document.getImmutableCharSequence());
+    if (region.start() != region.newEnd() || region.start() != region.oldEnd()) {
+      WriteCommandAction.runWriteCommandAction(project, null, null,
+          () -> document.replaceString(region.start(), region.newEnd(),
+              fileText.subSequence(region.start(), region.oldEnd())), copy);
+    }
+    psiDocumentManager.commitDocument(document);
+    editor.getCaretModel().moveToLogicalPosition(new LogicalPosition(position.getLine(), position.getCharacter()));
+
+    return copy.isValid() && StringUtil.equals(document.getImmutableCharSequence(), fileText);
+  }
+
+  @Override
+  public void dispose() {
+  }
+}
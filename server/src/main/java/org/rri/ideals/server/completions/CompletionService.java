@@ -2,6 +2,7 @@ package org.rri.ideals.server.completions;
 
 import com.google.gson.Gson;
 import com.intellij.codeInsight.completion.CompletionUtil;
+import com.intellij.codeInsight.completion.PrefixMatcher;
 import com.intellij.codeInsight.lookup.LookupElement;
 import com.intellij.codeInsight.lookup.LookupElementPresentation;
 import com.intellij.codeInsight.lookup.LookupManager;
@@ -9,9 +10,9 @@ import com.intellij.codeInsight.lookup.impl.LookupImpl;
 import com.intellij.codeInsight.template.impl.TemplateManagerImpl;
 import com.intellij.codeInsight.template.impl.TemplateState;
 import com.intellij.codeInsight.template.impl.Variable;
-import com.intellij.icons.AllIcons;
 import com.intellij.lang.Language;
 import com.intellij.lang.documentation.ide.IdeDocumentationTargetProvider;
+import com.intellij.model.Pointer;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ReadAction;
@@ -20,39 +21,41 @@ import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.platform.backend.documentation.DocumentationTarget;
-import com.intellij.platform.backend.documentation.impl.ImplKt;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiFileFactory;
 import com.intellij.ui.DeferredIcon;
-import com.intellij.ui.IconManager;
-import com.intellij.ui.PlatformIcons;
 import com.intellij.util.SlowOperations;
-import io.github.furstenheim.CopyDown;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.commands.ExecutorContext;
-import org.rri.ideals.server.completions.util.IconUtil;
+import org.rri.ideals.server.completions.util.CompletionItemKindTable;
 import org.rri.ideals.server.completions.util.TextEditRearranger;
 import org.rri.ideals.server.completions.util.TextEditWithOffsets;
-import org.rri.ideals.server.util.EditorUtil;
+import org.rri.ideals.server.hover.DocumentationCache;
 import org.rri.ideals.server.util.LspProgressIndicator;
 import org.rri.ideals.server.util.MiscUtil;
 import org.rri.ideals.server.util.TextUtil;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service(Service.Level.PROJECT)
@@ -61,7 +64,12 @@ final public class CompletionService implements Disposable {
   @NotNull
   private final Project project;
 
-  private final AtomicReference<CompletionData> cachedDataRef = new AtomicReference<>(CompletionData.EMPTY_DATA);
+  private static final int MAX_ITEMS = Integer.getInteger("ideals.completion.maxItems", 1000);
+  private static final int PARTIAL_RESULT_PAGE_SIZE = 100;
+
+  private final CompletionDataStore completionDataStore = new CompletionDataStore(this::disposeResolveSession);
+  // the file copies the items of the cached completions are resolved in, by completion data version; accessed on EDT only
+  private final Map<Integer, CompletionResolveSession> resolveSessions = new HashMap<>();
 
   public CompletionService(@NotNull Project project) {
     this.project = project;
@@ -72,13 +80,42 @@ final public class CompletionService implements Disposable {
   }
 
   @NotNull
-  public List<CompletionItem> computeCompletions(@NotNull ExecutorContext executorContext) {
+  public CompletionList computeCompletions(@NotNull ExecutorContext executorContext) {
+    return computeCompletions(executorContext, null);
+  }
+
+  /**
+   * The list is marked incomplete while the identifier prefix is empty: IDEA suggests more items, e.g. not imported
+   * classes, once there is a prefix. Otherwise, the client filters the list by itself, and requests that just extend
+   * the prefix are served by re-filtering the cached lookup elements instead of running the completion again.
+   * <p>
+   * At most {@link #MAX_ITEMS} of the most relevant items are returned; the list is incomplete if some were dropped.
+   * A longer prefix is still served from the cache unless one of the dropped items matches it.
+   * With a partial result token the items are reported in pages via {@code $/progress} as soon as they are converted.
+   */
+  @NotNull
+  public CompletionList computeCompletions(@NotNull ExecutorContext executorContext,
+                                           @Nullable Either<String, Integer> partialResultToken) {
     LOG.info("start completion");
     final var cancelChecker = executorContext.getCancelToken();
     assert cancelChecker != null;
+    // icons are loaded right away until all the items are converted, their kinds are told by the icons
+    final var iconLoading = Disposer.newDisposable();
     try {
-      return doComputeCompletions(executorContext.getPsiFile(), executorContext.getEditor(), cancelChecker);
+      Registry.get("psi.deferIconLoading").setValue(false, iconLoading);
+      var data = completeFromCache(executorContext.getPsiFile(), executorContext.getDocument(),
+          executorContext.getOffset());
+      if (data != null) {
+        LOG.debug("completion is served from cache");
+      } else {
+        data = doComputeCompletions(executorContext.getPsiFile(), executorContext.getEditor(), cancelChecker);
+      }
+      if (data == null) {
+        return new CompletionList(true, List.of());
+      }
+      return toCompletionList(data, executorContext.getDocument(), cancelChecker, partialResultToken);
     } finally {
+      Disposer.dispose(iconLoading);
       cancelChecker.checkCanceled();
     }
   }
@@ -109,65 +146,56 @@ final public class CompletionService implements Disposable {
                                    @NotNull CompletionItem unresolved, @NotNull CancelChecker cancelChecker) {
 
     Ref<Document> copyThatCalledCompletionDocRef = new Ref<>();
-    Ref<Document> copyToInsertDocRef = new Ref<>();
+    Ref<List<TextEdit>> diffRef = new Ref<>();
     Ref<TextRange> snippetBoundsRef = new Ref<>();
+    Ref<Pointer<? extends DocumentationTarget>> documentationTargetRef = new Ref<>();
 
-    ArrayList<TextEdit> diff;
-    TextRange snippetBounds;
-    Document copyToInsertDoc;
-    Document copyThatCalledCompletionDoc;
-    var disposable = Disposer.newDisposable();
-    var cachedData = cachedDataRef.get();
-    try {
-      if (completionDataVersion != cachedData.version) {
-        return unresolved;
-      }
+    var cachedData = completionDataStore.get(completionDataVersion);
+    if (cachedData == null) {
+      return unresolved;
+    }
 
-      prepareCompletionAndHandleInsert(
-          cachedData,
-          lookupElementIndex,
-          cancelChecker,
-          copyThatCalledCompletionDocRef,
-          copyToInsertDocRef,
-          snippetBoundsRef,
-          disposable, unresolved);
-
-      copyToInsertDoc = copyToInsertDocRef.get();
-      copyThatCalledCompletionDoc = copyThatCalledCompletionDocRef.get();
-      assert copyToInsertDoc != null;
-      assert copyThatCalledCompletionDoc != null;
-
-      snippetBounds = snippetBoundsRef.get();
-      diff = new ArrayList<>(TextUtil.textEditFromDocs(copyThatCalledCompletionDoc, copyToInsertDoc));
-
-      if (diff.isEmpty()) {
-        return unresolved;
-      }
+    prepareCompletionAndHandleInsert(
+        cachedData,
+        lookupElementIndex,
+        cancelChecker,
+        copyThatCalledCompletionDocRef,
+        diffRef,
+        snippetBoundsRef,
+        documentationTargetRef);
+
+    // rendered outside EDT; the target points into the copy, which has been restored to the original text by now
+    if (!documentationTargetRef.isNull()) {
+      unresolved.setDocumentation(toLspDocumentation(documentationTargetRef.get()));
+    }
 
-      var unresolvedTextEdit = unresolved.getTextEdit().getLeft();
+    var copyThatCalledCompletionDoc = copyThatCalledCompletionDocRef.get();
+    var diff = new ArrayList<>(diffRef.get());
+    var snippetBounds = snippetBoundsRef.get();
 
-      var replaceElementStartOffset =
-          MiscUtil.positionToOffset(copyThatCalledCompletionDoc, unresolvedTextEdit.getRange().getStart());
-      var replaceElementEndOffset =
-          MiscUtil.positionToOffset(copyThatCalledCompletionDoc, unresolvedTextEdit.getRange().getEnd());
+    if (diff.isEmpty()) {
+      return unresolved;
+    }
 
-      var newTextAndAdditionalEdits =
-          TextEditRearranger.findOverlappingTextEditsInRangeFromMainTextEditToSnippetsAndMergeThem(
-              toListOfEditsWithOffsets(diff, copyThatCalledCompletionDoc),
-              replaceElementStartOffset, replaceElementEndOffset,
-              copyThatCalledCompletionDoc.getText(), snippetBounds);
+    var unresolvedTextEdit = unresolved.getTextEdit().getLeft();
 
-      unresolved.setAdditionalTextEdits(
-          toListOfTextEdits(newTextAndAdditionalEdits.additionalEdits(), copyThatCalledCompletionDoc)
-      );
+    var replaceElementStartOffset =
+        MiscUtil.positionToOffset(copyThatCalledCompletionDoc, unresolvedTextEdit.getRange().getStart());
+    var replaceElementEndOffset =
+        MiscUtil.positionToOffset(copyThatCalledCompletionDoc, unresolvedTextEdit.getRange().getEnd());
 
-      unresolvedTextEdit.setNewText(newTextAndAdditionalEdits.mainEdit().getNewText());
-      return unresolved;
-    } finally {
-      WriteCommandAction.runWriteCommandAction(
-          project,
-          () -> Disposer.dispose(disposable));
-    }
+    var newTextAndAdditionalEdits =
+        TextEditRearranger.findOverlappingTextEditsInRangeFromMainTextEditToSnippetsAndMergeThem(
+            toListOfEditsWithOffsets(diff, copyThatCalledCompletionDoc),
+            replaceElementStartOffset, replaceElementEndOffset,
+            copyThatCalledCompletionDoc.getText(), snippetBounds);
+
+    unresolved.setAdditionalTextEdits(
+        toListOfTextEdits(newTextAndAdditionalEdits.additionalEdits(), copyThatCalledCompletionDoc)
+    );
+
+    unresolvedTextEdit.setNewText(newTextAndAdditionalEdits.mainEdit().getNewText());
+    return unresolved;
   }
 
   @NotNull
@@ -219,55 +247,7 @@ final public class CompletionService implements Disposable {
         resItem.setKind(CompletionItemKind.Keyword);
         return resItem;
       }
-      CompletionItemKind kind = null;
-      var iconManager = IconManager.getInstance();
-      if (IconUtil.compareIcons(icon, AllIcons.Nodes.Method, PlatformIcons.Method) ||
-          IconUtil.compareIcons(icon, AllIcons.Nodes.AbstractMethod, PlatformIcons.AbstractMethod)) {
-        kind = CompletionItemKind.Method;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Module, "nodes/Module.svg")
-          || IconUtil.compareIcons(icon, AllIcons.Nodes.IdeaModule, PlatformIcons.IdeaModule)
-          || IconUtil.compareIcons(icon, AllIcons.Nodes.JavaModule, PlatformIcons.JavaModule)
-          || IconUtil.compareIcons(icon, AllIcons.Nodes.ModuleGroup, "nodes/moduleGroup.svg")) {
-        kind = CompletionItemKind.Module;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Function, PlatformIcons.Function)) {
-        kind = CompletionItemKind.Function;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Interface, PlatformIcons.Interface) ||
-          IconUtil.compareIcons(icon,
-              iconManager.tooltipOnlyIfComposite(AllIcons.Nodes.Interface), PlatformIcons.Interface)) {
-        kind = CompletionItemKind.Interface;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Folder, PlatformIcons.Folder)) {
-        kind = CompletionItemKind.Folder;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.MethodReference, PlatformIcons.MethodReference)) {
-        kind = CompletionItemKind.Reference;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.TextArea, "nodes/textArea.svg")) {
-        kind = CompletionItemKind.Text;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Type, "nodes/type.svg")) {
-        kind = CompletionItemKind.TypeParameter;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Property, PlatformIcons.Property)) {
-        kind = CompletionItemKind.Property;
-      } else if (IconUtil.compareIcons(icon, AllIcons.FileTypes.Any_type, "fileTypes/anyType.svg") /* todo can we find that?*/) {
-        kind = CompletionItemKind.File;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Enum, PlatformIcons.Enum)) {
-        kind = CompletionItemKind.Enum;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Variable, PlatformIcons.Variable) ||
-          IconUtil.compareIcons(icon, AllIcons.Nodes.Parameter, PlatformIcons.Parameter) ||
-          IconUtil.compareIcons(icon, AllIcons.Nodes.NewParameter, "nodes/newParameter.svg")) {
-        kind = CompletionItemKind.Variable;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Constant, "nodes/constant.svg")) {
-        kind = CompletionItemKind.Constant;
-      } else if (
-          IconUtil.compareIcons(icon, AllIcons.Nodes.Class, PlatformIcons.Class) ||
-              IconUtil.compareIcons(icon,
-                  iconManager.tooltipOnlyIfComposite(AllIcons.Nodes.Class), PlatformIcons.Class) ||
-              IconUtil.compareIcons(icon, AllIcons.Nodes.Class, PlatformIcons.Class) ||
-              IconUtil.compareIcons(icon, AllIcons.Nodes.AbstractClass, PlatformIcons.AbstractClass)) {
-        kind = CompletionItemKind.Class;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Field, PlatformIcons.Field)) {
-        kind = CompletionItemKind.Field;
-      } else if (IconUtil.compareIcons(icon, AllIcons.Nodes.Template, "nodes/template.svg")) {
-        kind = CompletionItemKind.Snippet;
-      }
-      resItem.setKind(kind);
+      resItem.setKind(CompletionItemKindTable.findKind(icon));
 
       return resItem;
     } catch (Throwable e) {
@@ -278,16 +258,99 @@ final public class CompletionService implements Disposable {
   }
 
 
-  private @NotNull List<CompletionItem> doComputeCompletions(@NotNull PsiFile psiFile,
-                                                             @NotNull Editor editor,
-                                                             @NotNull CancelChecker cancelChecker) {
+  /**
+   * @return the cached completion data filtered for a longer prefix, if the document only differs from the one
+   * the cache was computed for by identifier characters typed at the caret
+   */
+  @Nullable
+  private CompletionData completeFromCache(@NotNull PsiFile psiFile, @NotNull Document document, int offset) {
+    final var cachedData = completionDataStore.getLatest(psiFile.getVirtualFile());
+    if (cachedData == null) {
+      return null;
+    }
+
+    final var text = ReadAction.compute(() -> document.getImmutableCharSequence());
+    final var typed = typedSince(cachedData, text, offset);
+    if (typed == null) {
+      return null;
+    }
+
+    final var elements = ReadAction.compute(() -> refilter(cachedData, typed));
+    if (elements == null) {
+      return null;
+    }
+
+    final var newData = createCompletionData(elements, document, offset, text, cachedData.language, cachedData.file);
+    if (!completionDataStore.addIfLatest(cachedData, newData)) {
+      return null; // a concurrent completion in the same file has replaced the cached one
+    }
+    return newData;
+  }
+
+  /**
+   * @return the cached elements that match their prefix extended by {@code typed}, or null if the cached data can't
+   * tell all the elements for the longer prefix: IDEA suggests more items once an empty prefix is typed, dropped
+   * elements may match it, and IDEA looks for other variants when none of the cached ones match. A matching element
+   * whose PSI has been invalidated by the reparse after typing makes the completion run again. Must be called
+   * in a read action.
+   */
+  @Nullable
+  static List<LookupElementWithMatcher> refilter(@NotNull CompletionData cachedData, @NotNull String typed) {
+    if (cachedData.emptyPrefix) {
+      return null;
+    }
+    for (var element : cachedData.droppedElements) {
+      final var matcher = extendPrefix(element.prefixMatcher(), typed);
+      if (element.lookupStrings().stream().anyMatch(matcher::prefixMatches)) {
+        return null;
+      }
+    }
+
+    final var elements = new ArrayList<LookupElementWithMatcher>();
+    for (var element : cachedData.lookupElementsWithMatcher) {
+      final var matcher = extendPrefix(element.prefixMatcher(), typed);
+      if (matcher.prefixMatches(element.lookupElement())) {
+        if (!element.lookupElement().isValid()) {
+          return null;
+        }
+        elements.add(new LookupElementWithMatcher(element.lookupElement(), matcher));
+      }
+    }
+    return elements.isEmpty() ? null : elements;
+  }
+
+  @NotNull
+  private static PrefixMatcher extendPrefix(@NotNull PrefixMatcher matcher, @NotNull String typed) {
+    return matcher.cloneWithPrefix(matcher.getPrefix() + typed);
+  }
+
+  @Nullable
+  private static String typedSince(@NotNull CompletionData cachedData, @NotNull CharSequence text, int offset) {
+    final var oldText = cachedData.fileText;
+    final var oldOffset = cachedData.offset;
+    final var typedLength = offset - oldOffset;
+    if (typedLength < 0 || text.length() - oldText.length() != typedLength) {
+      return null;
+    }
+    if (!StringUtil.equals(text.subSequence(0, oldOffset), oldText.subSequence(0, oldOffset))
+        || !StringUtil.equals(text.subSequence(offset, text.length()), oldText.subSequence(oldOffset, oldText.length()))) {
+      return null;
+    }
+    final var typed = text.subSequence(oldOffset, offset).toString();
+    for (int i = 0; i < typed.length(); i++) {
+      if (!Character.isJavaIdentifierPart(typed.charAt(i))) {
+        return null;
+      }
+    }
+    return typed;
+  }
+
+  private @Nullable CompletionData doComputeCompletions(@NotNull PsiFile psiFile,
+                                                        @NotNull Editor editor,
+                                                        @NotNull CancelChecker cancelChecker) {
     VoidCompletionProcess process = new VoidCompletionProcess();
-    Ref<List<CompletionItem>> resultRef = new Ref<>();
+    Ref<CompletionData> resultRef = new Ref<>();
     try {
-      // need for icon load
-      Registry.get("psi.deferIconLoading").setValue(false, process);
-      var lookupElementsWithMatcherRef = new Ref<List<LookupElementWithMatcher>>();
-      var completionDataVersionRef = new Ref<Integer>();
       // invokeAndWait is necessary for editor creation and completion call
       ProgressManager.getInstance().runProcess(() ->
           ApplicationManager.getApplication().invokeAndWait(() -> {
@@ -302,44 +365,93 @@ final public class CompletionService implements Disposable {
                     });
 
                 var elementsWithMatcher = compInfo.getArranger().getElementsWithMatcher();
-                lookupElementsWithMatcherRef.set(elementsWithMatcher);
-
-                // version and data manipulations here are thread safe because they are done inside invokeAndWait
-                int newVersion = 1 + cachedDataRef.get().version;
-                completionDataVersionRef.set(newVersion);
-
-                cachedDataRef.set(
-                    new CompletionData(
-                        elementsWithMatcher,
-                        newVersion,
-                        MiscUtil.offsetToPosition(editor.getDocument(), editor.getCaretModel().getOffset()),
-                        editor.getDocument().getText(),
-                        psiFile.getLanguage()
-                    ));
+
+                final var data = createCompletionData(
+                    elementsWithMatcher,
+                    editor.getDocument(),
+                    editor.getCaretModel().getOffset(),
+                    editor.getDocument().getImmutableCharSequence(),
+                    psiFile.getLanguage(),
+                    psiFile.getVirtualFile());
+                completionDataStore.add(data);
+                resultRef.set(data);
               }
           ), new LspProgressIndicator(cancelChecker));
-      ReadAction.run(() -> {
-        Integer version = completionDataVersionRef.get();
-        if (version == null) {
-          version = cachedDataRef.get().version + 1;
-        }
-        List<LookupElementWithMatcher> lookupElements = lookupElementsWithMatcherRef.get();
-        if (lookupElements == null) {
-          resultRef.set(List.of());
-          return;
-        }
-        resultRef.set(convertLookupElementsWithMatcherToCompletionItems(
-            lookupElements, editor.getDocument(), MiscUtil.offsetToPosition(editor.getDocument(), editor.getCaretModel().getOffset()), version));
-      });
     } finally {
       WriteCommandAction.runWriteCommandAction(project, () -> Disposer.dispose(process));
     }
     return resultRef.get();
   }
 
+  /**
+   * Only the first {@link #MAX_ITEMS} elements, the ones converted to items for the client, are kept, as they hold
+   * PSI. Of the rest, only the lookup strings and matchers are kept, to tell whether a longer prefix matches them.
+   */
+  @NotNull
+  private CompletionData createCompletionData(@NotNull List<LookupElementWithMatcher> elements,
+                                              @NotNull Document document,
+                                              int offset,
+                                              @NotNull CharSequence text,
+                                              @NotNull Language language,
+                                              @Nullable VirtualFile file) {
+    final var sorted = sortByRelevance(elements);
+    final var kept = sorted.size() > MAX_ITEMS ? List.copyOf(sorted.subList(0, MAX_ITEMS)) : sorted;
+    final var dropped = sorted.subList(kept.size(), sorted.size()).stream()
+        .map(it -> new DroppedElement(Set.copyOf(it.lookupElement().getAllLookupStrings()), it.prefixMatcher()))
+        .toList();
+    return new CompletionData(kept, completionDataStore.nextVersion(), MiscUtil.offsetToPosition(document, offset),
+        offset, text, language, file, dropped, elements.stream().anyMatch(it -> it.prefixMatcher().getPrefix().isEmpty()));
+  }
+
+  /**
+   * The arranger keeps the order in which contributors produced the elements; put the elements that match
+   * the prefix from their start and match it better first, so truncation drops the least relevant ones.
+   */
+  @NotNull
+  private static List<LookupElementWithMatcher> sortByRelevance(@NotNull List<LookupElementWithMatcher> elements) {
+    record Ranked(@NotNull LookupElementWithMatcher element, boolean startMatch, int degree) {
+    }
+    return elements.stream()
+        .map(it -> new Ranked(it,
+            it.prefixMatcher().isStartMatch(it.lookupElement()),
+            it.prefixMatcher().matchingDegree(it.lookupElement().getLookupString())))
+        .sorted(Comparator.comparing((Ranked it) -> !it.startMatch()).thenComparing(Ranked::degree, Comparator.reverseOrder()))
+        .map(Ranked::element)
+        .toList();
+  }
+
+  @NotNull
+  private CompletionList toCompletionList(@NotNull CompletionData data,
+                                          @NotNull Document document,
+                                          @NotNull CancelChecker cancelChecker,
+                                          @Nullable Either<String, Integer> partialResultToken) {
+    final var elements = data.lookupElementsWithMatcher;
+    final var incomplete = data.incomplete() || elements.isEmpty();
+
+    if (partialResultToken == null) {
+      final var items = ReadAction.compute(() -> convertLookupElementsWithMatcherToCompletionItems(
+          elements, 0, document, data.position, data.version));
+      return new CompletionList(incomplete, items);
+    }
+
+    // the first page carries the list, the following ones are appended to its items; the response itself is empty
+    final var client = LspContext.getContext(project).getClient();
+    for (int start = 0; start < elements.size(); start += PARTIAL_RESULT_PAGE_SIZE) {
+      cancelChecker.checkCanceled();
+      final var pageStart = start;
+      final var page = ReadAction.compute(() -> convertLookupElementsWithMatcherToCompletionItems(
+          elements.subList(pageStart, Math.min(pageStart + PARTIAL_RESULT_PAGE_SIZE, elements.size())),
+          pageStart, document, data.position, data.version));
+      final Object value = pageStart == 0 ? new CompletionList(incomplete, page) : page;
+      client.notifyProgress(new ProgressParams(partialResultToken, Either.forRight(value)));
+    }
+    return new CompletionList(incomplete, List.of());
+  }
+
   @NotNull
   private List<CompletionItem> convertLookupElementsWithMatcherToCompletionItems(
       @NotNull List<LookupElementWithMatcher> lookupElementsWithMatchers,
+      int firstIndex,
       @NotNull Document document,
       @NotNull Position position,
       int completionDataVersion
@@ -360,66 +472,101 @@ final public class CompletionService implements Disposable {
                     );
                     range.setEnd(position);
                   }));
-      item.setData(new CompletionItemData(completionDataVersion, i));
+      item.setData(new CompletionItemData(completionDataVersion, firstIndex + i));
       result.add(item);
     }
     return result;
   }
 
+  /**
+   * Inserts the item into the copy of the file kept by the resolve session and diffs the copy against the text
+   * the completion was called for; the copy is restored afterwards.
+   */
   private void prepareCompletionAndHandleInsert(
       @NotNull CompletionService.CompletionData cachedData,
       int lookupElementIndex,
       @NotNull CancelChecker cancelChecker,
       @NotNull Ref<Document> copyThatCalledCompletionDocRef,
-      @NotNull Ref<Document> copyToInsertDocRef,
+      @NotNull Ref<List<TextEdit>> diffRef,
       @NotNull Ref<TextRange> snippetBoundsRef,
-      @NotNull Disposable disposable,
-      @NotNull CompletionItem unresolved) {
+      @NotNull Ref<Pointer<? extends DocumentationTarget>> documentationTargetRef) {
     var cachedLookupElementWithMatcher = cachedData.lookupElementsWithMatcher.get(lookupElementIndex);
-    var copyToInsertRef = new Ref<PsiFile>();
-    ApplicationManager.getApplication().runReadAction(() -> {
-
-      copyToInsertRef.set(PsiFileFactory.getInstance(project).createFileFromText(
-          "copy",
-          cachedData.language,
-          cachedData.fileText,
-          true,
-          true,
-          true));
-      var copyThatCalledCompletion = (PsiFile) copyToInsertRef.get().copy();
-
-      copyThatCalledCompletionDocRef.set(MiscUtil.getDocument(copyThatCalledCompletion));
-      copyToInsertDocRef.set(MiscUtil.getDocument(copyToInsertRef.get()));
-    });
-
-    var copyToInsert = copyToInsertRef.get();
 
     ProgressManager.getInstance().runProcess(() ->
         ApplicationManager.getApplication().invokeAndWait(() -> {
-          var editor = EditorUtil.createEditor(disposable, copyToInsert,
-              cachedData.position);
-          CompletionInfo completionInfo = new CompletionInfo(editor, project);
-
-          //noinspection UnstableApiUsage
-          var targets =
-              IdeDocumentationTargetProvider.getInstance(project).documentationTargets(editor,
-                  copyToInsert, cachedLookupElementWithMatcher.lookupElement());
-          if (!targets.isEmpty()) {
-            unresolved.setDocumentation(toLspDocumentation(targets.get(0)));
+          var session = getResolveSession(cachedData);
+          try {
+            var copyToInsert = session.getCopy();
+            var editor = session.getEditor();
+            CompletionInfo completionInfo = new CompletionInfo(editor, project);
+
+            //noinspection UnstableApiUsage
+            var targets =
+                IdeDocumentationTargetProvider.getInstance(project).documentationTargets(editor,
+                    copyToInsert, cachedLookupElementWithMatcher.lookupElement());
+            if (!targets.isEmpty()) {
+              documentationTargetRef.set(targets.get(0).createPointer());
+            }
+
+            handleInsert(cachedData, cachedLookupElementWithMatcher, editor, copyToInsert, completionInfo);
+            int caretOffset = editor.getCaretModel().getOffset();
+            snippetBoundsRef.set(new TextRange(caretOffset, caretOffset));
+
+            TemplateState templateState = TemplateManagerImpl.getTemplateState(editor);
+            var document = editor.getDocument();
+            if (templateState != null) {
+              handleSnippetsInsert(snippetBoundsRef, copyToInsert, templateState, document);
+            } else {
+              WriteCommandAction.runWriteCommandAction(project, null, null, () -> document.insertString(caretOffset, "$0"), copyToInsert);
+            }
+
+            copyThatCalledCompletionDocRef.set(session.getOriginalDocument());
+            diffRef.set(TextUtil.textEditFromChangedLines(session.getOriginalDocument(), document));
+          } finally {
+            restoreResolveSession(session);
           }
+        }), new LspProgressIndicator(cancelChecker));
+  }
 
-          handleInsert(cachedData, cachedLookupElementWithMatcher, editor, copyToInsert, completionInfo);
-          int caretOffset = editor.getCaretModel().getOffset();
-          snippetBoundsRef.set(new TextRange(caretOffset, caretOffset));
+  /**
+   * Sessions live as long as their completion data is in the store, so resolving items of interleaved completions
+   * doesn't recreate the copies; their size counts in the weight of the data. Must be called on EDT.
+   */
+  @NotNull
+  private CompletionResolveSession getResolveSession(@NotNull CompletionService.CompletionData cachedData) {
+    return resolveSessions.computeIfAbsent(cachedData.version, version -> {
+      final var session = new CompletionResolveSession(project, version, cachedData.fileText, cachedData.language,
+          cachedData.position);
+      Disposer.register(this, session);
+      // if the data has been evicted meanwhile, the session is disposed once restored
+      completionDataStore.addWeight(version, CompletionResolveSession.estimatedSize(cachedData.fileText));
+      return session;
+    });
+  }
 
-          TemplateState templateState = TemplateManagerImpl.getTemplateState(editor);
-          var document = editor.getDocument();
-          if (templateState != null) {
-            handleSnippetsInsert(snippetBoundsRef, copyToInsert, templateState, document);
-          } else {
-            WriteCommandAction.runWriteCommandAction(project, null, null, () -> document.insertString(caretOffset, "$0"), copyToInsert);
-          }
-        }), new LspProgressIndicator(cancelChecker));
+  private void restoreResolveSession(@NotNull CompletionResolveSession session) {
+    var restored = false;
+    try {
+      restored = session.restore();
+    } catch (Exception e) {
+      LOG.warn("Failed to restore the file copy for completion resolve", e);
+    }
+    if (!restored || !completionDataStore.contains(session.getVersion())) {
+      resolveSessions.remove(session.getVersion());
+      Disposer.dispose(session);
+    }
+  }
+
+  /**
+   * Called by the store when it evicts the completion data of the version.
+   */
+  private void disposeResolveSession(int version) {
+    ApplicationManager.getApplication().invokeLater(() -> {
+      final var session = resolveSessions.remove(version);
+      if (session != null) {
+        Disposer.dispose(session);
+      }
+    }, project.getDisposed());
   }
 
   private void handleSnippetsInsert(@NotNull Ref<TextRange> snippetBoundsRef,
@@ -486,35 +633,46 @@ final public class CompletionService implements Disposable {
 
   @SuppressWarnings("UnstableApiUsage")
   @NotNull
-  private static Either<String, MarkupContent> toLspDocumentation(@NotNull DocumentationTarget target) {
+  private static Either<String, MarkupContent> toLspDocumentation(
+      @NotNull Pointer<? extends DocumentationTarget> targetPointer) {
     try {
-      var future = ApplicationManager.getApplication().executeOnPooledThread(() -> {
-        var res = ImplKt.computeDocumentationBlocking(target.createPointer());
-        if (res == null) {
-          return null;
-        }
-        var html = res.getHtml();
-        var htmlToMarkdownConverter = new CopyDown();
-        var ans = htmlToMarkdownConverter.convert(html);
-        return new MarkupContent(MarkupKind.MARKDOWN, ans);
-      });
-      var result = future.get();
-      return result != null ? Either.forRight(result) : Either.forRight(null);
+      return Either.forRight(DocumentationCache.getInstance().getDocumentation(targetPointer));
+    } catch (ProcessCanceledException e) {
+      throw e;
     } catch (Exception e) {
       LOG.error("Failed to compute documentation", e);
       return Either.forRight(null);
     }
   }
 
-  private record CompletionData(
+  record CompletionData(
       @NotNull List<LookupElementWithMatcher> lookupElementsWithMatcher,
       int version,
       @NotNull Position position,
-      @NotNull String fileText, // file text at the moment of the completion invocation
-      @NotNull Language language
+      int offset,
+      // immutable text of the document at the moment of the completion invocation; shares its unchanged parts
+      // with the later versions of the document instead of copying them
+      @NotNull CharSequence fileText,
+      @NotNull Language language,
+      @Nullable VirtualFile file,
+      // the elements beyond the kept ones
+      @NotNull List<DroppedElement> droppedElements,
+      // typing a prefix brings more items than filtering these ones
+      boolean emptyPrefix
   ) {
-    public static final CompletionData EMPTY_DATA = new CompletionData(
-        List.of(), 0, new Position(), "", Language.ANY);
+    boolean incomplete() {
+      return emptyPrefix || !droppedElements.isEmpty();
+    }
+
+    /**
+     * @return a rough estimate of the memory the data keeps alive besides the PSI, counting the text as not shared
+     */
+    long estimatedSize() {
+      return 2L * fileText.length() + 256L * lookupElementsWithMatcher.size() + 64L * droppedElements.size();
+    }
+  }
+
+  record DroppedElement(@NotNull Set<String> lookupStrings, @NotNull PrefixMatcher prefixMatcher) {
   }
 
   @SuppressWarnings("UnstableApiUsage")
@@ -0,0 +1,91 @@
+package org.rri.ideals.server.completions.util;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.util.DummyIcon;
+import com.intellij.ui.IconManager;
+import com.intellij.ui.PlatformIcons;
+import org.eclipse.lsp4j.CompletionItemKind;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Maps the icon of a lookup element to the kind of the completion item.
+ * <p>
+ * The table is built once on first use; a lookup is an identity check against the platform icons,
+ * then an equality check, then a check of the original path of a {@link DummyIcon} (icons aren't loaded in tests).
+ */
+public final class CompletionItemKindTable {
+  private final Map<Icon, CompletionItemKind> byIdentity = new IdentityHashMap<>();
+  private final Map<Icon, CompletionItemKind> byEquality = new HashMap<>();
+  private final Map<String, CompletionItemKind> byPath = new HashMap<>();
+
+  private static final class Holder {
+    private static final CompletionItemKindTable INSTANCE = new CompletionItemKindTable();
+  }
+
+  private CompletionItemKindTable() {
+    final var iconManager = IconManager.getInstance();
+    // the first registration of an icon wins, as the first matching branch of an if-else chain would
+    add(CompletionItemKind.Method, AllIcons.Nodes.Method, PlatformIcons.Method);
+    add(CompletionItemKind.Method, AllIcons.Nodes.AbstractMethod, PlatformIcons.AbstractMethod);
+    add(CompletionItemKind.Module, AllIcons.Nodes.Module, "nodes/Module.svg");
+    add(CompletionItemKind.Module, AllIcons.Nodes.IdeaModule, PlatformIcons.IdeaModule);
+    add(CompletionItemKind.Module, AllIcons.Nodes.JavaModule, PlatformIcons.JavaModule);
+    add(CompletionItemKind.Module, AllIcons.Nodes.ModuleGroup, "nodes/moduleGroup.svg");
+    add(CompletionItemKind.Function, AllIcons.Nodes.Function, PlatformIcons.Function);
+    add(CompletionItemKind.Interface, AllIcons.Nodes.Interface, PlatformIcons.Interface);
+    add(CompletionItemKind.Interface, iconManager.tooltipOnlyIfComposite(AllIcons.Nodes.Interface), PlatformIcons.Interface);
+    add(CompletionItemKind.Folder, AllIcons.Nodes.Folder, PlatformIcons.Folder);
+    add(CompletionItemKind.Reference, AllIcons.Nodes.MethodReference, PlatformIcons.MethodReference);
+    add(CompletionItemKind.Text, AllIcons.Nodes.TextArea, "nodes/textArea.svg");
+    add(CompletionItemKind.TypeParameter, AllIcons.Nodes.Type, "nodes/type.svg");
+    add(CompletionItemKind.Property, AllIcons.Nodes.Property, PlatformIcons.Property);
+    add(CompletionItemKind.File, AllIcons.FileTypes.Any_type, "fileTypes/anyType.svg");
+    add(CompletionItemKind.Enum, AllIcons.Nodes.Enum, PlatformIcons.Enum);
+    add(CompletionItemKind.Variable, AllIcons.Nodes.Variable, PlatformIcons.Variable);
+    add(CompletionItemKind.Variable, AllIcons.Nodes.Parameter, PlatformIcons.Parameter);
+    add(CompletionItemKind.Variable, AllIcons.Nodes.NewParameter, "nodes/newParameter.svg");
+    add(CompletionItemKind.Constant, AllIcons.Nodes.Constant, "nodes/constant.svg");
+    add(CompletionItemKind.Class, AllIcons.Nodes.Class, PlatformIcons.Class);
+    add(CompletionItemKind.Class, iconManager.tooltipOnlyIfComposite(AllIcons.Nodes.Class), PlatformIcons.Class);
+    add(CompletionItemKind.Class, AllIcons.Nodes.AbstractClass, PlatformIcons.AbstractClass);
+    add(CompletionItemKind.Field, AllIcons.Nodes.Field, PlatformIcons.Field);
+    add(CompletionItemKind.Snippet, AllIcons.Nodes.Template, "nodes/template.svg");
+  }
+
+  /**
+   * @return the kind for the main icon of the given one, or {@code null} if the icon is unknown
+   */
+  @Nullable
+  public static CompletionItemKind findKind(@NotNull Icon icon) {
+    final var mainIcon = IconUtil.getMainIcon(icon);
+    if (mainIcon == null) {
+      return null;
+    }
+
+    final var table = Holder.INSTANCE;
+    var kind = table.byIdentity.get(mainIcon);
+    if (kind == null) {
+      kind = table.byEquality.get(mainIcon);
+    }
+    if (kind == null && mainIcon instanceof DummyIcon dummyIcon) {
+      kind = table.byPath.get(dummyIcon.getOriginalPath());
+    }
+    return kind;
+  }
+
+  private void add(@NotNull CompletionItemKind kind, @NotNull Icon icon, @NotNull PlatformIcons platformIcon) {
+    add(kind, icon, platformIcon.toString());
+  }
+
+  private void add(@NotNull CompletionItemKind kind, @NotNull Icon icon, @NotNull String iconPath) {
+    byIdentity.putIfAbsent(icon, kind);
+    byEquality.putIfAbsent(icon, kind);
+    byPath.putIfAbsent(iconPath, kind);
+  }
+}
@@ -4,6 +4,7 @@ import com.intellij.openapi.util.DummyIcon;
 import com.intellij.ui.PlatformIcons;
 import com.intellij.ui.icons.CompositeIcon;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 
@@ -13,17 +14,26 @@ public class IconUtil {
   }
 
   static public boolean compareIcons(@NotNull Icon elementIcon, @NotNull Icon standardIcon, @NotNull String iconPath) {
+    elementIcon = getMainIcon(elementIcon);
+
+    return elementIcon != null &&
+        (elementIcon.equals(standardIcon) ||
+            ((elementIcon instanceof DummyIcon d) && iconPath.equals(d.getOriginalPath())));
+  }
+
+  @Nullable
+  static public Icon getMainIcon(@NotNull Icon icon) {
     // in all cases the first icon in CompositeIcons is actually the main icon
-    while (elementIcon instanceof CompositeIcon compositeIcon) {
+    while (icon instanceof CompositeIcon compositeIcon) {
       if (compositeIcon.getIconCount() == 0) {
         break;
       }
 
-      elementIcon = compositeIcon.getIcon(0);
+      icon = compositeIcon.getIcon(0);
+      if (icon == null) {
+        return null;
+      }
     }
-
-    return elementIcon != null &&
-        (elementIcon.equals(standardIcon) ||
-            ((elementIcon instanceof DummyIcon d) && iconPath.equals(d.getOriginalPath())));
+    return icon;
   }
 }
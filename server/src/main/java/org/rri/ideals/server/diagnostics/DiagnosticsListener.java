@@ -2,46 +2,97 @@ package org.rri.ideals.server.diagnostics;
 
 import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
 import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
-import com.intellij.codeInsight.daemon.impl.HighlightInfo;
-import com.intellij.lang.annotation.HighlightSeverity;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import org.eclipse.lsp4j.Diagnostic;
-import org.eclipse.lsp4j.DiagnosticSeverity;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.MyLanguageClient;
-import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.Collection;
-import java.util.Map;
-import java.util.Optional;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-final public class DiagnosticsListener implements DaemonCodeAnalyzer.DaemonListener, Disposable {
+/**
+ * Publishes the diagnostics of the files the daemon has finished highlighting.
+ * <p>
+ * Files are collected for {@link #PUBLISH_DELAY_MS} before their diagnostics are converted in a background
+ * read action, and the diagnostics of a file are only sent when they differ from the ones sent last time.
+ * The diagnostics sent for a file are forgotten once it is closed.
+ * A file changed since the daemon finished is skipped: its highlights are stale, and the daemon reports it again.
+ * <p>
+ * The diagnostics of a file the client shows (see {@link VisibleRangesService}) are also published every
+ * {@link #PUBLISH_DELAY_MS} while the daemon is highlighting it, as the visible ranges are highlighted first.
+ */
+final public class DiagnosticsListener implements DaemonCodeAnalyzer.DaemonListener, FileEditorManagerListener, Disposable {
+
+  private static final long PUBLISH_DELAY_MS = Long.getLong("ideals.diagnostics.publishDelayMs", 200);
 
-  private static final Map<HighlightSeverity, DiagnosticSeverity> severityMap = Map.of(
-      HighlightSeverity.INFORMATION, DiagnosticSeverity.Information,
-      HighlightSeverity.WARNING, DiagnosticSeverity.Warning,
-      HighlightSeverity.ERROR, DiagnosticSeverity.Error
-  );
   @NotNull
   private final Project project;
   @NotNull
   private final MessageBusConnection bus;
   @NotNull
   private final MyLanguageClient client;
+  // publishing is sequential, so diagnostics published early never overwrite the final ones
+  private final ScheduledExecutorService publisher =
+      AppExecutorUtil.createBoundedScheduledExecutorService("Ideals Diagnostics Publisher", 1);
+  // files to publish diagnostics for once the delay has passed
+  private final ConcurrentHashMap<VirtualFile, HighlightedDocument> pendingFiles = new ConcurrentHashMap<>();
+  private final AtomicBoolean publishScheduled = new AtomicBoolean();
+  // visible files the daemon is highlighting
+  private final ConcurrentHashMap<VirtualFile, HighlightedDocument> highlightingFiles = new ConcurrentHashMap<>();
+  private final AtomicBoolean earlyPublishScheduled = new AtomicBoolean();
+  // the diagnostics sent last time, by the URI of an open document
+  private final ConcurrentHashMap<String, List<Diagnostic>> publishedDiagnostics = new ConcurrentHashMap<>();
+
+  private record HighlightedDocument(@NotNull Document document, long modificationStamp) {
+  }
 
   public DiagnosticsListener(@NotNull Project project) {
     this.project = project;
     this.bus = project.getMessageBus().connect();
     this.client = LspContext.getContext(project).getClient();
     bus.subscribe(DaemonCodeAnalyzer.DAEMON_EVENT_TOPIC, this);
+    bus.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, this);
+  }
+
+  @Override
+  public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+    pendingFiles.remove(file);
+    highlightingFiles.remove(file);
+    publishedDiagnostics.remove(LspPath.fromVirtualFile(file).toLspUri());
+  }
+
+  @Override
+  public void daemonStarting(@NotNull Collection<? extends FileEditor> fileEditors) {
+    final var visibleRanges = project.getService(VisibleRangesService.class);
+    fileEditors
+        .stream()
+        .filter(fileEditor -> fileEditor instanceof TextEditor && visibleRanges.isVisible(fileEditor.getFile()))
+        .forEach(fileEditor -> {
+          final var document = ((TextEditor) fileEditor).getEditor().getDocument();
+          highlightingFiles.put(fileEditor.getFile(), new HighlightedDocument(document, document.getModificationStamp()));
+        });
+
+    if (!highlightingFiles.isEmpty() && earlyPublishScheduled.compareAndSet(false, true)) {
+      publisher.schedule(this::publishEarly, PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
   }
 
   @Override
@@ -50,28 +101,91 @@ final public class DiagnosticsListener implements DaemonCodeAnalyzer.DaemonListe
         .stream()
         .filter(fileEditor -> fileEditor instanceof TextEditor)
         .forEach(fileEditor -> {
-          var virtualFile = fileEditor.getFile();
-          var document = ((TextEditor) fileEditor).getEditor().getDocument();
-          var path = LspPath.fromVirtualFile(virtualFile);
-          var diags = DaemonCodeAnalyzerImpl.getHighlights(document, null, project)
-              .stream()
-              .filter(highlightInfo -> highlightInfo.getToolTip() != null && highlightInfo.getDescription() != null)
-              .map(highlightInfo -> toDiagnostic(highlightInfo, document))
-              .toList();
-          client.publishDiagnostics(new PublishDiagnosticsParams(path.toLspUri(), diags));
+          final var document = ((TextEditor) fileEditor).getEditor().getDocument();
+          highlightingFiles.remove(fileEditor.getFile());
+          pendingFiles.put(fileEditor.getFile(), new HighlightedDocument(document, document.getModificationStamp()));
         });
+
+    if (!pendingFiles.isEmpty() && publishScheduled.compareAndSet(false, true)) {
+      publisher.schedule(this::publishPending, PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
   }
 
-  @Override
-  public void dispose() {
-    bus.disconnect();
+  private void publishPending() {
+    // files added from now on are published by the next run
+    publishScheduled.set(false);
+    for (var virtualFile : List.copyOf(pendingFiles.keySet())) {
+      final var highlighted = pendingFiles.remove(virtualFile);
+      if (highlighted == null || project.isDisposed()) {
+        continue;
+      }
+      if (!publish(virtualFile, highlighted)) {
+        return;
+      }
+    }
+  }
+
+  private void publishEarly() {
+    earlyPublishScheduled.set(false);
+    for (var entry : List.copyOf(highlightingFiles.entrySet())) {
+      final var highlighted = entry.getValue();
+      // a changed file is highlighted again, and a closed one not at all
+      if (project.isDisposed()
+          || highlighted.document().getModificationStamp() != highlighted.modificationStamp()
+          || !FileEditorManager.getInstance(project).isFileOpen(entry.getKey())) {
+        highlightingFiles.remove(entry.getKey(), highlighted);
+        continue;
+      }
+      if (!publish(entry.getKey(), highlighted)) {
+        return;
+      }
+    }
+
+    if (!highlightingFiles.isEmpty() && earlyPublishScheduled.compareAndSet(false, true)) {
+      publisher.schedule(this::publishEarly, PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return false if the listener has been disposed
+   */
+  private boolean publish(@NotNull VirtualFile virtualFile, @NotNull HighlightedDocument highlighted) {
+    final List<Diagnostic> diags;
+    try {
+      diags = ReadAction.nonBlocking(() -> {
+            final var document = highlighted.document();
+            return document.getModificationStamp() == highlighted.modificationStamp()
+                ? computeDiagnostics(document)
+                : null;
+          })
+          .expireWith(this)
+          .executeSynchronously();
+    } catch (ProcessCanceledException e) {
+      return false;
+    }
+    if (diags == null) {
+      return true;
+    }
+
+    final var uri = LspPath.fromVirtualFile(virtualFile).toLspUri();
+    if (!diags.equals(publishedDiagnostics.put(uri, diags))) {
+      client.publishDiagnostics(new PublishDiagnosticsParams(uri, diags));
+    }
+    // the file may have been closed meanwhile; the entry is only needed while it is open
+    if (!FileEditorManager.getInstance(project).isFileOpen(virtualFile)) {
+      publishedDiagnostics.remove(uri);
+    }
+    return true;
   }
 
-  private @NotNull Diagnostic toDiagnostic(@NotNull HighlightInfo info, @NotNull Document doc) {
-    final var range = MiscUtil.getRange(doc, info);
-    final var severity = Optional.ofNullable(severityMap.get(info.getSeverity()))
-        .orElse(DiagnosticSeverity.Hint);
+  @NotNull
+  private List<Diagnostic> computeDiagnostics(@NotNull Document document) {
+    return DiagnosticsService.toDiagnostics(DaemonCodeAnalyzerImpl.getHighlights(document, null, project), document);
+  }
 
-    return new Diagnostic(range, info.getDescription(), severity, "ideals");
+  @Override
+  public void dispose() {
+    bus.disconnect();
+    publisher.shutdownNow();
   }
 }
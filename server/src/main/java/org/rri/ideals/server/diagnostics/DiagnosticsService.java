@@ -0,0 +1,467 @@
+package org.rri.ideals.server.diagnostics;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
+import com.intellij.codeInsight.daemon.impl.DaemonProgressIndicator;
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.lang.annotation.HighlightSeverity;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.impl.PsiTreeAnyChangeAbstractAdapter;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspContext;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.commands.ExecutorContext;
+import org.rri.ideals.server.util.MiscUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Serves pull diagnostics: {@code textDocument/diagnostic} and {@code workspace/diagnostic}.
+ * <p>
+ * The diagnostics of a file are kept until the file, the PSI of another project file, or the set of files
+ * changes; at most {@link #MAX_CACHED_FILES} files are kept. Telling which files the diagnostics actually depend on
+ * would take resolving every reference of the file again, so any change elsewhere counts. A result ID stays the same
+ * while the diagnostics it identifies do, so the client is told a file is unchanged even after the cache is recomputed.
+ * <p>
+ * Files open in an editor are highlighted by the daemon anyway, so their report is completed from the daemon's
+ * highlights once it reports it has finished with them; the request doesn't hold a thread meanwhile. Other files
+ * are analyzed by running the daemon's main passes, in a bounded pool for a workspace request.
+ */
+@Service(Service.Level.PROJECT)
+final public class DiagnosticsService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(DiagnosticsService.class);
+
+  private static final Map<HighlightSeverity, DiagnosticSeverity> severityMap = Map.of(
+      HighlightSeverity.INFORMATION, DiagnosticSeverity.Information,
+      HighlightSeverity.WARNING, DiagnosticSeverity.Warning,
+      HighlightSeverity.ERROR, DiagnosticSeverity.Error
+  );
+  private static final int WORKSPACE_PARALLELISM = Integer.getInteger("ideals.diagnostics.workspaceParallelism",
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  private static final int MAX_CACHED_FILES = Integer.getInteger("ideals.diagnostics.maxCachedFiles", 2000);
+  // how long to wait for the daemon to finish an open file before analyzing the file separately
+  private static final long DAEMON_WAIT_MS = Long.getLong("ideals.diagnostics.daemonWaitMs", 10_000);
+
+  @NotNull
+  private final Project project;
+  private final ExecutorService workspaceExecutor =
+      AppExecutorUtil.createBoundedApplicationPoolExecutor("Ideals Workspace Diagnostics", WORKSPACE_PARALLELISM);
+  // a workspace request waits for its files to be analyzed, so it doesn't take a slot of the request scheduler
+  private final ExecutorService workspaceRequestExecutor =
+      AppExecutorUtil.createBoundedApplicationPoolExecutor("Ideals Workspace Diagnostics Requests", 1);
+  // access order: the least recently used file comes first
+  private final Map<VirtualFile, FileDiagnostics> cache = Collections.synchronizedMap(
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VirtualFile, FileDiagnostics> eldest) {
+          return size() > MAX_CACHED_FILES;
+        }
+      });
+  // result IDs of another server instance must not match the ones of this instance
+  private final String resultIdPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+  private final AtomicLong nextResultId = new AtomicLong();
+  // PSI changes of project files: of all of them, and of every file changed so far
+  private final AtomicLong psiChanges = new AtomicLong();
+  private final Map<VirtualFile, Long> psiChangesByFile = new ConcurrentHashMap<>();
+
+  /**
+   * @param structureStamp  the count of file creations, deletions and moves
+   * @param otherPsiChanges the count of PSI changes of the other project files, see {@link #otherPsiChanges}
+   */
+  private record FileDiagnostics(long documentStamp,
+                                 long structureStamp,
+                                 long otherPsiChanges,
+                                 @NotNull String resultId,
+                                 @NotNull List<Diagnostic> diagnostics) {
+  }
+
+  public DiagnosticsService(@NotNull Project project) {
+    this.project = project;
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeAnyChangeAbstractAdapter() {
+      @Override
+      protected void onChange(@Nullable PsiFile file) {
+        final var virtualFile = file != null ? file.getVirtualFile() : null;
+        if (virtualFile != null) {
+          // copies made for completion and the like don't affect the diagnostics of project files
+          if (!ProjectFileIndex.getInstance(project).isInContent(virtualFile)) {
+            return;
+          }
+          psiChangesByFile.merge(virtualFile, 1L, Long::sum);
+        }
+        psiChanges.incrementAndGet();
+      }
+    }, this);
+  }
+
+  @Override
+  public void dispose() {
+    workspaceExecutor.shutdownNow();
+    workspaceRequestExecutor.shutdownNow();
+  }
+
+  /**
+   * @return the report, completed once the daemon has finished with the file if it is open and isn't cached;
+   * cancelling it stops waiting
+   */
+  @NotNull
+  public CompletableFuture<DocumentDiagnosticReport> computeDocumentReport(@NotNull ExecutorContext executorContext,
+                                                                          @Nullable String previousResultId) {
+    final var cancelToken = executorContext.getCancelToken();
+    assert cancelToken != null;
+    final var file = executorContext.getPsiFile();
+    final var document = executorContext.getDocument();
+    if (getUpToDate(file.getVirtualFile(), document) != null || !isOpen(file.getVirtualFile())) {
+      return CompletableFuture.completedFuture(
+          toDocumentReport(analyze(file, document, false, cancelToken), previousResultId));
+    }
+
+    final var report = new CompletableFuture<DocumentDiagnosticReport>();
+    final CancelChecker reportCancelToken = () -> {
+      if (report.isCancelled()) {
+        throw new CancellationException();
+      }
+    };
+    final var daemonFinished = whenDaemonFinished(file);
+    report.whenComplete((ignored, error) -> daemonFinished.cancel(false));
+    daemonFinished.whenCompleteAsync((ignored, error) -> {
+      if (report.isDone()) {
+        return;
+      }
+      if (error != null) {
+        LOG.debug("The daemon hasn't finished with " + file.getName() + ", analyzing it separately");
+      }
+      try {
+        report.complete(toDocumentReport(analyze(file, document, error == null, reportCancelToken), previousResultId));
+      } catch (Throwable e) {
+        report.completeExceptionally(e);
+      }
+    }, AppExecutorUtil.getAppExecutorService());
+    return report;
+  }
+
+  /**
+   * Reports the diagnostics of the project's source files that aren't open in an editor. With a partial result
+   * token every file is reported via {@code $/progress} as soon as it is analyzed, and the response itself is empty.
+   */
+  @NotNull
+  public CompletableFuture<WorkspaceDiagnosticReport> computeWorkspaceReport(@NotNull WorkspaceDiagnosticParams params) {
+    return CompletableFutures.computeAsync(workspaceRequestExecutor, cancelToken -> {
+      if (DumbService.isDumb(project)) {
+        return new WorkspaceDiagnosticReport(List.of());
+      }
+      final var previousResultIds = Optional.ofNullable(params.getPreviousResultIds()).orElse(List.of())
+          .stream()
+          .collect(Collectors.toMap(PreviousResultId::getUri, PreviousResultId::getValue, (first, second) -> second));
+      final var partialResultToken = params.getPartialResultToken();
+      final var client = LspContext.getContext(project).getClient();
+      final var items = new ArrayList<WorkspaceDocumentDiagnosticReport>();
+
+      forEachFile(collectSourceFiles(false, cancelToken), workspaceExecutor, cancelToken, file -> {
+        final var report = computeFileReport(file, previousResultIds, cancelToken);
+        if (report == null) {
+          return;
+        }
+        if (partialResultToken != null) {
+          client.notifyProgress(new ProgressParams(partialResultToken,
+              Either.forRight(new WorkspaceDiagnosticReport(List.of(report)))));
+        } else {
+          synchronized (items) {
+            items.add(report);
+          }
+        }
+      });
+
+      synchronized (items) {
+        return new WorkspaceDiagnosticReport(List.copyOf(items));
+      }
+    });
+  }
+
+  /**
+   * @return the diagnostics of the file, or {@code null} if it can't be analyzed
+   */
+  @Nullable
+  public List<Diagnostic> analyzeFile(@NotNull VirtualFile file, @NotNull CancelChecker cancelToken) {
+    final var result = tryAnalyze(file, cancelToken);
+    return result != null ? result.diagnostics() : null;
+  }
+
+  @Nullable
+  private FileDiagnostics tryAnalyze(@NotNull VirtualFile file, @NotNull CancelChecker cancelToken) {
+    final var psiFile = ReadAction.compute(() -> file.isValid() ? PsiManager.getInstance(project).findFile(file) : null);
+    final var document = ReadAction.compute(() -> FileDocumentManager.getInstance().getDocument(file));
+    if (psiFile == null || document == null) {
+      return null;
+    }
+    try {
+      final var highlighted = isOpen(file) && ReadAction.compute(() -> analyzer().isErrorAnalyzingFinished(psiFile));
+      return analyze(psiFile, document, highlighted, cancelToken);
+    } catch (ProcessCanceledException e) {
+      return null;
+    } catch (Exception e) {
+      LOG.warn("Failed to analyze " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the source files of the project, optionally without the ones open in an editor
+   */
+  @NotNull
+  public List<VirtualFile> collectSourceFiles(boolean includeOpenFiles, @NotNull CancelChecker cancelToken) {
+    return ReadAction.compute(() -> {
+      final var fileIndex = ProjectFileIndex.getInstance(project);
+      final var editorManager = FileEditorManager.getInstance(project);
+      final var files = new ArrayList<VirtualFile>();
+      fileIndex.iterateContent(file -> {
+        if (!file.isDirectory()
+            && fileIndex.isInSourceContent(file)
+            && !file.getFileType().isBinary()
+            && (includeOpenFiles || !editorManager.isFileOpen(file))) {
+          files.add(file);
+        }
+        return !cancelToken.isCanceled();
+      });
+      return files;
+    });
+  }
+
+  /**
+   * Runs the action for every file on the executor and waits for all of them; a cancelled request stops
+   * starting new files.
+   */
+  public static void forEachFile(@NotNull List<VirtualFile> files,
+                                 @NotNull Executor executor,
+                                 @NotNull CancelChecker cancelToken,
+                                 @NotNull Consumer<VirtualFile> action) {
+    final var tasks = files.stream()
+        .map(file -> CompletableFuture.runAsync(() -> {
+          if (!cancelToken.isCanceled()) {
+            action.accept(file);
+          }
+        }, executor))
+        .toArray(CompletableFuture[]::new);
+    awaitAll(CompletableFuture.allOf(tasks), cancelToken);
+  }
+
+  @NotNull
+  static List<Diagnostic> toDiagnostics(@NotNull Collection<? extends HighlightInfo> infos, @NotNull Document document) {
+    return infos.stream()
+        .filter(highlightInfo -> highlightInfo.getToolTip() != null && highlightInfo.getDescription() != null)
+        .map(highlightInfo -> toDiagnostic(highlightInfo, document))
+        .toList();
+  }
+
+  private static @NotNull Diagnostic toDiagnostic(@NotNull HighlightInfo info, @NotNull Document doc) {
+    final var range = MiscUtil.getRange(doc, info);
+    final var severity = Optional.ofNullable(severityMap.get(info.getSeverity()))
+        .orElse(DiagnosticSeverity.Hint);
+
+    return new Diagnostic(range, info.getDescription(), severity, "ideals");
+  }
+
+  @NotNull
+  private static DocumentDiagnosticReport toDocumentReport(@NotNull FileDiagnostics result,
+                                                          @Nullable String previousResultId) {
+    if (result.resultId().equals(previousResultId)) {
+      return new DocumentDiagnosticReport(new RelatedUnchangedDocumentDiagnosticReport(result.resultId()));
+    }
+    final var report = new RelatedFullDocumentDiagnosticReport(result.diagnostics());
+    report.setResultId(result.resultId());
+    return new DocumentDiagnosticReport(report);
+  }
+
+  @Nullable
+  private WorkspaceDocumentDiagnosticReport computeFileReport(@NotNull VirtualFile file,
+                                                              @NotNull Map<String, String> previousResultIds,
+                                                              @NotNull CancelChecker cancelToken) {
+    final var result = tryAnalyze(file, cancelToken);
+    if (result == null) {
+      return null;
+    }
+
+    final var uri = LspPath.fromVirtualFile(file).toLspUri();
+    if (result.resultId().equals(previousResultIds.get(uri))) {
+      return new WorkspaceDocumentDiagnosticReport(
+          new WorkspaceUnchangedDocumentDiagnosticReport(result.resultId(), uri, null));
+    }
+    final var report = new WorkspaceFullDocumentDiagnosticReport(result.diagnostics(), uri, null);
+    report.setResultId(result.resultId());
+    return new WorkspaceDocumentDiagnosticReport(report);
+  }
+
+  /**
+   * @param highlighted whether the daemon has finished with the file, so its highlights can be taken
+   */
+  @NotNull
+  private FileDiagnostics analyze(@NotNull PsiFile file,
+                                  @NotNull Document document,
+                                  boolean highlighted,
+                                  @NotNull CancelChecker cancelToken) {
+    final var virtualFile = file.getVirtualFile();
+    final var upToDate = getUpToDate(virtualFile, document);
+    if (upToDate != null) {
+      return upToDate;
+    }
+    final var cached = cache.get(virtualFile);
+
+    // taken before the analysis, so a change made meanwhile makes the result outdated
+    final var documentStamp = document.getModificationStamp();
+    final var structureStamp = VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS.getModificationCount();
+    final var otherPsiChanges = ReadAction.compute(() -> otherPsiChanges(virtualFile));
+    final var diagnostics = highlighted
+        ? ReadAction.compute(() -> toDiagnostics(DaemonCodeAnalyzerImpl.getHighlights(document, null, project), document))
+        : runMainPasses(file, document, cancelToken);
+
+    final var resultId = cached != null && cached.diagnostics().equals(diagnostics)
+        ? cached.resultId()
+        : resultIdPrefix + nextResultId.incrementAndGet();
+    final var result = new FileDiagnostics(documentStamp, structureStamp, otherPsiChanges, resultId, diagnostics);
+    cache.put(virtualFile, result);
+    return result;
+  }
+
+  @Nullable
+  private FileDiagnostics getUpToDate(@NotNull VirtualFile file, @NotNull Document document) {
+    final var cached = cache.get(file);
+    return cached != null && ReadAction.compute(() -> isUpToDate(cached, file, document)) ? cached : null;
+  }
+
+  private boolean isUpToDate(@NotNull FileDiagnostics cached, @NotNull VirtualFile file, @NotNull Document document) {
+    return cached.documentStamp() == document.getModificationStamp()
+        && cached.structureStamp() == VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS.getModificationCount()
+        && cached.otherPsiChanges() == otherPsiChanges(file);
+  }
+
+  /**
+   * @return the count of PSI changes of the project files other than the given one; PSI is changed in write actions
+   * only, so the count is consistent within a read action
+   */
+  private long otherPsiChanges(@NotNull VirtualFile file) {
+    return psiChanges.get() - psiChangesByFile.getOrDefault(file, 0L);
+  }
+
+  private boolean isOpen(@NotNull VirtualFile file) {
+    return ReadAction.compute(() -> FileEditorManager.getInstance(project).isFileOpen(file));
+  }
+
+  @NotNull
+  private DaemonCodeAnalyzerImpl analyzer() {
+    return (DaemonCodeAnalyzerImpl) DaemonCodeAnalyzer.getInstance(project);
+  }
+
+  @NotNull
+  private List<Diagnostic> runMainPasses(@NotNull PsiFile file,
+                                         @NotNull Document document,
+                                         @NotNull CancelChecker cancelToken) {
+    final var analyzer = analyzer();
+    final var indicator = new DaemonProgressIndicator();
+    // the passes check their own indicator only, so it follows the request's cancellation
+    final var cancellationWatcher = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(() -> {
+      if (cancelToken.isCanceled()) {
+        indicator.cancel();
+      }
+    }, 50, 50, TimeUnit.MILLISECONDS);
+    try {
+      final var infos = new Ref<List<HighlightInfo>>();
+      ProgressManager.getInstance().executeProcessUnderProgress(
+          () -> infos.set(analyzer.runMainPasses(file, document, indicator)), indicator);
+      return ReadAction.compute(() -> toDiagnostics(infos.get(), document));
+    } finally {
+      cancellationWatcher.cancel(false);
+    }
+  }
+
+  /**
+   * @return a future completed once the daemon has finished highlighting the file, or failed if the file is closed
+   * or after {@link #DAEMON_WAIT_MS}
+   */
+  @NotNull
+  private CompletableFuture<Void> whenDaemonFinished(@NotNull PsiFile file) {
+    final var analyzer = analyzer();
+    final var finished = new CompletableFuture<Void>();
+    final var connection = project.getMessageBus().connect(this);
+    finished.whenComplete((ignored, error) -> connection.disconnect());
+    connection.subscribe(DaemonCodeAnalyzer.DAEMON_EVENT_TOPIC, new DaemonCodeAnalyzer.DaemonListener() {
+      @Override
+      public void daemonFinished(@NotNull Collection<? extends FileEditor> fileEditors) {
+        if (analyzer.isErrorAnalyzingFinished(file)) {
+          finished.complete(null);
+        }
+      }
+    });
+    connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerListener() {
+      @Override
+      public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile closedFile) {
+        if (closedFile.equals(file.getVirtualFile())) {
+          finished.completeExceptionally(new CancellationException("The file is closed"));
+        }
+      }
+    });
+    // the daemon may have finished, or the file been closed, before the listeners were added
+    if (ReadAction.compute(() -> analyzer.isErrorAnalyzingFinished(file))) {
+      finished.complete(null);
+    } else if (!isOpen(file.getVirtualFile())) {
+      finished.completeExceptionally(new CancellationException("The file is closed"));
+    }
+    return finished.orTimeout(DAEMON_WAIT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void awaitAll(@NotNull CompletableFuture<Void> all, @NotNull CancelChecker cancelToken) {
+    while (true) {
+      cancelToken.checkCanceled();
+      try {
+        all.get(100, TimeUnit.MILLISECONDS);
+        return;
+      } catch (TimeoutException ignored) {
+        // check for cancellation again
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw MiscUtil.wrap(e);
+      } catch (ExecutionException e) {
+        throw MiscUtil.wrap(e.getCause());
+      }
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package org.rri.ideals.server.diagnostics;
+
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.jsonrpc.validation.NonNull;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The parameters of the {@code ideals/visibleRanges} notification: the ranges of the document the client shows.
+ * An empty list means the document isn't visible any more.
+ * <p>
+ * A bean rather than a record, as the JSON-RPC layer deserializes parameters by setting fields.
+ */
+public class VisibleRangesParams {
+  @NonNull
+  private TextDocumentIdentifier textDocument;
+  @NonNull
+  private List<Range> ranges;
+
+  public VisibleRangesParams() {
+  }
+
+  public VisibleRangesParams(@NonNull TextDocumentIdentifier textDocument, @NonNull List<Range> ranges) {
+    this.textDocument = textDocument;
+    this.ranges = ranges;
+  }
+
+  @NonNull
+  public TextDocumentIdentifier getTextDocument() {
+    return textDocument;
+  }
+
+  public void setTextDocument(@NonNull TextDocumentIdentifier textDocument) {
+    this.textDocument = textDocument;
+  }
+
+  @NonNull
+  public List<Range> getRanges() {
+    return ranges;
+  }
+
+  public void setRanges(@NonNull List<Range> ranges) {
+    this.ranges = ranges;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) return true;
+    if (obj == null || obj.getClass() != this.getClass()) return false;
+    var that = (VisibleRangesParams) obj;
+    return Objects.equals(this.textDocument, that.textDocument) && Objects.equals(this.ranges, that.ranges);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(textDocument, ranges);
+  }
+
+  @Override
+  public String toString() {
+    return "VisibleRangesParams[" +
+        "textDocument=" + textDocument + ", " +
+        "ranges=" + ranges + ']';
+  }
+}
@@ -0,0 +1,117 @@
+package org.rri.ideals.server.diagnostics;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.LspPath;
+
+import java.awt.Dimension;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the ranges of documents the client shows, as sent by the {@code ideals/visibleRanges} notification,
+ * and makes the daemon highlight them first.
+ * <p>
+ * The daemon gives priority to the visible area of an editor, which a headless editor doesn't have. The editor
+ * of a document is therefore sized and scrolled to the lines between the first and the last visible range.
+ * While the document is being highlighted, {@link DiagnosticsListener} publishes its diagnostics early.
+ * <p>
+ * Notifications are handled once the client has stopped scrolling for {@link #DELAY_MS}, and only a span outside
+ * the lines the editor already shows moves it. Running passes only pick up the new area on a restart, so
+ * the daemon is restarted in that case only.
+ */
+@Service(Service.Level.PROJECT)
+public final class VisibleRangesService {
+  // wide enough for the end of any visible line to fall into the area
+  private static final int VISIBLE_AREA_WIDTH = Short.MAX_VALUE;
+  private static final long DELAY_MS = Long.getLong("ideals.diagnostics.visibleRangesDelayMs", 100);
+
+  @NotNull
+  private final Project project;
+  private final ConcurrentHashMap<LspPath, LineSpan> visibleLines = new ConcurrentHashMap<>();
+  // the lines the editors show, which the daemon highlights first; accessed on EDT only
+  private final HashMap<LspPath, LineSpan> prioritizedLines = new HashMap<>();
+
+  private record LineSpan(int startLine, int endLine) {
+    boolean contains(@NotNull LineSpan other) {
+      return startLine <= other.startLine && other.endLine <= endLine;
+    }
+  }
+
+  public VisibleRangesService(@NotNull Project project) {
+    this.project = project;
+  }
+
+  public void update(@NotNull VisibleRangesParams params) {
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    if (params.getRanges().isEmpty()) {
+      visibleLines.remove(path);
+      return;
+    }
+    final var span = new LineSpan(
+        params.getRanges().stream().mapToInt(range -> range.getStart().getLine()).min().orElseThrow(),
+        params.getRanges().stream().mapToInt(range -> range.getEnd().getLine()).max().orElseThrow());
+    if (span.equals(visibleLines.put(path, span))) {
+      return;
+    }
+    AppExecutorUtil.getAppScheduledExecutorService().schedule(
+        () -> ApplicationManager.getApplication().invokeLater(() -> prioritize(path, span), project.getDisposed()),
+        DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  public void forget(@NotNull LspPath path) {
+    visibleLines.remove(path);
+    ApplicationManager.getApplication().invokeLater(() -> prioritizedLines.remove(path), project.getDisposed());
+  }
+
+  /**
+   * @return true if the client has sent the visible ranges of the file
+   */
+  public boolean isVisible(@NotNull VirtualFile file) {
+    return visibleLines.containsKey(LspPath.fromVirtualFile(file));
+  }
+
+  private void prioritize(@NotNull LspPath path, @NotNull LineSpan span) {
+    // the client may have scrolled further meanwhile, then the latest notification is handled later
+    if (!span.equals(visibleLines.get(path))) {
+      return;
+    }
+    final var prioritized = prioritizedLines.get(path);
+    if (prioritized != null && prioritized.contains(span)) {
+      return;
+    }
+    final var file = path.findVirtualFile();
+    if (file == null
+        || !(FileEditorManager.getInstance(project).getSelectedEditor(file) instanceof TextEditor textEditor)
+        || !(textEditor.getEditor() instanceof EditorEx editor)) {
+      return;
+    }
+
+    final var lineCount = Math.max(editor.getDocument().getLineCount(), 1);
+    final var startLine = Math.min(span.startLine(), lineCount - 1);
+    final var endLine = Math.min(span.endLine(), lineCount - 1);
+    editor.getScrollPane().getViewport().setExtentSize(
+        new Dimension(VISIBLE_AREA_WIDTH, (endLine - startLine + 1) * editor.getLineHeight()));
+    editor.getScrollingModel().scrollVertically(editor.logicalPositionToXY(new LogicalPosition(startLine, 0)).y);
+    prioritizedLines.put(path, span);
+
+    // passes already running keep the old priority range
+    final var psiFile = PsiManager.getInstance(project).findFile(file);
+    if (psiFile != null
+        && !((DaemonCodeAnalyzerImpl) DaemonCodeAnalyzer.getInstance(project)).isErrorAnalyzingFinished(psiFile)) {
+      DaemonCodeAnalyzer.getInstance(project).restart(psiFile);
+    }
+  }
+}
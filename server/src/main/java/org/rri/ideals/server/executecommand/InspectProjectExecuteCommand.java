@@ -0,0 +1,241 @@
+package org.rri.ideals.server.executecommand;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.diagnostics.DiagnosticsService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyzes every source file of the project the way the daemon highlights an open file, without opening editors,
+ * in parallel on {@link #PARALLELISM} threads.
+ * <p>
+ * Arguments: an optional path to write the report to, relative to the project's base path and inside it,
+ * and an optional format, {@code sarif} (the default) or {@code json}. Returns the number of files and problems and the throughput in files per second.
+ */
+public class InspectProjectExecuteCommand implements WorkspaceExecuteCommand<JsonObject> {
+  private static final Logger LOG = Logger.getInstance(InspectProjectExecuteCommand.class);
+  private static final int PARALLELISM = Integer.getInteger("ideals.inspection.parallelism",
+      Runtime.getRuntime().availableProcessors());
+
+  @NotNull
+  private final CancelChecker cancelToken;
+
+  public InspectProjectExecuteCommand(@NotNull CancelChecker cancelToken) {
+    this.cancelToken = cancelToken;
+  }
+
+  @Override
+  public JsonObject execute(@NotNull Project project, Object... arguments) {
+    final var outputArgument = stringArgument(arguments, 0);
+    final var outputPath = outputArgument != null ? resolveOutputPath(project, outputArgument) : null;
+    final var format = stringArgument(arguments, 1);
+
+    DumbService.getInstance(project).waitForSmartMode();
+    final var startTime = System.nanoTime();
+
+    final var service = project.getService(DiagnosticsService.class);
+    final var files = service.collectSourceFiles(true, cancelToken);
+    final var results = new TreeMap<String, List<Diagnostic>>();
+    final var skippedFiles = new AtomicInteger();
+    final var executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Ideals Project Inspection", PARALLELISM);
+    try {
+      DiagnosticsService.forEachFile(files, executor, cancelToken, file -> {
+        final var diagnostics = service.analyzeFile(file, cancelToken);
+        if (diagnostics == null) {
+          skippedFiles.incrementAndGet();
+          return;
+        }
+        synchronized (results) {
+          results.put(toUri(file), diagnostics);
+        }
+      });
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final var elapsedNanos = System.nanoTime() - startTime;
+    final var filesPerSecond = results.size() * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsedNanos, 1);
+    final var problems = results.values().stream().mapToInt(List::size).sum();
+    LOG.info(String.format("Inspected %d files of %s in %d ms (%.1f files/s, %d threads): %d problems, %d files skipped",
+        results.size(), project.getName(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), filesPerSecond, PARALLELISM,
+        problems, skippedFiles.get()));
+
+    if (outputPath != null) {
+      final var json = "json".equalsIgnoreCase(format) ? toJson(results) : toSarif(results);
+      try {
+        Files.writeString(outputPath, new GsonBuilder().setPrettyPrinting().create().toJson(json));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to write the inspection report to " + outputPath, e);
+      }
+    }
+
+    final var summary = new JsonObject();
+    summary.addProperty("files", results.size());
+    summary.addProperty("skippedFiles", skippedFiles.get());
+    summary.addProperty("problems", problems);
+    summary.addProperty("elapsedMs", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    summary.addProperty("filesPerSecond", filesPerSecond);
+    if (outputPath != null) {
+      summary.addProperty("output", outputPath.toString());
+    }
+    return summary;
+  }
+
+  /**
+   * @return the absolute path of the report; the client may not write files outside the project
+   */
+  @NotNull
+  private static Path resolveOutputPath(@NotNull Project project, @NotNull String outputPath) {
+    final var basePath = project.getBasePath();
+    if (basePath == null) {
+      throw new IllegalArgumentException("The project has no base path to write the inspection report to");
+    }
+    try {
+      final var base = Path.of(basePath).toRealPath();
+      final var resolved = base.resolve(outputPath).normalize();
+      // the existing part of the path may be a link leading outside the project
+      final var parent = resolved.getParent();
+      final var realParent = parent != null && Files.exists(parent) ? parent.toRealPath() : parent;
+      if (!resolved.startsWith(base) || realParent == null || !realParent.startsWith(base)) {
+        throw new IllegalArgumentException("The inspection report must be written inside the project: " + outputPath);
+      }
+      return resolved;
+    } catch (InvalidPathException e) {
+      throw new IllegalArgumentException("Invalid inspection report path: " + outputPath, e);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to resolve the inspection report path " + outputPath, e);
+    }
+  }
+
+  @Nullable
+  private static String stringArgument(Object @NotNull [] arguments, int index) {
+    if (arguments.length <= index || arguments[index] == null) {
+      return null;
+    }
+    // arguments arrive as JSON elements
+    return arguments[index] instanceof JsonPrimitive primitive ? primitive.getAsString() : arguments[index].toString();
+  }
+
+  @NotNull
+  private static String toUri(@NotNull VirtualFile file) {
+    return LspPath.fromVirtualFile(file).toLspUri();
+  }
+
+  @NotNull
+  private static JsonElement toJson(@NotNull Map<String, List<Diagnostic>> results) {
+    final var files = new JsonArray();
+    results.forEach((uri, diagnostics) -> {
+      final var problems = new JsonArray();
+      for (var diagnostic : diagnostics) {
+        final var start = diagnostic.getRange().getStart();
+        final var end = diagnostic.getRange().getEnd();
+        final var problem = new JsonObject();
+        problem.addProperty("severity", severityOf(diagnostic).name());
+        problem.addProperty("message", diagnostic.getMessage());
+        problem.addProperty("startLine", start.getLine());
+        problem.addProperty("startCharacter", start.getCharacter());
+        problem.addProperty("endLine", end.getLine());
+        problem.addProperty("endCharacter", end.getCharacter());
+        problems.add(problem);
+      }
+      final var file = new JsonObject();
+      file.addProperty("uri", uri);
+      file.add("diagnostics", problems);
+      files.add(file);
+    });
+    return files;
+  }
+
+  /**
+   * @return a SARIF 2.1.0 log with a result per diagnostic
+   */
+  @NotNull
+  private static JsonElement toSarif(@NotNull Map<String, List<Diagnostic>> results) {
+    final var sarifResults = new JsonArray();
+    results.forEach((uri, diagnostics) -> {
+      for (var diagnostic : diagnostics) {
+        final var start = diagnostic.getRange().getStart();
+        final var end = diagnostic.getRange().getEnd();
+        // SARIF lines and columns are 1-based
+        final var region = new JsonObject();
+        region.addProperty("startLine", start.getLine() + 1);
+        region.addProperty("startColumn", start.getCharacter() + 1);
+        region.addProperty("endLine", end.getLine() + 1);
+        region.addProperty("endColumn", end.getCharacter() + 1);
+
+        final var artifactLocation = new JsonObject();
+        artifactLocation.addProperty("uri", uri);
+        final var physicalLocation = new JsonObject();
+        physicalLocation.add("artifactLocation", artifactLocation);
+        physicalLocation.add("region", region);
+        final var location = new JsonObject();
+        location.add("physicalLocation", physicalLocation);
+        final var locations = new JsonArray();
+        locations.add(location);
+
+        final var message = new JsonObject();
+        message.addProperty("text", diagnostic.getMessage());
+
+        final var result = new JsonObject();
+        result.addProperty("level", sarifLevel(severityOf(diagnostic)));
+        result.add("message", message);
+        result.add("locations", locations);
+        sarifResults.add(result);
+      }
+    });
+
+    final var driver = new JsonObject();
+    driver.addProperty("name", "ideals");
+    final var tool = new JsonObject();
+    tool.add("driver", driver);
+    final var run = new JsonObject();
+    run.add("tool", tool);
+    run.add("results", sarifResults);
+    final var runs = new JsonArray();
+    runs.add(run);
+
+    final var log = new JsonObject();
+    log.addProperty("$schema", "https://json.schemastore.org/sarif-2.1.0.json");
+    log.addProperty("version", "2.1.0");
+    log.add("runs", runs);
+    return log;
+  }
+
+  @NotNull
+  private static DiagnosticSeverity severityOf(@NotNull Diagnostic diagnostic) {
+    return diagnostic.getSeverity() != null ? diagnostic.getSeverity() : DiagnosticSeverity.Hint;
+  }
+
+  @NotNull
+  private static String sarifLevel(@NotNull DiagnosticSeverity severity) {
+    return switch (severity) {
+      case Error -> "error";
+      case Warning -> "warning";
+      case Information, Hint -> "note";
+    };
+  }
+}
@@ -4,6 +4,7 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.project.Project;
 import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
@@ -15,7 +16,8 @@ public final class WorkspaceExecuteCommandService {
 
   private enum Commands {
     RELOAD_PROJECT("ideals.reloadProject"),
-    COMPILE_PROJECT("ideals.compileProject");
+    COMPILE_PROJECT("ideals.compileProject"),
+    INSPECT_PROJECT("ideals.inspectProject");
 
     private final String commandId;
 
@@ -54,6 +56,10 @@ public final class WorkspaceExecuteCommandService {
           CompletableFuture.supplyAsync(() -> new ReloadProjectExecuteCommand().execute(project), AppExecutorUtil.getAppExecutorService());
       case COMPILE_PROJECT ->
           CompletableFuture.supplyAsync(() -> new CompileProjectExecuteCommand().execute(project), AppExecutorUtil.getAppExecutorService());
+      case INSPECT_PROJECT ->
+          CompletableFutures.computeAsync(AppExecutorUtil.getAppExecutorService(),
+              cancelToken -> new InspectProjectExecuteCommand(cancelToken).execute(project,
+                  arguments != null ? arguments.toArray() : new Object[0]));
     };
   }
 
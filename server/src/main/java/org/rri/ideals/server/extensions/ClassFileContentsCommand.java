@@ -13,12 +13,12 @@ public class ClassFileContentsCommand extends LspCommand<String> {
     }
 
     @Override
-    protected boolean isCancellable() {
+    protected boolean isEditorRequired() {
         return false;
     }
 
     @Override
     protected String execute(@NotNull ExecutorContext ctx) {
-        return ctx.getEditor().getDocument().getText();
+        return ctx.getDocument().getText();
     }
 }
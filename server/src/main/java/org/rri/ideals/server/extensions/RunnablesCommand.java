@@ -2,6 +2,7 @@ package org.rri.ideals.server.extensions;
 
 import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
 import com.intellij.execution.ExecutionException;
+import com.intellij.execution.Executor;
 import com.intellij.execution.PsiLocation;
 import com.intellij.execution.actions.BaseRunConfigurationAction;
 import com.intellij.execution.actions.ConfigurationContext;
@@ -14,15 +15,22 @@ import com.intellij.execution.target.TargetProgressIndicator;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
 import com.intellij.openapi.actionSystem.DefaultActionGroup;
 import com.intellij.openapi.actionSystem.impl.SimpleDataContext;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiElement;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
+import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.RequestScheduler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
@@ -38,56 +46,86 @@ public class RunnablesCommand extends LspCommand<List<Runnable>> {
   }
 
   @Override
-  protected boolean isCancellable() {
+  protected @NotNull RequestScheduler.Priority getPriority() {
+    return RequestScheduler.Priority.BACKGROUND;
+  }
+
+  @Override
+  protected boolean isRunInReadAction() {
+    // run configurations are created from a data context of the UI, which is done on EDT
     return false;
   }
 
   @Override
   protected List<Runnable> execute(@NotNull ExecutorContext ctx) {
-    final var project = ctx.getEditor().getProject();
+    final var project = ctx.getPsiFile().getProject();
+    final var document = ctx.getDocument();
 
-    return DaemonCodeAnalyzerImpl.getLineMarkers(ctx.getEditor().getDocument(), project)
+    final var markers = ReadAction.compute(() -> DaemonCodeAnalyzerImpl.getLineMarkers(document, project)
         .stream()
         .flatMap(lineMarkerInfo -> {
           var gutter = lineMarkerInfo.createGutterRenderer();
 
           if (gutter.getPopupMenuActions() != null && lineMarkerInfo.getElement() != null) {
-            return Arrays.stream(((DefaultActionGroup) gutter.getPopupMenuActions()).getChildActionsOrStubs()).filter(anAction -> "Run context configuration".equals(anAction.getTemplateText())).filter(anAction -> anAction instanceof LineMarkerActionWrapper).map(anAction -> {
-              var lineMarkerActionWrapper = (LineMarkerActionWrapper) anAction;
-              var dataContext = SimpleDataContext.builder().add(CommonDataKeys.PROJECT, project)
-                  .add(CommonDataKeys.PSI_ELEMENT, lineMarkerInfo.getElement())
-                  .add(PsiLocation.DATA_KEY, new PsiLocation<>(lineMarkerInfo.getElement()))
-                  .build();
-              var executor = ((ExecutorAction) lineMarkerActionWrapper.getDelegate()).getExecutor();
-              var configurationContext = ConfigurationContext.getFromContext(dataContext, "");
-              var contexts = configurationContext.getConfigurationsFromContext();
-              if (contexts != null && !contexts.isEmpty()) {
-                var min = Collections.min(contexts, ConfigurationFromContext.COMPARATOR);
-                var runnerAndConfigurationSettings = min.getConfigurationSettings();
-                var actionName = executor.getActionName() + " '" + BaseRunConfigurationAction.suggestRunActionName(runnerAndConfigurationSettings.getConfiguration()) + "'";
-
-                try {
-                  var environment = ExecutionEnvironmentBuilder.create(executor, runnerAndConfigurationSettings).build();
-                  var currentState = environment.getState();
-                  var targetEnvironment = environment.getPreparedTargetEnvironment(currentState, TargetProgressIndicator.EMPTY);
-                  var commandLine = ((JavaCommandLine) currentState).getJavaParameters().toCommandLine();
-                  return new Runnable(actionName, new Runnable.Arguments(
-                      commandLine.getWorkingDirectory().toString(),
-                      commandLine.getExePath(),
-                      commandLine.getParametersList().getList()
-                  ));
-                } catch (ExecutionException e) {
-                  LOG.error("Unable to create an execution environment", e);
-                }
-              }
-
-              return null;
-            }).filter(Objects::nonNull);
+            return Arrays.stream(((DefaultActionGroup) gutter.getPopupMenuActions()).getChildActionsOrStubs())
+                .filter(anAction -> "Run context configuration".equals(anAction.getTemplateText()))
+                .filter(anAction -> anAction instanceof LineMarkerActionWrapper)
+                .map(anAction -> new RunMarker(lineMarkerInfo.getElement(),
+                    ((ExecutorAction) ((LineMarkerActionWrapper) anAction).getDelegate()).getExecutor()));
           }
 
-          return Stream.of();
+          return Stream.<RunMarker>of();
         })
-                .filter(distinctByKey(Runnable::label))
+        .toList());
+
+    final var runnables = new ArrayList<Runnable>();
+    for (var marker : markers) {
+      ProgressManager.checkCanceled();
+      final var runnable = MiscUtil.computeInEDTAndWait(() -> toRunnable(project, marker));
+      if (runnable != null) {
+        runnables.add(runnable);
+      }
+    }
+    return runnables.stream()
+        .filter(distinctByKey(Runnable::label))
         .toList();
   }
+
+  private record RunMarker(@NotNull PsiElement element, @NotNull Executor executor) {
+  }
+
+  /**
+   * Must be called on EDT.
+   */
+  @Nullable
+  private static Runnable toRunnable(@NotNull Project project, @NotNull RunMarker marker) {
+    var dataContext = SimpleDataContext.builder().add(CommonDataKeys.PROJECT, project)
+        .add(CommonDataKeys.PSI_ELEMENT, marker.element())
+        .add(PsiLocation.DATA_KEY, new PsiLocation<>(marker.element()))
+        .build();
+    var executor = marker.executor();
+    var configurationContext = ConfigurationContext.getFromContext(dataContext, "");
+    var contexts = configurationContext.getConfigurationsFromContext();
+    if (contexts != null && !contexts.isEmpty()) {
+      var min = Collections.min(contexts, ConfigurationFromContext.COMPARATOR);
+      var runnerAndConfigurationSettings = min.getConfigurationSettings();
+      var actionName = executor.getActionName() + " '" + BaseRunConfigurationAction.suggestRunActionName(runnerAndConfigurationSettings.getConfiguration()) + "'";
+
+      try {
+        var environment = ExecutionEnvironmentBuilder.create(executor, runnerAndConfigurationSettings).build();
+        var currentState = environment.getState();
+        var targetEnvironment = environment.getPreparedTargetEnvironment(currentState, TargetProgressIndicator.EMPTY);
+        var commandLine = ((JavaCommandLine) currentState).getJavaParameters().toCommandLine();
+        return new Runnable(actionName, new Runnable.Arguments(
+            commandLine.getWorkingDirectory().toString(),
+            commandLine.getExePath(),
+            commandLine.getParametersList().getList()
+        ));
+      } catch (ExecutionException e) {
+        LOG.error("Unable to create an execution environment", e);
+      }
+    }
+
+    return null;
+  }
 }
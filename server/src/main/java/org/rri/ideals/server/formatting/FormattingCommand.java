@@ -83,9 +83,4 @@ final public class FormattingCommand extends FormattingCommandBase {
     return () -> "Format call";
   }
 
-  @Override
-  protected boolean isCancellable() {
-    return true;
-  }
-
 }
@@ -21,6 +21,12 @@ public abstract class FormattingCommandBase extends LspCommand<List<? extends Te
     this.formattingOptions = formattingOptions;
   }
 
+  @Override
+  protected boolean isRunInReadAction() {
+    // formatting is done by write actions on a file copy, which are run on EDT
+    return false;
+  }
+
   @NotNull
   private CodeStyleSettings getConfiguredSettings(@NotNull PsiFile copy) {
     var codeStyleSettings =
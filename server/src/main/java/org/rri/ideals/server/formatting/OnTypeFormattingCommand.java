@@ -42,11 +42,6 @@ public class OnTypeFormattingCommand extends FormattingCommandBase {
     return () -> "on type formatting";
   }
 
-  @Override
-  protected boolean isCancellable() {
-    return false;
-  }
-
   @Override
   protected List<? extends TextEdit> execute(@NotNull ExecutorContext ctx) {
     LOG.info(getMessageSupplier().get());
@@ -0,0 +1,107 @@
+package org.rri.ideals.server.hover;
+
+import com.intellij.model.Pointer;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.platform.backend.documentation.DocumentationTarget;
+import com.intellij.platform.backend.documentation.impl.ImplKt;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiUtilCore;
+import io.github.furstenheim.CopyDown;
+import org.eclipse.lsp4j.MarkupContent;
+import org.eclipse.lsp4j.MarkupKind;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Documentation rendered to Markdown, shared by hover and completion resolve.
+ * <p>
+ * Documentation is cached by the element it describes, so hovering over or resolving the same library member again
+ * costs a lookup. The documentation of project code is cached until the next PSI change, that of libraries until
+ * their files change. Targets that don't point to a PSI element are rendered each time.
+ */
+@Service
+public final class DocumentationCache {
+  private static final int MAX_ENTRIES = Integer.getInteger("ideals.documentation.cacheSize", 500);
+
+  // converters keep state while converting
+  private static final ThreadLocal<CopyDown> HTML_TO_MARKDOWN = ThreadLocal.withInitial(CopyDown::new);
+
+  private record Key(@NotNull String targetClass, @NotNull String fileUrl, int offset, long modificationStamp) {
+  }
+
+  private final Map<Key, Optional<MarkupContent>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Optional<MarkupContent>> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  @NotNull
+  public static DocumentationCache getInstance() {
+    return ApplicationManager.getApplication().getService(DocumentationCache.class);
+  }
+
+  /**
+   * @return the documentation of the target in Markdown, or {@code null} if there is none
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @Nullable
+  public MarkupContent getDocumentation(@NotNull Pointer<? extends DocumentationTarget> targetPointer) {
+    final var key = ReadAction.compute(() -> {
+      final var target = targetPointer.dereference();
+      return target != null ? keyOf(target) : null;
+    });
+    if (key == null) {
+      return render(targetPointer);
+    }
+
+    synchronized (cache) {
+      final var cached = cache.get(key);
+      if (cached != null) {
+        return cached.orElse(null);
+      }
+    }
+
+    final var documentation = render(targetPointer);
+    synchronized (cache) {
+      cache.put(key, Optional.ofNullable(documentation));
+    }
+    return documentation;
+  }
+
+  @SuppressWarnings("UnstableApiUsage")
+  @Nullable
+  private static MarkupContent render(@NotNull Pointer<? extends DocumentationTarget> targetPointer) {
+    final var result = ImplKt.computeDocumentationBlocking(targetPointer);
+    if (result == null) {
+      return null;
+    }
+    return new MarkupContent(MarkupKind.MARKDOWN, HTML_TO_MARKDOWN.get().convert(result.getHtml()));
+  }
+
+  @SuppressWarnings("UnstableApiUsage")
+  @Nullable
+  private static Key keyOf(@NotNull DocumentationTarget target) {
+    // elements of file copies, e.g. the ones completion works in, have no stable identity
+    if (!(target.getNavigatable() instanceof PsiElement element) || !element.isValid() || !element.isPhysical()) {
+      return null;
+    }
+    final var file = PsiUtilCore.getVirtualFile(element);
+    if (file == null) {
+      return null;
+    }
+    final var project = element.getProject();
+    final var modificationStamp = ProjectFileIndex.getInstance(project).isInContent(file)
+        ? PsiModificationTracker.getInstance(project).getModificationCount()
+        : file.getModificationStamp();
+    return new Key(target.getClass().getName(), file.getUrl(), element.getTextOffset(), modificationStamp);
+  }
+}
@@ -2,17 +2,13 @@ package org.rri.ideals.server.hover;
 
 import com.intellij.lang.documentation.impl.TargetsKt;
 import com.intellij.openapi.application.ReadAction;
-import com.intellij.platform.backend.documentation.impl.DocumentationRequest;
-import com.intellij.platform.backend.documentation.impl.ImplKt;
-import io.github.furstenheim.CopyDown;
+import com.intellij.platform.backend.documentation.DocumentationTarget;
 import org.eclipse.lsp4j.Hover;
-import org.eclipse.lsp4j.MarkupContent;
-import org.eclipse.lsp4j.MarkupKind;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
+import org.rri.ideals.server.util.RequestScheduler;
 
-import java.util.Optional;
 import java.util.function.Supplier;
 
 public class HoverCommand extends LspCommand<Hover> {
@@ -22,28 +18,28 @@ public class HoverCommand extends LspCommand<Hover> {
     }
 
     @Override
-    protected boolean isCancellable() {
+    protected boolean isEditorRequired() {
         return false;
     }
 
     @Override
-    protected boolean isRunInEdt() {
-        return false;
+    protected @NotNull RequestScheduler.Priority getPriority() {
+        return RequestScheduler.Priority.INTERACTIVE;
+    }
+
+    @Override
+    protected boolean isSupersedable() {
+        return true;
     }
 
     @SuppressWarnings("UnstableApiUsage")
     @Override
     protected Hover execute(@NotNull ExecutorContext ctx) {
-        return ReadAction.compute(() -> TargetsKt.documentationTargets(ctx.getPsiFile(), ctx.getEditor().getCaretModel().getOffset()).stream()
+        return ReadAction.compute(() -> TargetsKt.documentationTargets(ctx.getPsiFile(), ctx.getOffset()).stream()
                 .findFirst()
-                .flatMap(target -> {
-                    //noinspection OverrideOnly
-                    final var request = new DocumentationRequest(target.createPointer(), target.computePresentation());
-                    return Optional.ofNullable(ImplKt.computeDocumentationBlocking(request.getTargetPointer())).map(res -> {
-                        final var htmlToMarkdownConverter = new CopyDown();
-                        final var markdown = htmlToMarkdownConverter.convert(res.getHtml());
-                        return new Hover(new MarkupContent(MarkupKind.MARKDOWN, markdown));
-                    });
-                }).orElse(null));
+                .map(DocumentationTarget::createPointer))
+                .map(pointer -> DocumentationCache.getInstance().getDocumentation(pointer))
+                .map(Hover::new)
+                .orElse(null);
     }
 }
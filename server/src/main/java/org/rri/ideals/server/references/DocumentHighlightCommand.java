@@ -34,6 +34,7 @@ import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
 import org.rri.ideals.server.util.EditorUtil;
 import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.RequestScheduler;
 
 import java.util.*;
 import java.util.function.Supplier;
@@ -48,8 +49,13 @@ public class DocumentHighlightCommand extends LspCommand<List<? extends Document
   }
 
   @Override
-  protected boolean isCancellable() {
-    return false;
+  protected @NotNull RequestScheduler.Priority getPriority() {
+    return RequestScheduler.Priority.INTERACTIVE;
+  }
+
+  @Override
+  protected boolean isSupersedable() {
+    return true;
   }
 
   @Override
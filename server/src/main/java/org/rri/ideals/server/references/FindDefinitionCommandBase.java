@@ -1,6 +1,6 @@
 package org.rri.ideals.server.references;
 
-import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.extensions.ExtensionPointName;
 import com.intellij.openapi.fileEditor.ex.FileEditorProviderManager;
@@ -8,10 +8,13 @@ import com.intellij.openapi.fileEditor.ex.FileEditorWithProvider;
 import com.intellij.openapi.fileEditor.impl.EditorComposite;
 import com.intellij.openapi.fileEditor.impl.EditorCompositeModel;
 import com.intellij.openapi.fileEditor.impl.EditorFileSwapper;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiUtilCore;
 import kotlinx.coroutines.flow.FlowKt;
 import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.LocationLink;
@@ -24,10 +27,10 @@ import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 abstract class FindDefinitionCommandBase extends LspCommand<Either<List<? extends Location>, List<? extends LocationLink>>> {
@@ -35,7 +38,8 @@ abstract class FindDefinitionCommandBase extends LspCommand<Either<List<? extend
       new ExtensionPointName<>("com.intellij.editorFileSwapper");
 
   @Override
-  protected boolean isCancellable() {
+  protected boolean isRunInReadAction() {
+    // source lookup for library classes creates file editors, which is done on EDT
     return false;
   }
 
@@ -43,35 +47,56 @@ abstract class FindDefinitionCommandBase extends LspCommand<Either<List<? extend
   protected @NotNull Either<List<? extends Location>, @NotNull List<? extends LocationLink>> execute(@NotNull ExecutorContext ctx) {
     final var editor = ctx.getEditor();
     final var file = ctx.getPsiFile();
-    final var doc = editor.getDocument();
-    final var offset = editor.getCaretModel().getOffset();
-    
-    PsiElement originalElem = file.findElementAt(offset);
-    Range originalRange = MiscUtil.getPsiElementRange(doc, originalElem);
+    final var project = file.getProject();
+    final var doc = ctx.getDocument();
+    final var offset = ctx.getOffset();
 
-    var definitions = findDefinitions(editor, offset)
+    final var originalRange = ReadAction.compute(() -> MiscUtil.getPsiElementRange(doc, file.findElementAt(offset)));
+    final var targets = ReadAction.compute(() -> findDefinitions(editor, offset)
         .filter(Objects::nonNull)
-        .map(targetElem -> {
-          if (targetElem.getContainingFile() == null) {
-            return null;
-          }
-          final var loc = findSourceLocation(file.getProject(), targetElem);
-          if (loc != null) {
-            return new LocationLink(loc.getUri(), loc.getRange(), loc.getRange(), originalRange);
-          } else {
-            Document targetDoc = targetElem.getContainingFile().equals(file)
-                ? doc : MiscUtil.getDocument(targetElem.getContainingFile());
-            return MiscUtil.psiElementToLocationLink(targetElem, targetDoc, originalRange);
-          }
-        })
-        .filter(Objects::nonNull)
-        .collect(Collectors.toList());
+        .filter(targetElem -> targetElem.getContainingFile() != null)
+        .toList());
+
+    final var definitions = new ArrayList<LocationLink>();
+    for (var targetElem : targets) {
+      ProgressManager.checkCanceled();
+      final LocationLink definition;
+      if (ReadAction.compute(() -> isInLibraryClasses(project, targetElem))) {
+        definition = MiscUtil.computeInEDTAndWait(() -> {
+          final var loc = findSourceLocation(project, targetElem);
+          return loc != null
+              ? new LocationLink(loc.getUri(), loc.getRange(), loc.getRange(), originalRange)
+              : toLocationLink(targetElem, originalRange);
+        });
+      } else {
+        definition = ReadAction.compute(() -> toLocationLink(targetElem, originalRange));
+      }
+      if (definition != null) {
+        definitions.add(definition);
+      }
+    }
 
     return Either.forRight(definitions);
   }
 
+  @Nullable
+  private static LocationLink toLocationLink(@NotNull PsiElement targetElem, @Nullable Range originalRange) {
+    final var targetFile = targetElem.getContainingFile();
+    return targetFile != null
+        ? MiscUtil.psiElementToLocationLink(targetElem, MiscUtil.getDocument(targetFile), originalRange)
+        : null;
+  }
+
   /**
-   * Tries to find the corresponding source file location for this element.
+   * Only the elements of compiled library classes may have their sources found by {@link #findSourceLocation}.
+   */
+  private static boolean isInLibraryClasses(@NotNull Project project, @NotNull PsiElement element) {
+    final var virtualFile = PsiUtilCore.getVirtualFile(element);
+    return virtualFile != null && ProjectFileIndex.getInstance(project).isInLibraryClasses(virtualFile);
+  }
+
+  /**
+   * Tries to find the corresponding source file location for this element. Must be called on EDT.
    * <p>
    * Depends on the element contained in a library's class file and the corresponding sources jar/zip attached
    * to the library.
@@ -163,6 +188,9 @@ abstract class FindDefinitionCommandBase extends LspCommand<Either<List<? extend
   }
 
 
+  /**
+   * Called in a read action on a pooled thread.
+   */
   @NotNull
   protected abstract Stream<PsiElement> findDefinitions(@NotNull Editor editor, int offset);
 }
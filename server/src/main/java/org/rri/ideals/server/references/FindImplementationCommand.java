@@ -4,14 +4,32 @@ import com.intellij.codeInsight.TargetElementUtil;
 import com.intellij.codeInsight.navigation.ImplementationSearcher;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFileSystemItem;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.psi.SmartPointerManager;
+import com.intellij.psi.SmartPsiElementPointer;
+import com.intellij.psi.util.PsiUtilCore;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class FindImplementationCommand extends FindDefinitionCommandBase {
+  private static final Key<Implementations> IMPLEMENTATIONS = Key.create("ideals.references.implementations");
+
+  private record Implementations(boolean includeSelf,
+                                 boolean onRef,
+                                 @NotNull List<SmartPsiElementPointer<PsiElement>> elements) {
+  }
 
   @Override
   protected @NotNull Supplier<@NotNull String> getMessageSupplier() {
@@ -30,6 +48,49 @@ public class FindImplementationCommand extends FindDefinitionCommandBase {
         element == null || TargetElementUtil.getInstance().includeSelfInGotoImplementation(element)
     );
     final var includeSelf = onRef && shouldIncludeSelf;
-    return MiscUtil.streamOf(new ImplementationSearcher().searchImplementations(element, editor, includeSelf, onRef));
+    if (element == null) {
+      return MiscUtil.streamOf(new ImplementationSearcher().searchImplementations(null, editor, includeSelf, onRef));
+    }
+
+    final var cache = element.getProject().getService(ReferencesCache.class);
+    final var cached = cache.get(element, IMPLEMENTATIONS);
+    if (cached != null && cached.includeSelf() == includeSelf && cached.onRef() == onRef) {
+      final var implementations = cached.elements().stream().map(SmartPsiElementPointer::getElement).toList();
+      if (!implementations.contains(null)) {
+        return implementations.stream();
+      }
+    }
+
+    final var change = cache.startSearch();
+    final var implementations = new ImplementationSearcher().searchImplementations(element, editor, includeSelf, onRef);
+    if (implementations != null) {
+      final var files = MiscUtil.streamOf(implementations)
+          .map(PsiUtilCore::getVirtualFile)
+          .filter(Objects::nonNull)
+          .collect(Collectors.toSet());
+      final var pointers = MiscUtil.streamOf(implementations)
+          .map(SmartPointerManager::createPointer)
+          .toList();
+      // a new implementation may be derived from one found, without mentioning the element
+      cache.put(element, IMPLEMENTATIONS, change, files, hierarchyNames(element, implementations),
+          new Implementations(includeSelf, onRef, pointers));
+    }
+    return MiscUtil.streamOf(implementations);
+  }
+
+  /**
+   * @return the names of the element, the implementations and the classes or other named elements they are in
+   */
+  @NotNull
+  private static Set<String> hierarchyNames(@NotNull PsiElement element, PsiElement @NotNull [] implementations) {
+    final var names = new HashSet<String>();
+    Stream.concat(Stream.of(element), MiscUtil.streamOf(implementations)).forEach(implementation -> {
+      for (var e = implementation; e != null && !(e instanceof PsiFileSystemItem); e = e.getParent()) {
+        if (e instanceof PsiNamedElement namedElement && !StringUtil.isEmpty(namedElement.getName())) {
+          names.add(namedElement.getName());
+        }
+      }
+    });
+    return names;
   }
 }
@@ -1,25 +1,31 @@
 package org.rri.ideals.server.references;
 
 import com.intellij.codeInsight.TargetElementUtil;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.find.FindManager;
 import com.intellij.find.findUsages.CustomUsageSearcher;
 import com.intellij.find.findUsages.FindUsagesHandlerBase;
 import com.intellij.find.findUsages.FindUsagesHandlerFactory;
 import com.intellij.find.findUsages.FindUsagesOptions;
 import com.intellij.find.impl.FindManagerImpl;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiInvalidElementAccessException;
-import com.intellij.psi.PsiReference;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.ProjectScope;
 import com.intellij.psi.search.PsiSearchHelper;
 import com.intellij.psi.search.SearchRequestCollector;
+import com.intellij.psi.search.SearchScope;
 import com.intellij.psi.search.SearchSession;
 import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.usageView.UsageInfo;
 import com.intellij.usages.Usage;
 import com.intellij.usages.UsageInfo2UsageAdapter;
@@ -28,23 +34,54 @@ import com.intellij.usages.UsageSearcher;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.ContainerUtil;
 import org.eclipse.lsp4j.Location;
-import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.eclipse.lsp4j.ProgressParams;
+import org.eclipse.lsp4j.WorkDoneProgressBegin;
+import org.eclipse.lsp4j.WorkDoneProgressEnd;
+import org.eclipse.lsp4j.WorkDoneProgressReport;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.services.LanguageClient;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
-import org.rri.ideals.server.util.LspProgressIndicator;
-import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.LocationConverter;
 
 import java.util.*;
-import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
+/**
+ * Finds the usages of the element at the caret as the IDE does, streaming them to the client as they are found.
+ * <p>
+ * The search runs outside a read action, taking short ones by itself like the IDE's find usages, so that it isn't
+ * restarted by edits. A project-wide scope is searched module by module in parallel. Found locations are sent
+ * in batches if the client has given a partial result token, and the progress is reported if it has given
+ * a work done token. At most {@link #MAX_RESULTS} locations are found; the end of the progress says if there are
+ * more. Complete results are kept in {@link ReferencesCache}.
+ */
 public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
   private static final Logger LOG = Logger.getInstance(FindUsagesCommand.class);
+  private static final int MAX_RESULTS = Integer.getInteger("ideals.references.maxResults", 10_000);
+  static final int BATCH_SIZE = 200;
+  private static final long BATCH_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(200);
+  private static final Key<List<Location>> USAGES = Key.create("ideals.references.usages");
+
+  @Nullable
+  private final Either<String, Integer> partialResultToken;
+  @Nullable
+  private final Either<String, Integer> workDoneToken;
+
+  public FindUsagesCommand() {
+    this(null, null);
+  }
+
+  public FindUsagesCommand(@Nullable Either<String, Integer> partialResultToken,
+                           @Nullable Either<String, Integer> workDoneToken) {
+    this.partialResultToken = partialResultToken;
+    this.workDoneToken = workDoneToken;
+  }
 
   @Override
   protected @NotNull Supplier<@NotNull String> getMessageSupplier() {
@@ -52,65 +89,288 @@ public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
   }
 
   @Override
-  protected boolean isCancellable() {
-    return true;
+  protected boolean isRunInReadAction() {
+    return false;
   }
 
   @Override
   protected @NotNull List<? extends Location> execute(@NotNull ExecutorContext ctx) {
     final var editor = ctx.getEditor();
-    final var file = ctx.getPsiFile();
+    final var project = ctx.getPsiFile().getProject();
 
-    return Optional.ofNullable(TargetElementUtil.findTargetElement(editor, TargetElementUtil.getInstance().getAllAccepted()))
-        .map(target -> findUsages(file.getProject(), target, ctx.getCancelToken()))
-        .orElse(List.of());
+    final var target = ReadAction.compute(() ->
+        TargetElementUtil.findTargetElement(editor, TargetElementUtil.getInstance().getAllAccepted()));
+    if (target == null) {
+      return List.of();
+    }
+
+    final var cache = project.getService(ReferencesCache.class);
+    final var collector = new LocationCollector(LspContext.getContext(project).getClient(),
+        partialResultToken, workDoneToken, MAX_RESULTS);
+    final var cached = ReadAction.compute(() -> cache.get(target, USAGES));
+    if (cached != null) {
+      collector.begin();
+      try {
+        collector.addAll(cached);
+      } finally {
+        collector.end();
+      }
+      return collector.result();
+    }
+
+    final var change = cache.startSearch();
+    final var searchers = ReadAction.compute(() -> createSearchers(project, target));
+    final var startTime = System.nanoTime();
+    collector.begin();
+    try {
+      JobLauncher.getInstance().invokeConcurrentlyUnderProgress(searchers, ProgressManager.getGlobalProgressIndicator(),
+          searcher -> {
+            searcher.generate(usage -> collect(usage, collector));
+            return true;
+          });
+    } finally {
+      collector.end();
+    }
+    LOG.info(String.format("Found %d usages in %d ms searching %d scopes", collector.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), searchers.size()));
+    if (!collector.isTruncated()) {
+      ReadAction.run(() -> cache.put(target, USAGES, change, collector.files(), collector.locations()));
+    }
+    return collector.result();
+  }
+
+  /**
+   * @return false if no more usages are needed
+   */
+  private static boolean collect(@Nullable Usage usage, @NotNull LocationCollector collector) {
+    ProgressManager.checkCanceled();
+    if (usage instanceof final UsageInfo2UsageAdapter ui2ua && !ui2ua.isNonCodeUsage()) {
+      final boolean added = ReadAction.compute(() -> {
+        final var element = ui2ua.getElement();
+        return element == null || collector.add(element);
+      });
+      collector.flushIfDue();
+      return added && !collector.isTruncated();
+    }
+    return true;
   }
 
-  private static @NotNull List<@NotNull Location> findUsages(@NotNull Project project,
-                                                             @NotNull PsiElement target,
-                                                             @Nullable CancelChecker cancelToken) {
+  // must be called in a read action
+  @NotNull
+  private static List<@NotNull UsageSearcher> createSearchers(@NotNull Project project, @NotNull PsiElement target) {
     var manager = ((FindManagerImpl) FindManager.getInstance(project)).getFindUsagesManager();
     var handler = manager.getFindUsagesHandler(target, FindUsagesHandlerFactory.OperationMode.USAGES_WITH_DEFAULT_OPTIONS);
 
-    return ProgressManager.getInstance().runProcess(() -> {
-      List<Location> result;
-
-      if (handler != null) {
-        var dialog = handler.getFindUsagesDialog(false, false, false);
-        dialog.close(DialogWrapper.OK_EXIT_CODE);
-        var options = dialog.calcFindUsagesOptions();
-        PsiElement[] primaryElements = handler.getPrimaryElements();
-        PsiElement[] secondaryElements = handler.getSecondaryElements();
-        UsageSearcher searcher = createUsageSearcher(primaryElements, secondaryElements, handler, options, project);
-        Set<Location> saver = ContainerUtil.newConcurrentSet();
-        searcher.generate(usage -> {
-          if (cancelToken != null) {
-            try {
-              cancelToken.checkCanceled();
-            } catch (CancellationException e) {
-              return false;
-            }
+    if (handler == null) {
+      return List.of(processor -> ReferencesSearch.search(target).forEach(reference ->
+          processor.process(ReadAction.compute(() -> new UsageInfo2UsageAdapter(new UsageInfo(reference))))));
+    }
+
+    // the options a non-modified find usages dialog would produce, without creating the dialog off EDT
+    var options = handler.getFindUsagesOptions(null);
+    PsiElement[] primaryElements = handler.getPrimaryElements();
+    PsiElement[] secondaryElements = handler.getSecondaryElements();
+    return splitScope(options.searchScope, project).stream()
+        .map(scope -> createUsageSearcher(primaryElements, secondaryElements, handler, options, scope, project))
+        .toList();
+  }
+
+  /**
+   * Splits a project-wide scope into the content of each module and the rest, mostly libraries,
+   * so that they are searched in parallel.
+   */
+  @NotNull
+  private static List<@NotNull SearchScope> splitScope(@NotNull SearchScope searchScope, @NotNull Project project) {
+    if (!(searchScope instanceof GlobalSearchScope globalScope)) {
+      return List.of(searchScope);
+    }
+    // we will search in project scope always but warn if some usage is out of scope
+    final var scope = globalScope.union(GlobalSearchScope.projectScope(project));
+    final var modules = ModuleManager.getInstance(project).getModules();
+    if (modules.length < 2) {
+      return List.of(scope);
+    }
+    final var scopes = new ArrayList<SearchScope>();
+    for (var module : modules) {
+      scopes.add(scope.intersectWith(module.getModuleContentScope()));
+    }
+    scopes.add(scope.intersectWith(GlobalSearchScope.notScope(ProjectScope.getContentScope(project))));
+    return scopes;
+  }
+
+  /**
+   * Keeps the found locations, sending them in batches to the client if it has asked for partial results.
+   * Usages are converted to locations a batch at a time. The lock guards only the collected state: a batch is
+   * taken under it, then converted and sent without holding it, so that searchers don't wait for the client.
+   */
+  static final class LocationCollector {
+    @NotNull
+    private final LanguageClient client;
+    @Nullable
+    private final Either<String, Integer> partialResultToken;
+    @Nullable
+    private final Either<String, Integer> workDoneToken;
+    private final int maxResults;
+    private final Set<Location> found = new HashSet<>();
+    private final Set<VirtualFile> files = new HashSet<>();
+    @NotNull
+    private LocationConverter converter = new LocationConverter();
+    private long lastFlush = System.nanoTime();
+    private boolean truncated;
+
+    LocationCollector(@NotNull LanguageClient client,
+                      @Nullable Either<String, Integer> partialResultToken,
+                      @Nullable Either<String, Integer> workDoneToken,
+                      int maxResults) {
+      this.client = client;
+      this.partialResultToken = partialResultToken;
+      this.workDoneToken = workDoneToken;
+      this.maxResults = maxResults;
+    }
+
+    /**
+     * Must be called in a read action. The added usages are sent by {@link #flushIfDue()}.
+     *
+     * @return false if no more usages are accepted
+     */
+    synchronized boolean add(@NotNull PsiElement element) {
+      if (truncated) {
+        return false;
+      }
+      final var file = PsiUtilCore.getVirtualFile(element);
+      if (file != null) {
+        files.add(file);
+      }
+      converter.add(element);
+      return true;
+    }
+
+    void addAll(@NotNull List<Location> locations) {
+      for (var start = 0; start < locations.size(); start += BATCH_SIZE) {
+        send(locations.subList(start, Math.min(start + BATCH_SIZE, locations.size())));
+      }
+    }
+
+    /**
+     * Sends the added usages if a batch is full or hasn't been sent for a while.
+     */
+    void flushIfDue() {
+      final LocationConverter usages;
+      synchronized (this) {
+        if (converter.size() < BATCH_SIZE && System.nanoTime() - lastFlush < BATCH_INTERVAL_NS) {
+          return;
+        }
+        usages = takeUsages();
+      }
+      convertAndSend(usages);
+    }
+
+    synchronized int size() {
+      return found.size();
+    }
+
+    synchronized boolean isTruncated() {
+      return truncated;
+    }
+
+    @NotNull
+    synchronized List<Location> locations() {
+      return List.copyOf(found);
+    }
+
+    @NotNull
+    synchronized Set<VirtualFile> files() {
+      return Set.copyOf(files);
+    }
+
+    /**
+     * @return the locations not sent as partial results
+     */
+    @NotNull
+    List<Location> result() {
+      flush();
+      return partialResultToken != null ? List.of() : locations();
+    }
+
+    void begin() {
+      if (workDoneToken != null) {
+        final var progressBegin = new WorkDoneProgressBegin();
+        progressBegin.setTitle("Finding usages");
+        progressBegin.setCancellable(false);
+        client.notifyProgress(new ProgressParams(workDoneToken, Either.forLeft(progressBegin)));
+      }
+    }
+
+    void end() {
+      flush();
+      if (workDoneToken != null) {
+        final String message;
+        synchronized (this) {
+          message = truncated
+              ? String.format("Found the first %d usages, more are available", found.size())
+              : String.format("Found %d usages", found.size());
+        }
+        final var progressEnd = new WorkDoneProgressEnd();
+        progressEnd.setMessage(message);
+        client.notifyProgress(new ProgressParams(workDoneToken, Either.forLeft(progressEnd)));
+      }
+    }
+
+    private void flush() {
+      final LocationConverter usages;
+      synchronized (this) {
+        usages = takeUsages();
+      }
+      convertAndSend(usages);
+    }
+
+    // must be called under the lock
+    @NotNull
+    private LocationConverter takeUsages() {
+      lastFlush = System.nanoTime();
+      final var usages = converter;
+      converter = new LocationConverter();
+      return usages;
+    }
+
+    private void convertAndSend(@NotNull LocationConverter usages) {
+      if (usages.size() > 0) {
+        send(ReadAction.compute(usages::convert));
+      }
+    }
+
+    /**
+     * Keeps the new locations, up to the limit, and sends them to the client.
+     */
+    private void send(@NotNull List<@Nullable Location> locations) {
+      final var batch = new ArrayList<Location>();
+      final int foundCount;
+      synchronized (this) {
+        for (var location : locations) {
+          if (location == null || found.contains(location)) {
+            continue;
           }
-          if (usage instanceof final UsageInfo2UsageAdapter ui2ua && !ui2ua.isNonCodeUsage()) {
-            var elem = ui2ua.getElement();
-            var loc = MiscUtil.psiElementToLocation(elem);
-            if (loc != null) {
-              saver.add(loc);
-            }
+          if (found.size() >= maxResults) {
+            truncated = true;
+            break;
           }
-          return true;
-        });
-        result = new ArrayList<>(saver);
-      } else {
-        result = ReferencesSearch.search(target).findAll().stream()
-            .map(PsiReference::getElement)
-            .map(MiscUtil::psiElementToLocation)
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
+          found.add(location);
+          batch.add(location);
+        }
+        foundCount = found.size();
       }
-
-      return result;
-    }, new LspProgressIndicator(cancelToken));
+      if (batch.isEmpty()) {
+        return;
+      }
+      if (partialResultToken != null) {
+        client.notifyProgress(new ProgressParams(partialResultToken, Either.forRight(batch)));
+      }
+      if (workDoneToken != null) {
+        final var progressReport = new WorkDoneProgressReport();
+        progressReport.setMessage(String.format("%d found", foundCount));
+        client.notifyProgress(new ProgressParams(workDoneToken, Either.forLeft(progressReport)));
+      }
+    }
   }
 
   // Took this function from com.intellij.find.findUsages.FindUsagesManager.
@@ -121,6 +381,7 @@ public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
                                                    PsiElement @NotNull [] secondaryElements,
                                                    @NotNull FindUsagesHandlerBase handler,
                                                    @NotNull FindUsagesOptions options,
+                                                   @NotNull SearchScope searchScope,
                                                    @NotNull Project project) throws PsiInvalidElementAccessException {
     FindUsagesOptions optionsClone = options.clone();
     return processor -> {
@@ -131,10 +392,7 @@ public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
       PsiElement[] elements = ArrayUtil.mergeArrays(primaryElements, secondaryElements, PsiElement.ARRAY_FACTORY);
 
       optionsClone.fastTrack = new SearchRequestCollector(new SearchSession(elements));
-      if (optionsClone.searchScope instanceof GlobalSearchScope) {
-        // we will search in project scope always but warn if some usage is out of scope
-        optionsClone.searchScope = optionsClone.searchScope.union(GlobalSearchScope.projectScope(project));
-      }
+      optionsClone.searchScope = searchScope;
       try {
         for (PsiElement element : elements) {
           if (!handler.processElementUsages(element, usageInfoProcessor, optionsClone)) {
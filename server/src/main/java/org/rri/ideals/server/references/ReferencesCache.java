@@ -0,0 +1,223 @@
+package org.rri.ideals.server.references;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.psi.SmartPointerManager;
+import com.intellij.psi.SmartPsiElementPointer;
+import com.intellij.psi.util.PsiTreeAnyChangeAbstractAdapter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the results of searches for the usages or implementations of an element, as clients ask for them again
+ * and again for the popular ones.
+ * <p>
+ * A result stays valid until a file it has been found in changes, or a file which could now contain a new one
+ * changes: one mentioning the name of the element, or one of the other names kept with the result, like those of
+ * the subtypes an implementation could be derived from. Any other change of the project structure, like adding a file
+ * or changing the project roots, drops all the results. A change is seen once PSI is committed, as a search sees it.
+ * Each change of a file is checked for the names once per result.
+ * <p>
+ * Must be used in a read action.
+ */
+@Service(Service.Level.PROJECT)
+public final class ReferencesCache implements Disposable {
+  private static final int MAX_CACHED_SEARCHES = Integer.getInteger("ideals.references.cacheSize", 64);
+
+  @NotNull
+  private final Project project;
+  private final AtomicLong lastChange = new AtomicLong();
+  // the number of the last change of each file changed since the oldest search kept
+  private final ConcurrentHashMap<VirtualFile, Long> changedFiles = new ConcurrentHashMap<>();
+  private volatile long lastStructureChange;
+
+  private final Map<SearchKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<SearchKey, Entry> eldest) {
+      return size() > MAX_CACHED_SEARCHES;
+    }
+  };
+
+  /**
+   * The pointer is compared by identity: the pointer manager returns the same pointer for an element while it's
+   * referenced, and comparing pointers otherwise may restore their elements, parsing the files.
+   */
+  private record SearchKey(@NotNull SmartPsiElementPointer<PsiElement> target, @NotNull Key<?> kind) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof SearchKey other && target == other.target && kind == other.kind;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(target) + kind.hashCode();
+    }
+  }
+
+  /**
+   * @param unmentioned the changed files found not to mention any of the names, with the number of the change
+   *                    they have been checked at
+   */
+  private record Entry(@NotNull Set<String> names,
+                       long change,
+                       long rootsModificationCount,
+                       @NotNull Set<VirtualFile> files,
+                       @NotNull Object result,
+                       @NotNull Map<VirtualFile, Long> unmentioned) {
+  }
+
+  public ReferencesCache(@NotNull Project project) {
+    this.project = project;
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeAnyChangeAbstractAdapter() {
+      @Override
+      protected void onChange(@Nullable PsiFile file) {
+        if (file != null && !file.isPhysical()) {
+          // copies made for completion or formatting aren't searched
+          return;
+        }
+        final var change = lastChange.incrementAndGet();
+        final var virtualFile = file != null ? file.getVirtualFile() : null;
+        if (virtualFile != null) {
+          changedFiles.put(virtualFile, change);
+        } else {
+          // files or directories have been added, removed or moved
+          lastStructureChange = change;
+        }
+      }
+    }, this);
+  }
+
+  @Override
+  public void dispose() {
+  }
+
+  /**
+   * Must be called before searching for a result to be kept: the changes made during the search invalidate it.
+   *
+   * @return the number of the last change
+   */
+  public long startSearch() {
+    return lastChange.get();
+  }
+
+  /**
+   * @return the result of a search for the element, or {@code null} if none is kept or it could have changed
+   */
+  @Nullable
+  public <T> T get(@NotNull PsiElement target, @NotNull Key<T> kind) {
+    final var key = new SearchKey(SmartPointerManager.createPointer(target), kind);
+    final Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      return null;
+    }
+    if (!isValid(entry)) {
+      synchronized (entries) {
+        entries.remove(key);
+      }
+      return null;
+    }
+    //noinspection unchecked
+    return (T) entry.result();
+  }
+
+  /**
+   * Keeps the result of a search unless the element has changed since the search started.
+   *
+   * @param change the number returned by {@link #startSearch()} before the search
+   * @param files  the files the result has been found in
+   */
+  public <T> void put(@NotNull PsiElement target,
+                      @NotNull Key<T> kind,
+                      long change,
+                      @NotNull Set<VirtualFile> files,
+                      @NotNull T result) {
+    put(target, kind, change, files, Set.of(), result);
+  }
+
+  /**
+   * Keeps the result of a search unless the element has changed since the search started.
+   *
+   * @param change the number returned by {@link #startSearch()} before the search
+   * @param files  the files the result has been found in
+   * @param names  the names, besides the one of the element, a file must mention to contain a new result
+   */
+  public <T> void put(@NotNull PsiElement target,
+                      @NotNull Key<T> kind,
+                      long change,
+                      @NotNull Set<VirtualFile> files,
+                      @NotNull Set<String> names,
+                      @NotNull T result) {
+    if (!(target instanceof PsiNamedElement namedElement) || StringUtil.isEmpty(namedElement.getName())) {
+      // the files which may contain new results are not known
+      return;
+    }
+    final var allNames = new HashSet<>(names);
+    allNames.add(namedElement.getName());
+    final var entry = new Entry(Set.copyOf(allNames), change,
+        ProjectRootManager.getInstance(project).getModificationCount(), Set.copyOf(files), result,
+        new ConcurrentHashMap<>());
+    if (!isValid(entry)) {
+      return;
+    }
+    final var key = new SearchKey(SmartPointerManager.createPointer(target), kind);
+    synchronized (entries) {
+      entries.put(key, entry);
+      forgetOldChanges();
+    }
+  }
+
+  private boolean isValid(@NotNull Entry entry) {
+    if (lastStructureChange > entry.change()
+        || ProjectRootManager.getInstance(project).getModificationCount() != entry.rootsModificationCount()) {
+      return false;
+    }
+    for (var changedFile : changedFiles.entrySet()) {
+      final var file = changedFile.getKey();
+      final long change = changedFile.getValue();
+      if (change <= entry.change() || change == entry.unmentioned().getOrDefault(file, 0L)) {
+        continue;
+      }
+      if (entry.files().contains(file) || mentions(file, entry.names())) {
+        return false;
+      }
+      entry.unmentioned().put(file, change);
+    }
+    return true;
+  }
+
+  private boolean mentions(@NotNull VirtualFile file, @NotNull Set<String> names) {
+    if (!file.isValid()) {
+      return true;
+    }
+    final var psiFile = PsiManager.getInstance(project).findFile(file);
+    if (psiFile == null) {
+      return true;
+    }
+    final var contents = psiFile.getViewProvider().getContents();
+    return names.stream().anyMatch(name -> StringUtil.contains(contents, name));
+  }
+
+  private void forgetOldChanges() {
+    final var oldest = entries.values().stream().mapToLong(Entry::change).min().orElse(lastChange.get());
+    changedFiles.values().removeIf(change -> change <= oldest);
+  }
+}
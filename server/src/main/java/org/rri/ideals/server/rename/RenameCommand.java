@@ -1,27 +1,25 @@
 package org.rri.ideals.server.rename;
 
 import com.intellij.codeInsight.TargetElementUtil;
-import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Pair;
-import com.intellij.openapi.util.Ref;
-import com.intellij.openapi.util.Segment;
 import com.intellij.psi.PsiElement;
 import com.intellij.refactoring.rename.RenameProcessor;
 import com.intellij.refactoring.rename.RenamePsiElementProcessor;
-import com.intellij.usageView.UsageInfo;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
+import org.rri.ideals.server.util.LocationConverter;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.*;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 public class RenameCommand extends LspCommand<WorkspaceEdit> {
   private final String newName;
@@ -36,7 +34,8 @@ public class RenameCommand extends LspCommand<WorkspaceEdit> {
   }
 
   @Override
-  protected boolean isCancellable() {
+  protected boolean isRunInReadAction() {
+    // rename processors may ask about the element to rename, which is done on EDT
     return false;
   }
 
@@ -44,37 +43,48 @@ public class RenameCommand extends LspCommand<WorkspaceEdit> {
   protected @Nullable WorkspaceEdit execute(@NotNull ExecutorContext ctx) {
     final var file = ctx.getPsiFile();
     final var editor = ctx.getEditor();
-    var elementRef = new Ref<PsiElement>();
-    var elementToRename = TargetElementUtil.findTargetElement(editor, TargetElementUtil.getInstance().getAllAccepted());
-
-    if (elementToRename != null) {
-      final var processor = RenamePsiElementProcessor.forElement(elementToRename);
-      final var newElementToRename = processor.substituteElementToRename(elementToRename, editor);
-      if (newElementToRename != null) {
-        elementToRename = newElementToRename;
-      }
-    }
-    elementRef.set(elementToRename);
-
-    if (elementRef.get() == null) {
+    final var target = ReadAction.compute(() ->
+        TargetElementUtil.findTargetElement(editor, TargetElementUtil.getInstance().getAllAccepted()));
+    if (target == null) {
       return null;
     }
 
+    final var elementToRename = Optional.ofNullable(MiscUtil.computeInEDTAndWait(() ->
+            RenamePsiElementProcessor.forElement(target).substituteElementToRename(target, editor)))
+        .orElse(target);
+
+    // usages are searched like the IDE does under a progress: in a read action restarted by write actions
+    return ReadAction.nonBlocking(() -> findEdits(file.getProject(), elementToRename))
+        .expireWith(file.getProject())
+        .executeSynchronously();
+  }
+
+  @NotNull
+  private WorkspaceEdit findEdits(@NotNull Project project, @NotNull PsiElement elementToRename) {
     final var elemToName = new LinkedHashMap<PsiElement, String>();
-    elemToName.put(elementRef.get(), newName);
-    final var renamer = new RenameProcessor(file.getProject(), elementRef.get(), newName, false, false);
-    renamer.prepareRenaming(elementRef.get(), newName, elemToName);
+    elemToName.put(elementToRename, newName);
+    final var renamer = new RenameProcessor(project, elementToRename, newName, false, false);
+    renamer.prepareRenaming(elementToRename, newName, elemToName);
     elemToName.forEach(renamer::addElement);
 
-    final var usageEdits = Arrays.stream(renamer.findUsages())
-        .filter(usage -> !usage.isNonCodeUsage)
-        .map(usageInfo -> new Pair<>(usageInfoToLocation(usageInfo), newName));
-
-    final var targetEdits = Arrays.stream(elemToName.keySet().toArray(new PsiElement[0]))
-        .map(elem -> new Pair<>(MiscUtil.psiElementToLocation(elem), elemToName.get(elem)));
+    // the renamed elements and then their usages, converted to locations at once
+    final var converter = new LocationConverter();
+    final var names = new ArrayList<String>();
+    elemToName.forEach((elem, name) -> {
+      converter.add(elem);
+      names.add(name);
+    });
+    for (var usage : renamer.findUsages()) {
+      if (!usage.isNonCodeUsage) {
+        converter.add(usage.getFile(), usage.getSegment());
+        names.add(newName);
+      }
+    }
+    final var locations = converter.convert();
 
     final var checkSet = new HashSet<Location>();
-    final var textDocumentEdits = Stream.concat(targetEdits, usageEdits)
+    final var textDocumentEdits = IntStream.range(0, locations.size())
+        .mapToObj(i -> new Pair<>(locations.get(i), names.get(i)))
         .filter(pair -> {
           final var loc = pair.getFirst();
           return loc != null && checkSet.add(loc);
@@ -90,25 +100,6 @@ public class RenameCommand extends LspCommand<WorkspaceEdit> {
     return new WorkspaceEdit(textDocumentEdits);
   }
 
-  private static @Nullable Location usageInfoToLocation(@NotNull UsageInfo info) {
-    final var psiFile = info.getFile();
-    final var segment = info.getSegment();
-    if (psiFile == null || segment == null) {
-      return null;
-    }
-    final var uri = LspPath.fromVirtualFile(psiFile.getVirtualFile()).toLspUri();
-    final var doc = MiscUtil.getDocument(psiFile);
-    if (doc == null) {
-      return null;
-    }
-    return new Location(uri, segmentToRange(doc, segment));
-  }
-
-  private static @NotNull Range segmentToRange(@NotNull Document doc, @NotNull Segment segment) {
-    return new Range(MiscUtil.offsetToPosition(doc, segment.getStartOffset()),
-        MiscUtil.offsetToPosition(doc, segment.getEndOffset()));
-  }
-
   private @NotNull Either<@NotNull TextDocumentEdit, @NotNull ResourceOperation> convertEntry(
       @NotNull Map.Entry<@NotNull String, @NotNull List<@NotNull Pair<@NotNull Range, @NotNull String>>> entry) {
     return Either.forLeft(
@@ -1,7 +1,7 @@
 package org.rri.ideals.server.symbol;
 
 import com.intellij.ide.structureView.*;
-import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.LanguageStructureViewBuilder;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
@@ -11,32 +11,58 @@ import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.TextRange;
-import com.intellij.psi.PsiElement;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import org.eclipse.lsp4j.DocumentSymbol;
-import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.SymbolInformation;
 import org.eclipse.lsp4j.SymbolKind;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.commands.ExecutorContext;
-import org.rri.ideals.server.symbol.util.SymbolUtil;
 import org.rri.ideals.server.util.LspProgressIndicator;
-import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.TextUtil;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 
 import static com.intellij.ide.actions.ViewStructureAction.createStructureViewModel;
 
+/**
+ * Builds the outline of a file from its structure view elements.
+ * <p>
+ * The structure view model is created without an editor when the language allows it, which all tree-based
+ * structure views do, and the whole tree is converted in one read action. Outlines are kept by the modification
+ * stamp of their document, as clients ask for the outline again after every edit and on every focus change.
+ * After an edit made by the client, the kept outline is updated with the elements the edit intersects only,
+ * see {@link OutlineTree}.
+ */
 @Service(Service.Level.PROJECT)
 final public class DocumentSymbolService {
   @NotNull
   private final Project project;
   private static final Logger LOG = Logger.getInstance(DocumentSymbolService.class);
+  private static final int MAX_CACHED_FILES = Integer.getInteger("ideals.documentSymbol.cacheSize", 32);
+  // the stamp of an outline built from uncommitted PSI, which mustn't be kept
+  private static final long UNCOMMITTED = -1;
+
+  private final Map<VirtualFile, CachedOutline> cache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<VirtualFile, CachedOutline> eldest) {
+      return size() > MAX_CACHED_FILES;
+    }
+  };
+
+  private record CachedOutline(long modificationStamp, @Nullable OutlineTree.Node root, @Nullable DocumentSymbol symbol) {
+  }
 
   public DocumentSymbolService(@NotNull Project project) {
     this.project = project;
@@ -47,25 +73,104 @@ final public class DocumentSymbolService {
       @NotNull ExecutorContext executorContext) {
     LOG.info("document symbol start");
     final var psiFile = executorContext.getPsiFile();
+    final var document = executorContext.getDocument();
     final var cancelChecker = executorContext.getCancelToken();
     assert cancelChecker != null;
+
+    final var virtualFile = psiFile.getVirtualFile();
+    final var modificationStamp = document.getModificationStamp();
+    final CachedOutline cached;
+    synchronized (cache) {
+      cached = cache.get(virtualFile);
+    }
+    if (cached != null && cached.modificationStamp() == modificationStamp) {
+      return toResult(cached.symbol());
+    }
+    final var region = cached != null && cached.root() != null
+        ? project.getService(ManagedDocuments.class).changedSince(
+            LspPath.fromVirtualFile(virtualFile), cached.modificationStamp(), modificationStamp)
+        : null;
+
+    var outline = computeInReadAction(() -> region != null
+        ? updateWithoutEditor(cached.root(), region, modificationStamp, psiFile, document)
+        : buildWithoutEditor(psiFile, document), cancelChecker);
+    if (outline == null) {
+      outline = buildWithEditor(executorContext, cancelChecker);
+    }
+
+    if (outline.modificationStamp() != UNCOMMITTED) {
+      synchronized (cache) {
+        cache.put(virtualFile, outline);
+      }
+    }
+    return toResult(outline.symbol());
+  }
+
+  @SuppressWarnings("deprecation")
+  private static @NotNull List<Either<SymbolInformation, DocumentSymbol>> toResult(@Nullable DocumentSymbol root) {
+    return root != null ? List.of(Either.forRight(root)) : List.of();
+  }
+
+  /**
+   * @return the outline, or {@code null} if the structure view of the file needs an editor
+   */
+  @Nullable
+  private CachedOutline buildWithoutEditor(@NotNull PsiFile psiFile, @NotNull Document document) {
+    final var builder = LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(psiFile);
+    if (builder == null) {
+      return toOutline(null, document);
+    }
+    if (!(builder instanceof TreeBasedStructureViewBuilder treeBasedBuilder)) {
+      return null;
+    }
+    final var model = treeBasedBuilder.createStructureViewModel(null);
+    try {
+      return toOutline(OutlineTree.build(model.getRoot(), psiFile), document);
+    } finally {
+      Disposer.dispose(model);
+    }
+  }
+
+  /**
+   * @param root   the outline of the document at its previous modification stamp
+   * @param region the region changed since then
+   * @return the outline, or {@code null} if the structure view of the file needs an editor
+   */
+  @Nullable
+  private CachedOutline updateWithoutEditor(@NotNull OutlineTree.Node root,
+                                            @NotNull TextUtil.ChangedRegion region,
+                                            long modificationStamp,
+                                            @NotNull PsiFile psiFile,
+                                            @NotNull Document document) {
+    // the region is only valid for the PSI of the text it has been computed for
+    if (document.getModificationStamp() != modificationStamp
+        || !PsiDocumentManager.getInstance(project).isCommitted(document)
+        || !(LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(psiFile)
+        instanceof TreeBasedStructureViewBuilder treeBasedBuilder)) {
+      return buildWithoutEditor(psiFile, document);
+    }
+    final var model = treeBasedBuilder.createStructureViewModel(null);
+    try {
+      return toOutline(OutlineTree.update(root, model.getRoot(), region, psiFile), document);
+    } finally {
+      Disposer.dispose(model);
+    }
+  }
+
+  @NotNull
+  private CachedOutline buildWithEditor(@NotNull ExecutorContext executorContext,
+                                        @NotNull CancelChecker cancelChecker) {
+    final var psiFile = executorContext.getPsiFile();
+    final var document = executorContext.getDocument();
+    // materialises the editor the structure view is built for
+    executorContext.getEditor();
     return ProgressManager.getInstance().runProcess(() -> {
       StructureViewTreeElement root = Optional.ofNullable(
               FileEditorManager.getInstance(psiFile.getProject()).getSelectedEditor(psiFile.getVirtualFile()))
           .map(this::getViewTreeElement)
           .orElse(null);
-      if (root == null) {
-        return List.of();
-      }
-      Document document = ReadAction.compute(() -> MiscUtil.getDocument(psiFile));
-      assert document != null;
-
-      var rootSymbol = processTree(root, psiFile, document);
-      if (rootSymbol == null) {
-        return List.of();
-      }
-      rootSymbol.setKind(SymbolKind.File);
-      return List.of(Either.forRight(rootSymbol));
+      return computeInReadAction(
+          () -> toOutline(root != null ? OutlineTree.build(root, psiFile) : null, document), cancelChecker);
     }, new LspProgressIndicator(cancelChecker));
   }
 
@@ -86,47 +191,25 @@ final public class DocumentSymbolService {
     return treeModel.getRoot();
   }
 
-  @Nullable
-  private DocumentSymbol processTree(@NotNull TreeElement root,
-                                     @NotNull PsiFile psiFile,
-                                     @NotNull Document document) {
-
-    var documentSymbol = ReadAction.compute(() -> {
-      var curSymbol = new DocumentSymbol();
-      curSymbol.setKind(SymbolUtil.getSymbolKind(root.getPresentation()));
-      if (root instanceof StructureViewTreeElement viewElement) {
-        var maybePsiElement = viewElement.getValue();
-        curSymbol.setName(viewElement.getPresentation().getPresentableText());
-        if (maybePsiElement instanceof PsiElement psiElement) {
-          if (psiElement.getContainingFile().getOriginalFile() != psiFile) {
-            // refers to another file
-            return null;
-          }
-          var ideaRange = psiElement.getTextRange();
-          curSymbol.setRange(new Range(
-              MiscUtil.offsetToPosition(document, ideaRange.getStartOffset()),
-              MiscUtil.offsetToPosition(document, ideaRange.getEndOffset())));
-
-          var ideaPickSelectionRange = new TextRange(psiElement.getTextOffset(), psiElement.getTextOffset());
-          curSymbol.setSelectionRange(new Range(
-              MiscUtil.offsetToPosition(document, ideaPickSelectionRange.getStartOffset()),
-              MiscUtil.offsetToPosition(document, ideaPickSelectionRange.getEndOffset())));
-        }
-      }
-      return curSymbol;
-    });
-    if (documentSymbol == null) {
-      return null; // if refers to another file
-    }
-    var children = new ArrayList<DocumentSymbol>();
-    for (TreeElement child : ReadAction.compute(root::getChildren)) {
-      var childSymbol = processTree(child, psiFile, document);
-      if (childSymbol != null) { // if not refers to another file
-        children.add(childSymbol);
-      }
-    }
-    documentSymbol.setChildren(children);
-    return documentSymbol;
+  private <T> T computeInReadAction(@NotNull Callable<T> action, @NotNull CancelChecker cancelChecker) {
+    return ReadAction.nonBlocking(action)
+        .expireWith(project)
+        .expireWhen(cancelChecker::isCanceled)
+        .wrapProgress(new LspProgressIndicator(cancelChecker))
+        .executeSynchronously();
   }
 
+  // must be called in a read action
+  @NotNull
+  private CachedOutline toOutline(@Nullable OutlineTree.Node root, @NotNull Document document) {
+    final var modificationStamp = PsiDocumentManager.getInstance(project).isCommitted(document)
+        ? document.getModificationStamp()
+        : UNCOMMITTED;
+    if (root == null) {
+      return new CachedOutline(modificationStamp, null, null);
+    }
+    final var symbol = OutlineTree.toDocumentSymbol(root, document);
+    symbol.setKind(SymbolKind.File);
+    return new CachedOutline(modificationStamp, root, symbol);
+  }
 }
@@ -0,0 +1,251 @@
+package org.rri.ideals.server.symbol;
+
+import com.intellij.ide.structureView.StructureViewTreeElement;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.eclipse.lsp4j.DocumentSymbol;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SymbolKind;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.symbol.util.SymbolUtil;
+import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.TextUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The outline of a file as converted from its structure view, with the text ranges of the elements rather than
+ * positions, so that it can be updated after an edit.
+ * <p>
+ * An update converts again only the elements the changed region intersects. The elements before it are kept,
+ * and the ones after it are moved by the length the region has changed by. The structure view tree is only
+ * expanded along the path to the change.
+ * <p>
+ * Must be used in a read action.
+ */
+final class OutlineTree {
+  private OutlineTree() {
+  }
+
+  /**
+   * An element of the outline.
+   *
+   * @param range           the text range of the element, or {@code null} if it isn't backed by a PSI element
+   * @param selectionOffset the offset of the name of the element
+   */
+  record Node(@Nullable String name,
+              @NotNull SymbolKind kind,
+              @Nullable TextRange range,
+              int selectionOffset,
+              @NotNull List<Node> children) {
+    @NotNull
+    private Node withChildren(@NotNull List<Node> children) {
+      return new Node(name, kind, range, selectionOffset, children);
+    }
+
+    @NotNull
+    private Node shifted(int delta) {
+      if (delta == 0) {
+        return this;
+      }
+      return new Node(name, kind, range != null ? range.shiftRight(delta) : null, selectionOffset + delta,
+          children.stream().map(child -> child.shifted(delta)).toList());
+    }
+  }
+
+  /**
+   * @return the outline of the element, or {@code null} if it refers to another file
+   */
+  @Nullable
+  static Node build(@NotNull TreeElement element, @NotNull PsiFile psiFile) {
+    ProgressManager.checkCanceled();
+    final var node = convert(element, psiFile);
+    if (node == null) {
+      return null;
+    }
+    final var children = new ArrayList<Node>();
+    for (TreeElement child : element.getChildren()) {
+      final var childNode = build(child, psiFile);
+      if (childNode != null) { // if not refers to another file
+        children.add(childNode);
+      }
+    }
+    return node.withChildren(children);
+  }
+
+  /**
+   * @param outline the outline of the element before the change
+   * @param element the element after the change, with its text range containing the changed region
+   * @param region  the changed region of the file
+   * @return the outline of the element, or {@code null} if it refers to another file
+   */
+  @Nullable
+  static Node update(@NotNull Node outline,
+                     @NotNull TreeElement element,
+                     @NotNull TextUtil.ChangedRegion region,
+                     @NotNull PsiFile psiFile) {
+    ProgressManager.checkCanceled();
+    // the element itself may be presented differently, e.g. a method whose parameters have been changed
+    final var node = convert(element, psiFile);
+    if (node == null) {
+      return null;
+    }
+    return node.withChildren(updateChildren(outline.children(), ownChildren(element, psiFile), region, psiFile));
+  }
+
+  @NotNull
+  private static List<Node> updateChildren(@NotNull List<Node> outlines,
+                                           @NotNull List<TreeElement> elements,
+                                           @NotNull TextUtil.ChangedRegion region,
+                                           @NotNull PsiFile psiFile) {
+    var before = 0;
+    while (before < outlines.size() && isBefore(outlines.get(before).range(), region)) {
+      before++;
+    }
+    var after = 0;
+    while (after < outlines.size() - before && isAfter(outlines.get(outlines.size() - 1 - after).range(), region)) {
+      after++;
+    }
+    if (elements.size() < before + after || !isSameOutside(outlines, elements, before, after, region)) {
+      return buildAll(elements, psiFile);
+    }
+
+    final var children = new ArrayList<>(outlines.subList(0, before));
+    final var changedOutlines = outlines.subList(before, outlines.size() - after);
+    final var changedElements = elements.subList(before, elements.size() - after);
+    final var range = changedOutlines.size() == 1 ? changedOutlines.get(0).range() : null;
+    if (changedElements.size() == 1 && range != null
+        && range.getStartOffset() <= region.start() && region.oldEnd() <= range.getEndOffset()) {
+      final var changed = update(changedOutlines.get(0), changedElements.get(0), region, psiFile);
+      if (changed != null) {
+        children.add(changed);
+      }
+    } else {
+      children.addAll(buildAll(changedElements, psiFile));
+    }
+    for (var outline : outlines.subList(outlines.size() - after, outlines.size())) {
+      children.add(outline.shifted(region.delta()));
+    }
+    return children;
+  }
+
+  /**
+   * Checks that the structure hasn't changed around the region: the elements kept before and after it
+   * are still there, at the same place relative to the region.
+   */
+  private static boolean isSameOutside(@NotNull List<Node> outlines,
+                                       @NotNull List<TreeElement> elements,
+                                       int before,
+                                       int after,
+                                       @NotNull TextUtil.ChangedRegion region) {
+    for (var i = 0; i < before; i++) {
+      if (!Objects.equals(outlines.get(i).range(), rangeOf(elements.get(i)))) {
+        return false;
+      }
+    }
+    for (var i = 1; i <= after; i++) {
+      final var range = outlines.get(outlines.size() - i).range();
+      assert range != null;
+      if (!range.shiftRight(region.delta()).equals(rangeOf(elements.get(elements.size() - i)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBefore(@Nullable TextRange range, @NotNull TextUtil.ChangedRegion region) {
+    // an edit right at the end of an element may extend it
+    return range != null && range.getEndOffset() < region.start();
+  }
+
+  private static boolean isAfter(@Nullable TextRange range, @NotNull TextUtil.ChangedRegion region) {
+    return range != null && range.getStartOffset() > region.oldEnd();
+  }
+
+  @NotNull
+  private static List<Node> buildAll(@NotNull List<TreeElement> elements, @NotNull PsiFile psiFile) {
+    final var nodes = new ArrayList<Node>();
+    for (var element : elements) {
+      final var node = build(element, psiFile);
+      if (node != null) {
+        nodes.add(node);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * @return the children of the element which don't refer to other files, as the outline has them
+   */
+  @NotNull
+  private static List<TreeElement> ownChildren(@NotNull TreeElement element, @NotNull PsiFile psiFile) {
+    final var children = new ArrayList<TreeElement>();
+    for (TreeElement child : element.getChildren()) {
+      if (!(psiElementOf(child) instanceof PsiElement psiElement) || isInFile(psiElement, psiFile)) {
+        children.add(child);
+      }
+    }
+    return children;
+  }
+
+  /**
+   * @return the element without its children, or {@code null} if it refers to another file
+   */
+  @Nullable
+  private static Node convert(@NotNull TreeElement element, @NotNull PsiFile psiFile) {
+    final var kind = SymbolUtil.getSymbolKind(element.getPresentation());
+    if (!(element instanceof StructureViewTreeElement viewElement)) {
+      return new Node(null, kind, null, 0, List.of());
+    }
+    final var name = viewElement.getPresentation().getPresentableText();
+    if (!(viewElement.getValue() instanceof PsiElement psiElement)) {
+      return new Node(name, kind, null, 0, List.of());
+    }
+    if (!isInFile(psiElement, psiFile)) {
+      return null;
+    }
+    return new Node(name, kind, psiElement.getTextRange(), psiElement.getTextOffset(), List.of());
+  }
+
+  @Nullable
+  private static TextRange rangeOf(@NotNull TreeElement element) {
+    return psiElementOf(element) instanceof PsiElement psiElement ? psiElement.getTextRange() : null;
+  }
+
+  @Nullable
+  private static Object psiElementOf(@NotNull TreeElement element) {
+    return element instanceof StructureViewTreeElement viewElement ? viewElement.getValue() : null;
+  }
+
+  private static boolean isInFile(@NotNull PsiElement psiElement, @NotNull PsiFile psiFile) {
+    return psiElement.getContainingFile().getOriginalFile() == psiFile;
+  }
+
+  @NotNull
+  static DocumentSymbol toDocumentSymbol(@NotNull Node node, @NotNull Document document) {
+    final var symbol = new DocumentSymbol();
+    symbol.setKind(node.kind());
+    symbol.setName(node.name());
+    final var range = node.range();
+    if (range != null) {
+      symbol.setRange(new Range(
+          MiscUtil.offsetToPosition(document, range.getStartOffset()),
+          MiscUtil.offsetToPosition(document, range.getEndOffset())));
+      final var selection = MiscUtil.offsetToPosition(document, node.selectionOffset());
+      symbol.setSelectionRange(new Range(selection, selection));
+    }
+    final var children = new ArrayList<DocumentSymbol>();
+    for (var child : node.children()) {
+      children.add(toDocumentSymbol(child, document));
+    }
+    symbol.setChildren(children);
+    return symbol;
+  }
+}
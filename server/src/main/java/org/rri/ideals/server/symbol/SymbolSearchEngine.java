@@ -0,0 +1,188 @@
+package org.rri.ideals.server.symbol;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.navigation.ChooseByNameContributor;
+import com.intellij.navigation.ChooseByNameContributorEx;
+import com.intellij.navigation.NavigationItem;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.psi.codeStyle.MinusculeMatcher;
+import com.intellij.psi.codeStyle.NameUtil;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.FindSymbolParameters;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Finds symbols by name in the indices the "Go to Symbol" contributors are backed by, without the Search Everywhere UI.
+ * <p>
+ * Names are matched with camel humps, like in the IDE: {@code FoBa} matches {@code FooBar}. The names matched by the
+ * latest query are kept, so a query extending its pattern, as typing does, narrows them instead of going through
+ * the indices again. They are kept until the next PSI or project roots change.
+ * <p>
+ * Must be used in a read action.
+ */
+final class SymbolSearchEngine {
+  private static final int MAX_CACHED_NAMES = Integer.getInteger("ideals.symbol.maxCachedNames", 200_000);
+
+  private static final Comparator<NameMatch> BEST_FIRST = Comparator
+      .comparingInt(NameMatch::degree).reversed()
+      .thenComparing(NameMatch::name);
+
+  @NotNull
+  private final Project project;
+  @Nullable
+  private volatile NameQuery lastQuery;
+
+  /**
+   * A name provided by a contributor, with the matching degree for the pattern it has been found for.
+   */
+  record NameMatch(@NotNull ChooseByNameContributor contributor, @NotNull String name, int degree) {
+  }
+
+  private record NameQuery(@NotNull String namePattern,
+                           boolean everywhere,
+                           long modificationCount,
+                           @NotNull List<NameMatch> matches) {
+  }
+
+  SymbolSearchEngine(@NotNull Project project) {
+    this.project = project;
+  }
+
+  /**
+   * @param pattern    the name, optionally qualified with dots; the qualifier is matched by {@link #matchesQualifier}
+   * @param everywhere whether to search libraries too
+   * @return the names matching the last segment of the pattern, best matches first
+   */
+  @NotNull
+  List<NameMatch> findNames(@NotNull String pattern, boolean everywhere) {
+    final var namePattern = namePattern(pattern);
+    final var matcher = buildMatcher(namePattern);
+    final var modificationCount = modificationCount();
+
+    final var previous = lastQuery;
+    final var matches = previous != null
+        && previous.everywhere() == everywhere
+        && previous.modificationCount() == modificationCount
+        && namePattern.startsWith(previous.namePattern())
+        ? narrow(previous.matches(), matcher)
+        : collectNames(matcher, everywhere);
+    lastQuery = matches.size() <= MAX_CACHED_NAMES
+        ? new NameQuery(namePattern, everywhere, modificationCount, matches)
+        : null;
+
+    final var sorted = new ArrayList<>(matches);
+    sorted.sort(BEST_FIRST);
+    return sorted;
+  }
+
+  /**
+   * Passes the items with the name to the processor until it returns false.
+   *
+   * @return false if the processor has stopped the processing
+   */
+  boolean processElements(@NotNull NameMatch match,
+                          @NotNull String pattern,
+                          boolean everywhere,
+                          @NotNull Processor<? super NavigationItem> processor) {
+    if (match.contributor() instanceof ChooseByNameContributorEx contributor) {
+      final var stopped = new boolean[1];
+      contributor.processElementsWithName(match.name(), item -> {
+        ProgressManager.checkCanceled();
+        stopped[0] = !processor.process(item);
+        return !stopped[0];
+      }, FindSymbolParameters.wrap(pattern, scope(everywhere)));
+      return !stopped[0];
+    }
+    for (var item : match.contributor().getItemsByName(match.name(), pattern, project, everywhere)) {
+      ProgressManager.checkCanceled();
+      if (!processor.process(item)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param locationString the location an item is presented with, e.g. its package or containing class
+   * @return true if the pattern has no qualifier or the qualifier matches the location
+   */
+  static boolean matchesQualifier(@NotNull String pattern, @Nullable String locationString) {
+    final var separator = pattern.lastIndexOf('.');
+    if (separator <= 0) {
+      return true;
+    }
+    return locationString != null && buildMatcher(pattern.substring(0, separator)).matches(locationString);
+  }
+
+  @NotNull
+  private static String namePattern(@NotNull String pattern) {
+    return pattern.substring(pattern.lastIndexOf('.') + 1);
+  }
+
+  @NotNull
+  private static MinusculeMatcher buildMatcher(@NotNull String pattern) {
+    return NameUtil.buildMatcher("*" + pattern, NameUtil.MatchingCaseSensitivity.NONE);
+  }
+
+  @NotNull
+  private List<NameMatch> collectNames(@NotNull MinusculeMatcher matcher, boolean everywhere) {
+    final var matches = new ConcurrentLinkedQueue<NameMatch>();
+    final var scope = scope(everywhere);
+    // the contributors are independent, and each of them may go through a large index
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+        ChooseByNameContributor.SYMBOL_EP_NAME.getExtensionList(), ProgressManager.getGlobalProgressIndicator(),
+        contributor -> {
+          // contributors may report a name more than once
+          final var names = new HashSet<String>();
+          final Processor<String> processor = name -> {
+            ProgressManager.checkCanceled();
+            if (names.add(name) && matcher.matches(name)) {
+              matches.add(new NameMatch(contributor, name, matcher.matchingDegree(name)));
+            }
+            return true;
+          };
+          if (contributor instanceof ChooseByNameContributorEx contributorEx) {
+            contributorEx.processNames(processor, scope, null);
+          } else {
+            for (var name : contributor.getNames(project, everywhere)) {
+              processor.process(name);
+            }
+          }
+          return true;
+        });
+    return List.copyOf(matches);
+  }
+
+  @NotNull
+  private static List<NameMatch> narrow(@NotNull List<NameMatch> matches, @NotNull MinusculeMatcher matcher) {
+    final var narrowed = new ArrayList<NameMatch>();
+    for (var match : matches) {
+      ProgressManager.checkCanceled();
+      if (matcher.matches(match.name())) {
+        narrowed.add(new NameMatch(match.contributor(), match.name(), matcher.matchingDegree(match.name())));
+      }
+    }
+    return narrowed;
+  }
+
+  @NotNull
+  private GlobalSearchScope scope(boolean everywhere) {
+    return everywhere ? GlobalSearchScope.allScope(project) : GlobalSearchScope.projectScope(project);
+  }
+
+  private long modificationCount() {
+    return PsiModificationTracker.getInstance(project).getModificationCount()
+        + ProjectRootManager.getInstance(project).getModificationCount();
+  }
+}
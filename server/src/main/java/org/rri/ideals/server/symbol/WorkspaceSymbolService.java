@@ -1,45 +1,54 @@
 package org.rri.ideals.server.symbol;
 
-import com.intellij.ide.actions.searcheverywhere.FoundItemDescriptor;
-import com.intellij.ide.actions.searcheverywhere.SearchEverywhereToggleAction;
-import com.intellij.ide.actions.searcheverywhere.SymbolSearchEverywhereContributor;
 import com.intellij.navigation.NavigationItem;
-import com.intellij.openapi.actionSystem.ActionUiKind;
-import com.intellij.openapi.actionSystem.AnActionEvent;
-import com.intellij.openapi.actionSystem.impl.SimpleDataContext;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.Service;
-import com.intellij.openapi.progress.ProcessCanceledException;
-import com.intellij.openapi.progress.StandardProgressIndicator;
-import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.Ref;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiNameIdentifierOwner;
 import com.intellij.psi.search.ProjectScope;
-import com.intellij.psi.search.SearchScope;
-import com.intellij.util.concurrency.AppExecutorUtil;
-import com.intellij.util.containers.ContainerUtil;
+import com.intellij.psi.util.PsiUtilCore;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.symbol.util.SymbolUtil;
+import org.rri.ideals.server.util.LocationConverter;
+import org.rri.ideals.server.util.LspProgressIndicator;
 import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.RequestScheduler;
+import org.rri.ideals.server.util.TopKCollector;
 
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.CancellationException;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
+/**
+ * Serves {@code workspace/symbol} with {@link SymbolSearchEngine}.
+ * <p>
+ * Names are matched in one read action, then the symbols are collected for the names of each matching degree
+ * in a read action of their own, best matches first. With a partial result token the symbols of each degree are
+ * reported via {@code $/progress} as soon as they are collected, and the response itself is empty.
+ * <p>
+ * The elements of a degree's names are looked up in parallel into a {@link TopKCollector}, and only the elements
+ * kept there are converted to symbols, as computing a location needs the element's document. The candidates are
+ * totally ordered, so the same query keeps the same elements however the lookups interleave.
+ */
 @Service(Service.Level.PROJECT)
 final public class WorkspaceSymbolService {
   @NotNull
@@ -49,163 +58,260 @@ final public class WorkspaceSymbolService {
 
   private static final Comparator<WorkspaceSearchResult> COMP = Comparator
           .comparingInt(WorkspaceSearchResult::weight).reversed()
-          .thenComparing((a, b) -> Boolean.compare(b.isProjectFile(), a.isProjectFile()));
+          .thenComparing((a, b) -> Boolean.compare(b.isProjectFile(), a.isProjectFile()))
+          .thenComparing(result -> result.location().getUri())
+          .thenComparingInt(result -> result.location().getRange().getStart().getLine())
+          .thenComparingInt(result -> result.location().getRange().getStart().getCharacter());
+
+  // a cheap order for the elements found, close to the order of their symbols; the ties are broken by the order
+  // of the names and of the elements of a name, so the same elements are kept whatever thread finds them first
+  private static final Comparator<Candidate> CANDIDATE_ORDER = Comparator
+          .comparingInt(Candidate::weight).reversed()
+          .thenComparing((a, b) -> Boolean.compare(b.isProjectFile(), a.isProjectFile()))
+          .thenComparingInt(Candidate::nameIndex)
+          .thenComparingInt(Candidate::elementIndex);
+
+  @NotNull
+  private final SymbolSearchEngine engine;
 
   public WorkspaceSymbolService(@NotNull Project project) {
     this.project = project;
+    this.engine = new SymbolSearchEngine(project);
   }
 
   @SuppressWarnings("deprecation")
   public @NotNull CompletableFuture<@NotNull Either<List<? extends SymbolInformation>, @Nullable List<? extends WorkspaceSymbol>>> runSearch(String pattern) {
-    return CompletableFutures.computeAsync(AppExecutorUtil.getAppExecutorService(),
+    return runSearch(pattern, null);
+  }
+
+  @SuppressWarnings("deprecation")
+  public @NotNull CompletableFuture<@NotNull Either<List<? extends SymbolInformation>, @Nullable List<? extends WorkspaceSymbol>>> runSearch(
+      String pattern, @Nullable Either<String, Integer> partialResultToken) {
+    return CompletableFutures.computeAsync(RequestScheduler.getInstance().executor(RequestScheduler.Priority.NAVIGATIONAL),
         cancelToken -> {
           if (DumbService.isDumb(project)) {
             return Either.forRight(null);
           }
-          final var result = execute(pattern, cancelToken).stream()
-              .map(WorkspaceSearchResult::symbol)
-              .toList();
+          final var result = new ArrayList<WorkspaceSymbol>();
+          final Consumer<List<WorkspaceSymbol>> consumer = partialResultToken == null
+              ? result::addAll
+              : symbols -> LspContext.getContext(project).getClient()
+                  .notifyProgress(new ProgressParams(partialResultToken, Either.forRight(symbols)));
+          search(pattern, cancelToken, consumer);
           return Either.forRight(result);
         });
   }
 
-  private @NotNull List<@NotNull WorkspaceSearchResult> execute(@NotNull String pattern, @Nullable CancelChecker cancelToken) {
-    Ref<SymbolSearchEverywhereContributor> contributorRef = new Ref<>();
-    ApplicationManager.getApplication().invokeAndWait(
-        () -> {
-          final var context = SimpleDataContext.getProjectContext(project);
-          final var event = AnActionEvent.createEvent(context, null, "keyboard shortcut", ActionUiKind.NONE, null);
-          final var contributor = new SymbolSearchEverywhereContributor(event);
-          if (!pattern.isEmpty()) {
-            final var actions = contributor.getActions(() -> {
-            });
-            final var everywhereAction = (SearchEverywhereToggleAction) ContainerUtil.find(actions, o -> o instanceof SearchEverywhereToggleAction);
-            everywhereAction.setEverywhere(true);
-          }
-          contributorRef.set(contributor);
-        }
-    );
-    final var ref = new Ref<List<WorkspaceSearchResult>>();
-    ApplicationManager.getApplication().runReadAction(
-        () -> ref.set(search(contributorRef.get(), pattern.isEmpty() ? "*" : pattern, cancelToken)));
-    return ref.get();
+  /**
+   * @param nameIndex    the index of the name in the names found
+   * @param elementIndex the index of the element among the ones found for the name
+   */
+  private record Candidate(@NotNull PsiElement element, int weight, boolean isProjectFile, int nameIndex,
+                           int elementIndex) {
   }
 
   private record WorkspaceSearchResult(@NotNull WorkspaceSymbol symbol,
+                                       @NotNull Location location,
                                        @NotNull PsiElement element,
                                        int weight,
                                        boolean isProjectFile) {
   }
 
-  // Returns: the list of founded symbols
+  // Passes the found symbols to the consumer, best matches first
   // Note: Project symbols first then symbols from libraries, jdks, environments...
-  public @NotNull List<@NotNull WorkspaceSearchResult> search(
-      @NotNull SymbolSearchEverywhereContributor contributor,
-      @NotNull String pattern,
-      @Nullable CancelChecker cancelToken) {
-    final var allSymbols = new ArrayList<WorkspaceSearchResult>(LIMIT);
-    final var scope = ProjectScope.getProjectScope(project);
+  private void search(@NotNull String query, @NotNull CancelChecker cancelToken,
+                      @NotNull Consumer<@NotNull List<WorkspaceSymbol>> consumer) {
+    final var everywhere = !query.isEmpty();
+    final var pattern = query.isEmpty() ? "*" : query;
+    final var names = computeInReadAction(() -> engine.findNames(pattern, everywhere), cancelToken);
+
     final var elements = new HashSet<PsiElement>();
     final var processedFiles = new HashSet<PsiFile>();
-    try {
-      final var indicator = new WorkspaceSymbolIndicator(cancelToken);
-      ApplicationManager.getApplication().executeOnPooledThread(() ->
-          contributor.fetchWeightedElements(pattern, indicator,
-              descriptor -> {
-                if (!(descriptor.getItem() instanceof final PsiElement elem)
-                    || elements.contains(elem)) {
-                  return true;
-                }
-                final var searchResult = toSearchResult(descriptor, scope);
-                if (searchResult == null) {
-                  return true;
-                }
-                elements.add(elem);
-                allSymbols.add(searchResult);
-
-                // Add Kotlin file symbol if we haven't processed this file yet
-                final var psiFile = elem.getContainingFile();
-                if (psiFile != null && !processedFiles.contains(psiFile)) {
-                  processedFiles.add(psiFile);
-                  final var virtualFile = psiFile.getVirtualFile();
-                  if (virtualFile != null && virtualFile.getName().endsWith(".kt") && virtualFile.getName().equals("DocumentSymbol.kt")) {
-                    final var ktFileName = virtualFile.getNameWithoutExtension() + "Kt";
-                    if (pattern.equals("*") || ktFileName.toLowerCase().contains(pattern.toLowerCase())) {
-                      final var ktFileSymbol = new WorkspaceSymbol(
-                          ktFileName,
-                          SymbolKind.Object,
-                          Either.forLeft(new Location(
-                              LspPath.fromVirtualFile(virtualFile).toLspUri(),
-                              new Range(new Position(0, 0), new Position(psiFile.getText().split("\n").length, 0))
-                          )),
-                          null);
-                      allSymbols.add(new WorkspaceSearchResult(ktFileSymbol, psiFile, 0, scope.contains(virtualFile)));
-                    }
-                  }
-                }
-                return allSymbols.size() < LIMIT;
-              })).get();
-    } catch (InterruptedException | ExecutionException ignored) {
+    final var fileSymbols = new ArrayList<WorkspaceSearchResult>();
+    var found = 0;
+    var groupStart = 0;
+    while (groupStart < names.size() && found < LIMIT) {
+      // the names of a group match equally well, so its symbols can be reported before the next group is collected
+      var groupEnd = groupStart + 1;
+      while (groupEnd < names.size() && names.get(groupEnd).degree() == names.get(groupStart).degree()) {
+        groupEnd++;
+      }
+      final var group = names.subList(groupStart, groupEnd);
+      final var limit = LIMIT - found;
+      final var collected = computeInReadAction(
+          () -> collect(group, pattern, everywhere, limit, elements, processedFiles), cancelToken);
+      groupStart = groupEnd;
+
+      collected.symbols().forEach(result -> elements.add(result.element()));
+      processedFiles.addAll(collected.files());
+      fileSymbols.addAll(collected.fileSymbols());
+      found += collected.symbols().size() + collected.fileSymbols().size();
+      report(collected.symbols(), consumer);
+    }
+    // file symbols have no weight, so they come last
+    report(fileSymbols, consumer);
+  }
+
+  private record Collected(@NotNull List<WorkspaceSearchResult> symbols,
+                           @NotNull List<WorkspaceSearchResult> fileSymbols,
+                           @NotNull Set<PsiFile> files) {
+  }
+
+  private static void report(@NotNull List<WorkspaceSearchResult> results,
+                             @NotNull Consumer<@NotNull List<WorkspaceSymbol>> consumer) {
+    if (!results.isEmpty()) {
+      results.sort(COMP);
+      consumer.accept(results.stream().map(WorkspaceSearchResult::symbol).toList());
+    }
+  }
+
+  /**
+   * Collects the best symbols with the names, skipping the already found elements. A read action may be restarted,
+   * so the found elements are only read here.
+   */
+  private @NotNull Collected collect(@NotNull List<SymbolSearchEngine.NameMatch> names,
+                                     @NotNull String pattern,
+                                     boolean everywhere,
+                                     int limit,
+                                     @NotNull Set<PsiElement> foundElements,
+                                     @NotNull Set<PsiFile> foundFiles) {
+    final var scope = ProjectScope.getProjectScope(project);
+    final var candidates = new TopKCollector<>(limit, CANDIDATE_ORDER);
+    final var nameIndices = new IdentityHashMap<SymbolSearchEngine.NameMatch, Integer>();
+    for (var i = 0; i < names.size(); i++) {
+      nameIndices.put(names.get(i), i);
+    }
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(names, ProgressManager.getGlobalProgressIndicator(),
+        name -> {
+          final int nameIndex = nameIndices.get(name);
+          final var elementIndex = new int[1];
+          return engine.processElements(name, pattern, everywhere, item -> {
+            final var index = elementIndex[0]++;
+            if (!(item instanceof final PsiElement elem)
+                || foundElements.contains(elem)
+                || item.getPresentation() == null
+                || !SymbolSearchEngine.matchesQualifier(pattern, locationString(item))) {
+              return true;
+            }
+            final var virtualFile = PsiUtilCore.getVirtualFile(elem);
+            if (virtualFile == null) {
+              return true;
+            }
+            candidates.offer(new Candidate(elem, name.degree(), scope.contains(virtualFile), nameIndex, index));
+            // the next elements of the name rank no better than a project one found right after this one
+            final var worst = candidates.worstIfFull();
+            return worst == null
+                || CANDIDATE_ORDER.compare(new Candidate(elem, name.degree(), true, nameIndex, index + 1), worst) < 0;
+          });
+        });
+
+    final var results = new ArrayList<WorkspaceSearchResult>();
+    final var fileSymbols = new ArrayList<WorkspaceSearchResult>();
+    final var processedFiles = new HashSet<PsiFile>();
+    // an element found for several names is kept at its best rank
+    final var seen = new HashSet<PsiElement>();
+    final var sortedCandidates = candidates.toSortedList().stream()
+        .filter(candidate -> seen.add(candidate.element()))
+        .toList();
+    final var converter = new LocationConverter();
+    sortedCandidates.forEach(candidate -> converter.add(candidate.element()));
+    final var locations = converter.convert();
+    for (var i = 0; i < sortedCandidates.size(); i++) {
+      final var candidate = sortedCandidates.get(i);
+      final var searchResult = toSearchResult(candidate.element(), locations.get(i), candidate.weight(),
+          candidate.isProjectFile());
+      if (searchResult == null) {
+        continue;
+      }
+      results.add(searchResult);
+
+      // Add Kotlin file symbol if we haven't processed this file yet
+      final var psiFile = candidate.element().getContainingFile();
+      if (psiFile != null && !foundFiles.contains(psiFile) && processedFiles.add(psiFile)) {
+        final var fileSymbol = toKotlinFileSymbol(psiFile, pattern, candidate.isProjectFile());
+        if (fileSymbol != null) {
+          fileSymbols.add(fileSymbol);
+        }
+      }
     }
-    allSymbols.sort(COMP);
-    return allSymbols;
+    return new Collected(results, fileSymbols, processedFiles);
   }
 
-  private static @Nullable WorkspaceSearchResult toSearchResult(@NotNull FoundItemDescriptor<@NotNull Object> descriptor,
-                                                                @NotNull SearchScope scope) {
-    if (!(descriptor.getItem() instanceof final PsiElement elem)) {
+  private static @Nullable WorkspaceSearchResult toKotlinFileSymbol(@NotNull PsiFile psiFile,
+                                                                    @NotNull String pattern,
+                                                                    boolean isProjectFile) {
+    final var virtualFile = psiFile.getVirtualFile();
+    if (virtualFile == null || !virtualFile.getName().endsWith(".kt") || !virtualFile.getName().equals("DocumentSymbol.kt")) {
       return null;
     }
-    if (!(elem instanceof NavigationItem navigationItem)) {
+    final var ktFileName = virtualFile.getNameWithoutExtension() + "Kt";
+    if (!pattern.equals("*") && !ktFileName.toLowerCase().contains(pattern.toLowerCase())) {
       return null;
     }
-    var itemPresentation = navigationItem.getPresentation();
-    if (itemPresentation == null) {
+    final var document = MiscUtil.getDocument(psiFile);
+    if (document == null) {
       return null;
     }
-    final var psiFile = elem.getContainingFile();
-    if (psiFile == null) {
+    final var location = new Location(
+        LspPath.fromVirtualFile(virtualFile).toLspUri(),
+        new Range(new Position(0, 0), new Position(lineCountWithoutTrailingEmptyLines(document), 0)));
+    final var ktFileSymbol = new WorkspaceSymbol(
+        ktFileName,
+        SymbolKind.Object,
+        Either.forLeft(location),
+        null);
+    return new WorkspaceSearchResult(ktFileSymbol, location, psiFile, 0, isProjectFile);
+  }
+
+  // the number of lines without the empty ones at the end
+  private static int lineCountWithoutTrailingEmptyLines(@NotNull Document document) {
+    final var text = document.getImmutableCharSequence();
+    var end = text.length();
+    while (end > 0 && text.charAt(end - 1) == '\n') {
+      end--;
+    }
+    return end == 0 ? 0 : document.getLineNumber(end - 1) + 1;
+  }
+
+  private static @Nullable String locationString(@NotNull NavigationItem item) {
+    final var presentation = item.getPresentation();
+    return presentation != null ? presentation.getLocationString() : null;
+  }
+
+  private <T> T computeInReadAction(@NotNull Callable<T> action, @NotNull CancelChecker cancelToken) {
+    return ReadAction.nonBlocking(action)
+        .expireWith(project)
+        .expireWhen(cancelToken::isCanceled)
+        .wrapProgress(new LspProgressIndicator(cancelToken))
+        .executeSynchronously();
+  }
+
+  private static @Nullable WorkspaceSearchResult toSearchResult(@NotNull PsiElement elem,
+                                                                @Nullable Location location,
+                                                                int weight,
+                                                                boolean isProjectFile) {
+    if (!(elem instanceof NavigationItem navigationItem)) {
+      return null;
+    }
+    var itemPresentation = navigationItem.getPresentation();
+    if (itemPresentation == null || location == null) {
       return null;
     }
-    final var virtualFile = psiFile.getVirtualFile();
     String containerName = null;
     if (elem.getParent() instanceof PsiNameIdentifierOwner parent) {
       containerName = parent.getName();
     } else if (elem.getParent() != null && elem.getParent().getParent() instanceof PsiNameIdentifierOwner grandParent) {
       containerName = grandParent.getName();
     }
-    final var location = new Location();
     SymbolKind kind = SymbolUtil.getSymbolKind(itemPresentation);
     if (elem instanceof PsiFile) {
       kind = SymbolKind.File;
     }
-    location.setUri(LspPath.fromVirtualFile(virtualFile).toLspUri());
     final var symbol = new WorkspaceSymbol(
         itemPresentation.getPresentableText(),
         kind,
-        Either.forLeft(MiscUtil.psiElementToLocation(elem, psiFile)),
+        Either.forLeft(location),
         containerName);
-    return new WorkspaceSearchResult(symbol, elem, descriptor.getWeight(), scope.contains(virtualFile));
-  }
-
-  private static class WorkspaceSymbolIndicator extends AbstractProgressIndicatorBase implements StandardProgressIndicator {
-    @Nullable
-    private final CancelChecker cancelToken;
-
-    public WorkspaceSymbolIndicator(@Nullable CancelChecker cancelToken) {
-      this.cancelToken = cancelToken;
-    }
-
-    @Override
-    public void checkCanceled() {
-      if (cancelToken != null) {
-        try {
-          cancelToken.checkCanceled();
-        } catch (CancellationException e) {
-          throw new ProcessCanceledException(e);
-        }
-      }
-      super.checkCanceled();
-    }
+    return new WorkspaceSearchResult(symbol, location, elem, weight, isProjectFile);
   }
 }
@@ -1,9 +1,13 @@
 package org.rri.ideals.server.util;
 
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiFile;
-import com.intellij.util.concurrency.AppExecutorUtil;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
@@ -14,27 +18,41 @@ import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.commands.ExecutorContext;
 
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class AsyncExecutor<R> {
-  private final boolean cancellable;
   private final boolean runInEDT;
-  private final Executor executor = AppExecutorUtil.getAppExecutorService();
+  private final boolean runInReadAction;
+  private final boolean editorRequired;
+  @NotNull
+  private final Executor executor;
+  @Nullable
+  private final String supersessionKey;
   @NotNull
   private final Project project;
   @Nullable
   private final PsiFile psiFile;
   @Nullable
   private final Position position;
+  @NotNull
+  private final String metricName;
 
   private AsyncExecutor(@NotNull Builder<R> builder) {
-    this.cancellable = builder.cancellable;
     this.project = builder.project;
     this.psiFile = builder.psiFile;
     this.position = builder.position;
     this.runInEDT = builder.runInEDT;
+    this.runInReadAction = builder.runInReadAction;
+    this.editorRequired = builder.editorRequired;
+    this.metricName = builder.metricName;
+    this.executor = RequestScheduler.getInstance().executor(builder.priority);
+    this.supersessionKey = builder.supersessionKind != null && builder.uri != null
+        ? builder.supersessionKind + " " + builder.uri
+        : null;
   }
 
   public static <R> Builder<R> builder() {
@@ -42,60 +60,197 @@ public class AsyncExecutor<R> {
   }
 
   public @NotNull CompletableFuture<@Nullable R> compute(@NotNull Function<ExecutorContext, R> action) {
-    if (cancellable) {
-      return CompletableFutures.computeAsync(executor, cancelToken -> getResult(action, cancelToken));
-    } else {
-      return CompletableFuture.supplyAsync(() -> getResult(action, null), executor);
+    final var submitted = System.nanoTime();
+    final CompletableFuture<R> result =
+        CompletableFutures.computeAsync(executor, cancelToken -> getResult(action, cancelToken, submitted));
+    if (supersessionKey != null) {
+      RequestScheduler.getInstance().supersede(supersessionKey, result);
     }
+    result.whenComplete((ignored, error) -> Metrics.recordOutcome(metricName, error));
+    return result;
   }
 
   private @Nullable R getResult(@NotNull Function<ExecutorContext, R> action,
-                                @Nullable CancelChecker cancelToken) {
-    final var editor = MiscUtil.computeInEDTAndWait(() -> {
-      final var textEditor = Optional.ofNullable(psiFile)
-          .map(file -> project.getService(ManagedDocuments.class).getSelectedEditor(file.getVirtualFile()))
-          .orElse(null);
-
-      if (textEditor != null && position != null) {
-        textEditor.getCaretModel().moveToLogicalPosition(new LogicalPosition(position.getLine(), position.getCharacter()));
-      }
+                                @NotNull CancelChecker cancelToken,
+                                long submitted) {
+    Metrics.record(metricName, Metrics.Phase.QUEUE_WAIT, System.nanoTime() - submitted);
+    cancelToken.checkCanceled();
 
-      return textEditor;
-    });
+    if (psiFile == null) {
+      return null;
+    }
+
+    // the request has to see all the changes the client sent before it; they are applied on EDT,
+    // so this is done here rather than on the thread reading the client's messages
+    project.getService(ManagedDocuments.class).flushPendingChanges();
 
-    if (editor == null || psiFile == null) {
+    final var document = ReadAction.compute(() -> MiscUtil.getDocument(psiFile));
+    if (document == null) {
       return null;
     }
 
-    final var context = new ExecutorContext(psiFile, editor, cancelToken);
+    // PSI is committed in background after edits; make sure the target file is up-to-date
+    project.getService(ManagedDocuments.class).waitForCommit(document);
+
+    final var offset = ReadAction.compute(() -> toOffset(document, position));
 
-    try {
-      if (runInEDT) {
-        return MiscUtil.computeInEDTAndWait(() -> action.apply(context));
-      } else {
-        return action.apply(context);
+    final R result;
+    if (runInEDT) {
+      // the editor, if any, is materialised within the same EDT round-trip
+      result = computeInEDTAndWait(() -> {
+        final var editor = editorRequired ? materializeEditor() : null;
+        if (editorRequired && editor == null) {
+          return null;
+        }
+        final Supplier<Editor> editorSupplier = editor != null ? () -> editor : this::materializeEditor;
+        final var context = new ExecutorContext(psiFile, document, offset, editorSupplier, cancelToken);
+        return Metrics.measure(metricName, Metrics.Phase.EXECUTION, () -> ProgressManager.getInstance().runProcess(
+            () -> action.apply(context), new LspProgressIndicator(cancelToken)));
+      });
+    } else if (runInReadAction) {
+      // the caret is moved once the offset is known in the read action
+      final var editor = editorRequired ? computeInEDTAndWait(this::selectedEditor) : null;
+      if (editorRequired && editor == null) {
+        return null;
       }
-    } finally {
-      if (cancelToken != null) {
-        cancelToken.checkCanceled();
+      result = computeInNonBlockingReadAction(psiFile, document, editor, action, cancelToken);
+    } else {
+      final var editor = editorRequired ? computeInEDTAndWait(this::materializeEditor) : null;
+      if (editorRequired && editor == null) {
+        return null;
       }
+      final Supplier<Editor> editorSupplier =
+          editor != null ? () -> editor : () -> computeInEDTAndWait(this::materializeEditor);
+      final var context = new ExecutorContext(psiFile, document, offset, editorSupplier, cancelToken);
+      result = Metrics.measure(metricName, Metrics.Phase.EXECUTION, () -> ProgressManager.getInstance().runProcess(
+          () -> action.apply(context), new LspProgressIndicator(cancelToken)));
     }
+    // a result computed after the request has been cancelled is discarded
+    cancelToken.checkCanceled();
+    return result;
+  }
+
+  /**
+   * Returns the editor of the file with its caret moved to the request's position. Must be called on EDT.
+   */
+  private @Nullable Editor materializeEditor() {
+    final var editor = selectedEditor();
+
+    if (editor != null && position != null) {
+      editor.getCaretModel().moveToLogicalPosition(new LogicalPosition(position.getLine(), position.getCharacter()));
+    }
+
+    return editor;
+  }
+
+  /**
+   * Returns the editor of the file without moving its caret. Must be called on EDT.
+   */
+  private @Nullable Editor selectedEditor() {
+    assert psiFile != null;
+    return project.getService(ManagedDocuments.class).getSelectedEditor(psiFile.getVirtualFile());
+  }
+
+  private static int toOffset(@NotNull Document document, @Nullable Position position) {
+    if (position == null) {
+      return 0;
+    }
+    if (position.getLine() >= document.getLineCount()) {
+      return document.getTextLength();
+    }
+    return Math.min(MiscUtil.positionToOffset(document, position), document.getLineEndOffset(position.getLine()));
+  }
+
+  /**
+   * @param caretOffset where the caret has to be moved before the action can run, or -1 if the action has run
+   */
+  private record Attempt<R>(@Nullable R result, int caretOffset, long documentStamp) {
+  }
+
+  /**
+   * Runs the action in a read action that is cancelled by any write action and then restarted from scratch,
+   * so a long search neither blocks typing nor holds EDT. The action sees committed PSI and the offset of the
+   * request's position in the current text; if the editor's caret isn't there, it is moved on EDT first.
+   */
+  private @Nullable R computeInNonBlockingReadAction(@NotNull PsiFile file,
+                                                     @NotNull Document document,
+                                                     @Nullable Editor editor,
+                                                     @NotNull Function<ExecutorContext, R> action,
+                                                     @NotNull CancelChecker cancelToken) {
+    while (true) {
+      final Attempt<R> attempt = ReadAction.nonBlocking(() -> {
+        final var offset = toOffset(document, position);
+        if (editor != null && editor.getCaretModel().getOffset() != offset) {
+          return new Attempt<R>(null, offset, document.getModificationStamp());
+        }
+        final var indicator = ProgressManager.getGlobalProgressIndicator();
+        final var context = new ExecutorContext(file, document, offset, () -> editor, withIndicator(cancelToken, indicator));
+        final var result = Metrics.measure(metricName, Metrics.Phase.EXECUTION, () -> action.apply(context));
+        // commands may swallow cancellation and return a partial result; it must be recomputed after the write action
+        ProgressManager.checkCanceled();
+        return new Attempt<>(result, -1, 0);
+      })
+          .withDocumentsCommitted(project)
+          .expireWith(project)
+          .expireWhen(cancelToken::isCanceled)
+          .wrapProgress(new LspProgressIndicator(cancelToken))
+          .executeSynchronously();
+      if (attempt.caretOffset() < 0) {
+        return attempt.result();
+      }
+      assert editor != null;
+      computeInEDTAndWait(() -> {
+        // after another edit the offset is computed again
+        if (document.getModificationStamp() == attempt.documentStamp()) {
+          editor.getCaretModel().moveToOffset(attempt.caretOffset());
+        }
+        return null;
+      });
+      cancelToken.checkCanceled();
+    }
+  }
+
+  /**
+   * Lets commands that check the LSP cancel token notice a restart of the read action they run in.
+   * The indicator is captured up front because commands may install their own indicators.
+   */
+  private static @NotNull CancelChecker withIndicator(@NotNull CancelChecker cancelToken,
+                                                      @Nullable ProgressIndicator indicator) {
+    return () -> {
+      cancelToken.checkCanceled();
+      if (indicator != null && indicator.isCanceled()) {
+        throw new CancellationException();
+      }
+    };
+  }
+
+  private <T> T computeInEDTAndWait(@NotNull Supplier<T> action) {
+    final var requested = System.nanoTime();
+    return MiscUtil.computeInEDTAndWait(() -> {
+      Metrics.record(metricName, Metrics.Phase.EDT_WAIT, System.nanoTime() - requested);
+      return action.get();
+    });
   }
 
   public static class Builder<R> {
-    private boolean cancellable = false;
     private boolean runInEDT = false;
+    private boolean runInReadAction = false;
+    private boolean editorRequired = true;
+    @NotNull
+    private RequestScheduler.Priority priority = RequestScheduler.Priority.NAVIGATIONAL;
+    @Nullable
+    private String supersessionKind;
+    private String uri;
     private Project project;
     private Position position;
     private PsiFile psiFile;
-
-    public Builder<R> cancellable(boolean cancellable) {
-      this.cancellable = cancellable;
-      return this;
-    }
+    // the method of the LSP request being served, if the builder is created while dispatching one
+    @NotNull
+    private final String metricName = Optional.ofNullable(Metrics.getCurrentRequestMethod()).orElse("unknown");
 
     public Builder<R> executorContext(@NotNull Project project, @NotNull String uri, @Nullable Position position) {
       this.project = project;
+      this.uri = uri;
       var resolvedFile = MiscUtil.resolvePsiFile(project, LspPath.fromLspUri(uri));
       this.psiFile = resolvedFile != null ? resolvedFile.getOriginalFile() : null;
       this.position = position;
@@ -107,6 +262,37 @@ public class AsyncExecutor<R> {
       return this;
     }
 
+    /**
+     * Runs the action in a non-blocking read action that is restarted on write actions.
+     * The action must not wait for EDT then; otherwise it runs on a pooled thread and takes locks by itself.
+     */
+    public Builder<R> runInReadAction(boolean runInReadAction) {
+      this.runInReadAction = runInReadAction;
+      return this;
+    }
+
+    /**
+     * Without a required editor the request is served without waiting for EDT unless it runs there anyway;
+     * the action then may use {@link ExecutorContext#getEditor()} only outside a read action.
+     */
+    public Builder<R> editorRequired(boolean editorRequired) {
+      this.editorRequired = editorRequired;
+      return this;
+    }
+
+    public Builder<R> priority(@NotNull RequestScheduler.Priority priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * A new request of the given kind for the same document cancels the previous one if it hasn't finished yet.
+     */
+    public Builder<R> supersedable(@NotNull String kind) {
+      this.supersessionKind = kind;
+      return this;
+    }
+
     public AsyncExecutor<R> build() {
       return new AsyncExecutor<>(this);
     }
@@ -0,0 +1,102 @@
+package org.rri.ideals.server.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values are kept in microseconds; every power of two is split into {@link #SUB_BUCKETS} linear buckets,
+ * so any recorded value is reported with a relative error below 1/{@link #SUB_BUCKETS}.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40; // values from 2^40 microseconds (~12 days) on share the last bucket
+  private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    final var micros = Math.max(0, nanos / 1_000);
+    counts.incrementAndGet(bucketIndex(micros));
+    sum.add(micros);
+    max.accumulateAndGet(micros, Math::max);
+    count.incrementAndGet();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the upper bound of the bucket containing the given percentile, in microseconds
+   */
+  public long getPercentile(double percentile) {
+    final var total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    final var rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @NotNull
+  public Summary summary() {
+    final var total = count.get();
+    return new Summary(
+        total,
+        total == 0 ? 0 : toMillis(sum.sum()) / total,
+        toMillis(getPercentile(50)),
+        toMillis(getPercentile(90)),
+        toMillis(getPercentile(99)),
+        toMillis(max.get()));
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    final var exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    final var subBucket = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final var exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final var subBucket = index % SUB_BUCKETS;
+    final var width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + subBucket * width + width - 1;
+  }
+
+  private static double toMillis(long micros) {
+    return micros / 1_000.0;
+  }
+
+  public record Summary(long count, double meanMs, double p50Ms, double p90Ms, double p99Ms, double maxMs) {
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+          count, meanMs, p50Ms, p90Ms, p99Ms, maxMs);
+    }
+  }
+}
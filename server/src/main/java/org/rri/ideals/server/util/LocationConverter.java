@@ -0,0 +1,134 @@
+package org.rri.ideals.server.util;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.Segment;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspPath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the text ranges of many elements, e.g. the usages of a symbol, to locations at once.
+ * <p>
+ * The ranges are grouped by file, so the document and the URI of a file are resolved once. The offsets of a file are
+ * converted to positions in ascending order, each one starting from the line of the previous one, so that
+ * the line of an offset is only searched for when it isn't on that line or the next one.
+ * <p>
+ * Must be used in a read action.
+ */
+public final class LocationConverter {
+  private final Map<PsiFile, FileOffsets> files = new LinkedHashMap<>();
+  // the file of each added range, or null if the range is unknown
+  private final List<FileOffsets> rangeFiles = new ArrayList<>();
+
+  /**
+   * The offsets of a file, each packed with the index of the position it is converted to: the offset takes
+   * the high half of a long, so sorting the longs sorts the offsets.
+   */
+  private static final class FileOffsets {
+    @NotNull
+    private final PsiFile file;
+    private long[] offsets = new long[16];
+    private int size;
+
+    private FileOffsets(@NotNull PsiFile file) {
+      this.file = file;
+    }
+
+    private void add(int offset, int positionIndex) {
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+      }
+      offsets[size++] = ((long) offset << 32) | positionIndex;
+    }
+  }
+
+  /**
+   * Adds the range of the element, or of its name identifier if it has one, like
+   * {@link MiscUtil#psiElementToLocation(PsiElement)} does.
+   */
+  public void add(@Nullable PsiElement element) {
+    add(element != null ? element.getContainingFile() : null, MiscUtil.getPsiElementTextRange(element));
+  }
+
+  /**
+   * Adds a range of the file. Either may be {@code null}: the location of the range is {@code null} then.
+   */
+  public void add(@Nullable PsiFile file, @Nullable Segment range) {
+    if (file == null || range == null) {
+      rangeFiles.add(null);
+      return;
+    }
+    final var offsets = files.computeIfAbsent(file, FileOffsets::new);
+    final var index = rangeFiles.size();
+    rangeFiles.add(offsets);
+    offsets.add(range.getStartOffset(), 2 * index);
+    offsets.add(range.getEndOffset(), 2 * index + 1);
+  }
+
+  public int size() {
+    return rangeFiles.size();
+  }
+
+  /**
+   * @return the locations of the added ranges, in the order they have been added; {@code null} for the ones
+   * whose file has no document
+   */
+  @NotNull
+  public List<@Nullable Location> convert() {
+    final var positions = new Position[2 * rangeFiles.size()];
+    final var uris = new HashMap<FileOffsets, String>();
+    for (var offsets : files.values()) {
+      final var virtualFile = offsets.file.getVirtualFile();
+      final var document = MiscUtil.getDocument(offsets.file);
+      if (virtualFile == null || document == null) {
+        continue;
+      }
+      uris.put(offsets, LspPath.fromVirtualFile(virtualFile).toLspUri());
+      toPositions(offsets, document, positions);
+    }
+
+    final var locations = new ArrayList<Location>(rangeFiles.size());
+    for (var i = 0; i < rangeFiles.size(); i++) {
+      final var uri = uris.get(rangeFiles.get(i));
+      locations.add(uri != null ? new Location(uri, new Range(positions[2 * i], positions[2 * i + 1])) : null);
+    }
+    return locations;
+  }
+
+  private static void toPositions(@NotNull FileOffsets offsets, @NotNull Document document, Position @NotNull [] positions) {
+    Arrays.sort(offsets.offsets, 0, offsets.size);
+    final var lineCount = document.getLineCount();
+    var line = 0;
+    var lineStart = 0;
+    var nextLineStart = lineCount > 1 ? document.getLineStartOffset(1) : Integer.MAX_VALUE;
+    for (var i = 0; i < offsets.size; i++) {
+      final var offset = (int) (offsets.offsets[i] >>> 32);
+      final var positionIndex = (int) offsets.offsets[i];
+      if (offset == -1) {
+        positions[positionIndex] = new Position(0, 0);
+        continue;
+      }
+      if (offset >= nextLineStart) {
+        // usages are often on consecutive lines
+        line = line + 2 < lineCount && offset < document.getLineStartOffset(line + 2)
+            ? line + 1
+            : document.getLineNumber(offset);
+        lineStart = document.getLineStartOffset(line);
+        nextLineStart = line + 1 < lineCount ? document.getLineStartOffset(line + 1) : Integer.MAX_VALUE;
+      }
+      positions[positionIndex] = new Position(line, offset - lineStart);
+    }
+  }
+}
@@ -1,13 +1,73 @@
 package org.rri.ideals.server.util;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 public class Metrics {
   private static final Logger LOG = Logger.getInstance(Metrics.class);
 
+  private static final long DUMP_INTERVAL_SECONDS = 300;
+
+  private static final ConcurrentHashMap<String, Map<Phase, LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Map<Outcome, LongAdder>> outcomes = new ConcurrentHashMap<>();
+  private static final AtomicLong recordedSinceDump = new AtomicLong();
+  private static final AtomicBoolean dumpScheduled = new AtomicBoolean();
+  private static final ThreadLocal<String> currentRequestMethod = new ThreadLocal<>();
+
+  /**
+   * Phases a request goes through; each one gets its own latency histogram per LSP method.
+   */
+  public enum Phase {
+    // waiting in the executor's queue for a pooled thread
+    QUEUE_WAIT("queue-wait"),
+    // waiting for EDT to pick up the runnable passed to invokeAndWait
+    EDT_WAIT("edt-wait"),
+    // running the request's body
+    EXECUTION("execution"),
+    // converting the response to JSON and writing it to the client
+    SERIALIZATION("serialization"),
+    // from receiving the request to writing its response
+    TOTAL("total");
+
+    @NotNull
+    private final String id;
+
+    Phase(@NotNull String id) {
+      this.id = id;
+    }
+
+    @NotNull
+    public String id() {
+      return id;
+    }
+  }
+
+  /**
+   * How the work started for a request ended; cancelled work includes requests superseded by newer ones.
+   */
+  public enum Outcome {
+    COMPLETED,
+    CANCELLED,
+    FAILED
+  }
+
   public static void run(@NotNull Supplier<@NotNull String> blockNameSupplier, @NotNull Runnable block) {
     call(blockNameSupplier, (Supplier<Void>) () -> {
       block.run();
@@ -37,4 +97,108 @@ public class Metrics {
       LOG.debug(prefix + ((end - start) / 1_000_000) + " ms", thrown);
     }
   }
+
+  public static void record(@NotNull String method, @NotNull Phase phase, long nanos) {
+    histograms
+        .computeIfAbsent(method, ignored -> Collections.synchronizedMap(new EnumMap<>(Phase.class)))
+        .computeIfAbsent(phase, ignored -> new LatencyHistogram())
+        .record(nanos);
+
+    scheduleDump();
+  }
+
+  public static void recordOutcome(@NotNull String method, @Nullable Throwable error) {
+    final Outcome outcome;
+    if (error == null) {
+      outcome = Outcome.COMPLETED;
+    } else if (isCancellation(error)) {
+      outcome = Outcome.CANCELLED;
+    } else {
+      outcome = Outcome.FAILED;
+    }
+
+    outcomes
+        .computeIfAbsent(method, ignored -> Collections.synchronizedMap(new EnumMap<>(Outcome.class)))
+        .computeIfAbsent(outcome, ignored -> new LongAdder())
+        .increment();
+    scheduleDump();
+  }
+
+  private static boolean isCancellation(@NotNull Throwable error) {
+    for (var current = error; current != null; current = current.getCause()) {
+      if (current instanceof CancellationException || current instanceof ProcessCanceledException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void scheduleDump() {
+    recordedSinceDump.incrementAndGet();
+    if (dumpScheduled.compareAndSet(false, true)) {
+      AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+          Metrics::dumpToLog, DUMP_INTERVAL_SECONDS, DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  public static <T> T measure(@NotNull String method, @NotNull Phase phase, @NotNull Supplier<T> block) {
+    final var start = System.nanoTime();
+    try {
+      return block.get();
+    } finally {
+      record(method, phase, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return latency summaries keyed by LSP method and then by phase
+   */
+  @NotNull
+  public static Map<@NotNull String, Map<@NotNull String, LatencyHistogram.@NotNull Summary>> snapshot() {
+    final var result = new TreeMap<String, Map<String, LatencyHistogram.Summary>>();
+    histograms.forEach((method, phases) -> {
+      final var summaries = new LinkedHashMap<String, LatencyHistogram.Summary>();
+      synchronized (phases) {
+        phases.forEach((phase, histogram) -> summaries.put(phase.id(), histogram.summary()));
+      }
+      result.put(method, summaries);
+    });
+    return result;
+  }
+
+  /**
+   * Runs the block on behalf of the given LSP request, so that the work it starts is accounted to this method.
+   */
+  public static void runForRequest(@NotNull String method, @NotNull Runnable block) {
+    final var previous = currentRequestMethod.get();
+    currentRequestMethod.set(method);
+    try {
+      block.run();
+    } finally {
+      currentRequestMethod.set(previous);
+    }
+  }
+
+  @Nullable
+  public static String getCurrentRequestMethod() {
+    return currentRequestMethod.get();
+  }
+
+  private static void dumpToLog() {
+    if (recordedSinceDump.getAndSet(0) == 0) {
+      return;
+    }
+    final var report = new StringBuilder("Request latencies:");
+    snapshot().forEach((method, phases) -> phases.forEach((phase, summary) ->
+        report.append("\n  ").append(method).append(" [").append(phase).append("]: ").append(summary)));
+    report.append("\nRequest outcomes:");
+    new TreeMap<>(outcomes).forEach((method, counters) -> {
+      report.append("\n  ").append(method).append(":");
+      synchronized (counters) {
+        counters.forEach((outcome, counter) ->
+            report.append(' ').append(outcome.name().toLowerCase(Locale.ROOT)).append('=').append(counter.sum()));
+      }
+    });
+    LOG.info(report.toString());
+  }
 }
@@ -190,6 +190,15 @@ public class MiscUtil {
 
   @Nullable
   public static Range getPsiElementRange(@NotNull Document doc, @Nullable PsiElement elem) {
+    var range = getPsiElementTextRange(elem);
+    return range != null ? getRange(doc, range) : null;
+  }
+
+  /**
+   * @return the range of the name identifier of the element if it has one, otherwise the range of the element
+   */
+  @Nullable
+  public static TextRange getPsiElementTextRange(@Nullable PsiElement elem) {
     TextRange range = null;
     if (elem == null) {
       return null;
@@ -203,7 +212,7 @@ public class MiscUtil {
     if (range == null) {
       range = elem.getTextRange();
     }
-    return range != null ? getRange(doc, range) : null;
+    return range;
   }
 
   @NotNull
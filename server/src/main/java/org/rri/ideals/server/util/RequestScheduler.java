@@ -0,0 +1,170 @@
+package org.rri.ideals.server.util;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.serviceContainer.NonInjectable;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders LSP requests before they reach the application pool.
+ * <p>
+ * At most {@link #MAX_RUNNING} requests run at once; queued ones are started by priority and then in the order
+ * they came in, so a burst of searches can't delay the completion the user is waiting for. The last
+ * {@link #INTERACTIVE_SLOTS} slots are only taken by interactive requests, so long searches or analyses can't
+ * hold them all. Whole-project jobs don't belong here; they run on executors of their own.
+ * A request may also supersede the still running or pending request of the same kind for the same document.
+ */
+@Service
+public final class RequestScheduler {
+  private static final Logger LOG = Logger.getInstance(RequestScheduler.class);
+
+  private static final int MAX_RUNNING = Math.max(4, Runtime.getRuntime().availableProcessors());
+  private static final int INTERACTIVE_SLOTS = 2;
+
+  public enum Priority {
+    // the user is waiting for the result while typing: completion, signature help, hover, highlighting
+    INTERACTIVE,
+    // explicitly invoked navigation and refactorings
+    NAVIGATIONAL,
+    // requests the client sends on its own: document symbols, code actions, runnables
+    BACKGROUND
+  }
+
+  // guarded by this
+  private final PriorityQueue<Task> queue = new PriorityQueue<>();
+  // guarded by this: workers started, whether or not they have taken a task yet
+  private int running;
+  // guarded by this: workers that haven't taken a task from the queue yet
+  private int starting;
+  // guarded by this: workers running a task that isn't interactive
+  private int runningOthers;
+  // guarded by this
+  private int queuedInteractive;
+  private final AtomicLong sequence = new AtomicLong();
+  private final ConcurrentHashMap<String, CompletableFuture<?>> supersedable = new ConcurrentHashMap<>();
+  @NotNull
+  private final Executor executor;
+  private final int maxRunning;
+  private final int maxRunningOthers;
+
+  private record Task(@NotNull Priority priority, long sequence, @NotNull Runnable runnable) implements Comparable<Task> {
+    @Override
+    public int compareTo(@NotNull Task other) {
+      final var byPriority = priority.compareTo(other.priority);
+      return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  public RequestScheduler() {
+    this(AppExecutorUtil.getAppExecutorService(), MAX_RUNNING, INTERACTIVE_SLOTS);
+  }
+
+  /**
+   * @param interactiveSlots how many of the slots only interactive requests take
+   */
+  @NonInjectable
+  RequestScheduler(@NotNull Executor executor, int maxRunning, int interactiveSlots) {
+    assert interactiveSlots < maxRunning;
+    this.executor = executor;
+    this.maxRunning = maxRunning;
+    this.maxRunningOthers = maxRunning - interactiveSlots;
+  }
+
+  @NotNull
+  public static RequestScheduler getInstance() {
+    return ApplicationManager.getApplication().getService(RequestScheduler.class);
+  }
+
+  /**
+   * @return an executor that queues its tasks with the given priority
+   */
+  @NotNull
+  public Executor executor(@NotNull Priority priority) {
+    return runnable -> {
+      synchronized (this) {
+        queue.add(new Task(priority, sequence.getAndIncrement(), runnable));
+        if (priority == Priority.INTERACTIVE) {
+          queuedInteractive++;
+        }
+      }
+      drain();
+    };
+  }
+
+  /**
+   * Registers the result of a request under the given key and cancels the one registered there before.
+   * A cancelled request that hasn't started yet is skipped by the executor.
+   */
+  public void supersede(@NotNull String key, @NotNull CompletableFuture<?> future) {
+    final var previous = supersedable.put(key, future);
+    if (previous != null && !previous.isDone()) {
+      LOG.debug("Superseded: " + key);
+      previous.cancel(true);
+    }
+    future.whenComplete((result, error) -> supersedable.remove(key, future));
+  }
+
+  private void drain() {
+    var toStart = 0;
+    synchronized (this) {
+      // the queued tasks a worker could take now
+      final var startable = queuedInteractive
+          + Math.min(queue.size() - queuedInteractive, Math.max(0, maxRunningOthers - runningOthers));
+      while (running < maxRunning && starting < startable) {
+        running++;
+        starting++;
+        toStart++;
+      }
+    }
+    for (var i = 0; i < toStart; i++) {
+      executor.execute(this::runNext);
+    }
+  }
+
+  private void runNext() {
+    Task task = null;
+    try {
+      task = take();
+      if (task != null) {
+        task.runnable().run();
+      }
+    } finally {
+      synchronized (this) {
+        running--;
+        if (task != null && task.priority() != Priority.INTERACTIVE) {
+          runningOthers--;
+        }
+      }
+      drain();
+    }
+  }
+
+  /**
+   * @return the first queued task, unless it isn't interactive and all the slots for such tasks are taken
+   */
+  @Nullable
+  private synchronized Task take() {
+    starting--;
+    final var task = queue.peek();
+    if (task == null) {
+      return null;
+    }
+    if (task.priority() == Priority.INTERACTIVE) {
+      queuedInteractive--;
+    } else if (runningOthers < maxRunningOthers) {
+      runningOthers++;
+    } else {
+      return null;
+    }
+    return queue.poll();
+  }
+}
@@ -3,10 +3,13 @@ package org.rri.ideals.server.util;
 import com.intellij.diff.comparison.ComparisonManager;
 import com.intellij.diff.comparison.ComparisonPolicy;
 import com.intellij.diff.fragments.DiffFragment;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.progress.DumbProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiFileFactory;
@@ -30,17 +33,25 @@ public class TextUtil {
     );
   }
 
+  /**
+   * Runs the action on a copy of the file and returns the edits turning the file into the copy.
+   * <p>
+   * Only the action is run on EDT, where it may run write actions on the copy; the copy is created and compared
+   * in read actions on the calling thread.
+   */
   @NotNull
   public static List<@NotNull TextEdit> differenceAfterAction(@NotNull PsiFile psiFile,
                                                               @NotNull Consumer<@NotNull PsiFile> action) {
-    var copy = getCopyByFileText(psiFile);
-    action.accept(copy);
-
-    var oldDoc = MiscUtil.getDocument(psiFile);
-    assert oldDoc != null;
-    var newDoc = MiscUtil.getDocument(copy);
-    assert newDoc != null;
-    return textEditFromDocs(oldDoc, newDoc);
+    var copy = ReadAction.compute(() -> getCopyByFileText(psiFile));
+    ApplicationManager.getApplication().invokeAndWait(() -> action.accept(copy));
+
+    return ReadAction.compute(() -> {
+      var oldDoc = MiscUtil.getDocument(psiFile);
+      assert oldDoc != null;
+      var newDoc = MiscUtil.getDocument(copy);
+      assert newDoc != null;
+      return textEditFromDocs(oldDoc, newDoc);
+    });
   }
 
   @NotNull
@@ -56,11 +67,77 @@ public class TextUtil {
   @NotNull
   public static List<@NotNull TextEdit> textEditFromDocs(@NotNull Document oldDoc, @NotNull Document newDoc) {
     var changes = diff(oldDoc.getText(), newDoc.getText());
+    return toTextEdits(changes, oldDoc, newDoc.getImmutableCharSequence(), 0);
+  }
+
+  /**
+   * Same as {@link #textEditFromDocs(Document, Document)}, but only the lines between the common leading and
+   * trailing lines of the documents are compared. Cheap for a local change in a large document.
+   */
+  @NotNull
+  public static List<@NotNull TextEdit> textEditFromChangedLines(@NotNull Document oldDoc, @NotNull Document newDoc) {
+    var oldText = oldDoc.getImmutableCharSequence();
+    var newText = newDoc.getImmutableCharSequence();
+    var region = changedLines(oldText, newText);
+    var changes = diff(
+        oldText.subSequence(region.start(), region.oldEnd()).toString(),
+        newText.subSequence(region.start(), region.newEnd()).toString());
+    return toTextEdits(changes, oldDoc, newText, region.start());
+  }
+
+  /**
+   * The region of two texts outside which they are the same: {@code [start, oldEnd)} of the old text is replaced
+   * with {@code [start, newEnd)} of the new one. {@link #changedLines} widens it to whole lines.
+   */
+  public record ChangedRegion(int start, int oldEnd, int newEnd) {
+    /**
+     * @return the number of characters the text after the region has moved by
+     */
+    public int delta() {
+      return newEnd - oldEnd;
+    }
+
+    /**
+     * @param next a region changed in the text this region has resulted in
+     * @return the region covering both changes, from the text before this change to the text after the next one
+     */
+    @NotNull
+    public ChangedRegion then(@NotNull ChangedRegion next) {
+      var start = Math.min(this.start, next.start);
+      var end = Math.max(this.newEnd, next.oldEnd);
+      return new ChangedRegion(start, end - delta(), end + next.delta());
+    }
+  }
+
+  @NotNull
+  public static ChangedRegion changedLines(@NotNull CharSequence oldText, @NotNull CharSequence newText) {
+    var prefix = StringUtil.commonPrefixLength(oldText, newText);
+    var suffix = Math.min(StringUtil.commonSuffixLength(oldText, newText),
+        Math.min(oldText.length(), newText.length()) - prefix);
+    while (prefix > 0 && oldText.charAt(prefix - 1) != '\n') {
+      prefix--;
+    }
+    while (suffix > 0 && !(isLineStart(oldText, oldText.length() - suffix)
+        && isLineStart(newText, newText.length() - suffix))) {
+      suffix--;
+    }
+    return new ChangedRegion(prefix, oldText.length() - suffix, newText.length() - suffix);
+  }
+
+  private static boolean isLineStart(@NotNull CharSequence text, int offset) {
+    return offset == 0 || text.charAt(offset - 1) == '\n';
+  }
+
+  @NotNull
+  private static List<@NotNull TextEdit> toTextEdits(@NotNull List<@NotNull DiffFragment> changes,
+                                                     @NotNull Document oldDoc,
+                                                     @NotNull CharSequence newText,
+                                                     int shift) {
     return changes.stream().map(diffFragment -> {
-      var start = MiscUtil.offsetToPosition(oldDoc, diffFragment.getStartOffset1());
-      var end = MiscUtil.offsetToPosition(oldDoc, diffFragment.getEndOffset1());
-      var text = newDoc.getText(new TextRange(diffFragment.getStartOffset2(), diffFragment.getEndOffset2()));
-      return new TextEdit(new Range(start, end), text);
+      var start = MiscUtil.offsetToPosition(oldDoc, shift + diffFragment.getStartOffset1());
+      var end = MiscUtil.offsetToPosition(oldDoc, shift + diffFragment.getEndOffset1());
+      var text = newText.subSequence(shift + diffFragment.getStartOffset2(), shift + diffFragment.getEndOffset2());
+      return new TextEdit(new Range(start, end), text.toString());
     }).collect(Collectors.toList());
   }
 
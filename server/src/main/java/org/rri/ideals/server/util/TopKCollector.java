@@ -0,0 +1,71 @@
+package org.rri.ideals.server.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the best {@code capacity} items offered to it, from any number of threads.
+ * <p>
+ * The items are kept in a heap with the worst one on top, so offering an item costs {@code O(log capacity)}
+ * and one that is worse than all kept items is rejected with a single comparison once the collector is full.
+ */
+public final class TopKCollector<T> {
+  private final int capacity;
+  @NotNull
+  private final Comparator<? super T> bestFirst;
+  // the worst kept item comes first
+  @NotNull
+  private final PriorityQueue<T> heap;
+
+  /**
+   * @param bestFirst orders the better items first
+   */
+  public TopKCollector(int capacity, @NotNull Comparator<? super T> bestFirst) {
+    this.capacity = capacity;
+    this.bestFirst = bestFirst;
+    this.heap = new PriorityQueue<>(Math.max(1, capacity), bestFirst.reversed());
+  }
+
+  /**
+   * @return false if the item isn't kept, being no better than any kept one
+   */
+  public synchronized boolean offer(@NotNull T item) {
+    if (heap.size() < capacity) {
+      heap.add(item);
+      return true;
+    }
+    if (capacity == 0 || bestFirst.compare(item, heap.peek()) >= 0) {
+      return false;
+    }
+    heap.poll();
+    heap.add(item);
+    return true;
+  }
+
+  public synchronized boolean isFull() {
+    return heap.size() >= capacity;
+  }
+
+  /**
+   * @return the worst kept item, or {@code null} if the collector isn't full yet
+   */
+  @Nullable
+  public synchronized T worstIfFull() {
+    return heap.size() >= capacity ? heap.peek() : null;
+  }
+
+  /**
+   * @return the kept items, best first
+   */
+  @NotNull
+  public synchronized List<T> toSortedList() {
+    final var items = new ArrayList<>(heap);
+    items.sort(bestFirst);
+    return items;
+  }
+}
@@ -0,0 +1,117 @@
+package org.rri.ideals.server.completions;
+
+import com.intellij.lang.Language;
+import com.intellij.testFramework.LightVirtualFile;
+import org.eclipse.lsp4j.Position;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompletionDataStoreTest {
+  private long now = 0;
+  private final List<Integer> evicted = new ArrayList<>();
+  private final CompletionDataStore store = new CompletionDataStore(() -> now, evicted::add);
+
+  @Test
+  public void interleavedCompletionsAreKept() {
+    final var first = new LightVirtualFile("First.java");
+    final var second = new LightVirtualFile("Second.java");
+
+    final var firstData = add(first);
+    final var secondData = add(second);
+
+    assertSame(firstData, store.get(firstData.version()));
+    assertSame(secondData, store.get(secondData.version()));
+    assertSame(firstData, store.getLatest(first));
+    assertSame(secondData, store.getLatest(second));
+  }
+
+  @Test
+  public void refilteringReplacesOnlyTheLatestData() {
+    final var file = new LightVirtualFile("Test.java");
+    final var stale = add(file);
+    final var latest = add(file);
+
+    assertFalse(store.addIfLatest(stale, data(file)));
+    final var refiltered = data(file);
+    assertTrue(store.addIfLatest(latest, refiltered));
+    assertSame(refiltered, store.getLatest(file));
+    assertSame(stale, store.get(stale.version()));
+  }
+
+  @Test
+  public void idleCompletionsAreEvicted() {
+    final var file = new LightVirtualFile("Test.java");
+    final var old = add(file);
+    final var used = add(file);
+
+    now += TimeUnit.MINUTES.toNanos(5);
+    store.get(used.version());
+    now += TimeUnit.MINUTES.toNanos(6);
+    final var latest = add(new LightVirtualFile("Other.java"));
+
+    assertFalse(store.contains(old.version()));
+    assertNull(store.get(old.version()));
+    assertTrue(store.contains(used.version()));
+    assertSame(used, store.get(used.version()));
+    assertSame(latest, store.get(latest.version()));
+  }
+
+  @Test
+  public void evictionIsReportedAndCountsAddedWeight() {
+    final var file = new LightVirtualFile("Test.java");
+    final var first = add(file);
+    final var second = add(file);
+
+    assertTrue(store.addWeight(first.version(), CompletionDataStore.MAX_WEIGHT / 2));
+    assertEquals(List.of(), evicted);
+    // a resolve session of the second one doesn't fit alongside the first one's
+    assertTrue(store.addWeight(second.version(), CompletionDataStore.MAX_WEIGHT / 2 + 1));
+    assertEquals(List.of(first.version()), evicted);
+    assertFalse(store.contains(first.version()));
+    assertFalse(store.addWeight(first.version(), 1));
+  }
+
+  @Test
+  public void manyCompletionsOfLargeFileStayWithinBounds() {
+    final var file = new LightVirtualFile("Large.java");
+    final var text = new StringBuilder("class Large {\n");
+    for (int i = 0; i < 10_000; i++) {
+      text.append("  int field").append(i).append(";\n");
+    }
+    final var fileText = text.append("}\n").toString();
+
+    CompletionService.CompletionData latest = null;
+    for (int i = 0; i < 1000; i++) {
+      latest = new CompletionService.CompletionData(List.of(), store.nextVersion(), new Position(0, 0), 0,
+          fileText, Language.ANY, file, List.of(), false);
+      store.add(latest);
+      // every completion is resolved as well
+      assertTrue(store.addWeight(latest.version(), CompletionResolveSession.estimatedSize(fileText)));
+
+      assertTrue(store.size() <= CompletionDataStore.MAX_ENTRIES);
+      assertTrue(store.weight() <= CompletionDataStore.MAX_WEIGHT);
+    }
+
+    assertSame(latest, store.getLatest(file));
+    assertEquals(1000 - store.size(), evicted.size());
+  }
+
+  @NotNull
+  private CompletionService.CompletionData add(@NotNull LightVirtualFile file) {
+    final var data = data(file);
+    store.add(data);
+    return data;
+  }
+
+  @NotNull
+  private CompletionService.CompletionData data(@NotNull LightVirtualFile file) {
+    return new CompletionService.CompletionData(
+        List.of(), store.nextVersion(), new Position(0, 0), 0, "", Language.ANY, file, List.of(), false);
+  }
+}
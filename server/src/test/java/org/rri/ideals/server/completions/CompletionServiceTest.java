@@ -3,20 +3,28 @@ package org.rri.ideals.server.completions;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.intellij.codeInsight.completion.impl.CamelHumpMatcher;
+import com.intellij.codeInsight.lookup.LookupElementBuilder;
 import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.lang.Language;
+import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.LogicalPosition;
 import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
 import com.intellij.testFramework.TestModeFlags;
 import com.jetbrains.python.PythonFileType;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspLightBasePlatformTestCase;
 import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.TestUtil;
@@ -25,6 +33,7 @@ import org.rri.ideals.server.completions.generators.CompletionTestGenerator;
 import org.rri.ideals.server.engine.IdeaTestFixture;
 import org.rri.ideals.server.engine.TestEngine;
 import org.rri.ideals.server.generator.IdeaOffsetPositionConverter;
+import org.rri.ideals.server.mocks.MockLanguageClient;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.ArrayList;
@@ -268,11 +277,19 @@ public class CompletionServiceTest extends LspLightBasePlatformTestCase {
     myFixture.openFileInEditor(psiFile.getVirtualFile());
     myFixture.getEditor().getCaretModel().moveToLogicalPosition(new LogicalPosition(params.getPosition().getLine(), params.getPosition().getCharacter()));
 
-    var completionItems = cs.computeCompletions(new ExecutorContext(psiFile, myFixture.getEditor(), new TestUtil.DumbCancelChecker()));
+    var completionItems = cs.computeCompletions(new ExecutorContext(psiFile, myFixture.getEditor(), new TestUtil.DumbCancelChecker())).getItems();
     if (completionTestParams.finder != null) {
       var compItem = completionItems.stream().filter(completionTestParams.finder).findFirst().orElseThrow();
       compItem.setData(gson.fromJson(gson.toJson(compItem.getData()), JsonObject.class));
+      var sameItem = new CompletionItem(compItem.getLabel());
+      sameItem.setTextEdit(Either.forLeft(new TextEdit(compItem.getTextEdit().getLeft().getRange(),
+          compItem.getTextEdit().getLeft().getNewText())));
+      sameItem.setData(compItem.getData());
       var resolved = cs.resolveCompletion(compItem, new TestUtil.DumbCancelChecker());
+      // the second resolve runs in the file copy restored after the first one
+      var resolvedAgain = cs.resolveCompletion(sameItem, new TestUtil.DumbCancelChecker());
+      assertEquals(resolved.getTextEdit(), resolvedAgain.getTextEdit());
+      assertEquals(resolved.getAdditionalTextEdits(), resolvedAgain.getAdditionalTextEdits());
       assertNotNull(expectedText);
       assertNotNull(test.getSourceText());
       var allEdits = new ArrayList<TextEdit>();
@@ -332,6 +349,126 @@ public class CompletionServiceTest extends LspLightBasePlatformTestCase {
             .resolveCompletion(targetCompletionItem, cancelChecker));
   }
 
+  @Test
+  public void testCompletionIsRefilteredForLongerPrefix() {
+    var psiFile = myFixture.configureByText(
+        JavaFileType.INSTANCE,
+        """
+            class A {
+              void formula() {}
+              void forward() {}
+              void test() {
+                for
+              }
+            }
+            """);
+
+    var before = getCompletionListAtPosition(psiFile, new Position(4, 7));
+    Assertions.assertTrue(labels(before).containsAll(Set.of("formula", "forward")));
+
+    var document = myFixture.getEditor().getDocument();
+    WriteCommandAction.runWriteCommandAction(getProject(),
+        () -> document.insertString(document.getLineStartOffset(4) + 7, "m"));
+    PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+
+    var after = getCompletionListAtPosition(psiFile, new Position(4, 8));
+    Assertions.assertTrue(labels(after).contains("formula"));
+    Assertions.assertFalse(labels(after).contains("forward"));
+
+    var formula = after.stream().filter(item -> item.getLabel().equals("formula")).findFirst().orElseThrow();
+    Assertions.assertEquals(new Range(new Position(4, 4), new Position(4, 8)), formula.getTextEdit().getLeft().getRange());
+  }
+
+  @Test
+  public void testTruncatedCompletionIsReportedInPages() {
+    final var progress = new ArrayList<ProgressParams>();
+    LspContext.createContext(getProject(), new MockLanguageClient() {
+      @Override
+      public void notifyProgress(ProgressParams params) {
+        progress.add(params);
+      }
+    }, new ClientCapabilities());
+
+    final var text = new StringBuilder("class A {\n  void test() {\n    item\n  }\n");
+    for (int i = 0; i < 1100; i++) {
+      text.append("  void item").append(i).append("() {}\n");
+    }
+    text.append("}\n");
+    final var psiFile = myFixture.configureByText(JavaFileType.INSTANCE, text.toString());
+    myFixture.getEditor().getCaretModel().moveToLogicalPosition(new LogicalPosition(2, 8));
+
+    final var response = getProject().getService(CompletionService.class).computeCompletions(
+        new ExecutorContext(psiFile, myFixture.getEditor(), new TestUtil.DumbCancelChecker()), Either.forLeft("token"));
+
+    // at most 1000 items are sent, in pages of 100; the first page is a list, the others are appended to its items
+    Assertions.assertTrue(response.isIncomplete());
+    Assertions.assertTrue(response.getItems().isEmpty());
+    Assertions.assertEquals(10, progress.size());
+    final var first = (CompletionList) progress.get(0).getValue().getRight();
+    Assertions.assertTrue(first.isIncomplete());
+    final var items = new ArrayList<>(first.getItems());
+    for (var params : progress.subList(1, progress.size())) {
+      Assertions.assertEquals("token", params.getToken().getLeft());
+      //noinspection unchecked
+      items.addAll((List<CompletionItem>) params.getValue().getRight());
+    }
+    Assertions.assertEquals(1000, items.size());
+    for (int i = 0; i < items.size(); i++) {
+      Assertions.assertEquals(i, ((CompletionItemData) items.get(i).getData()).getLookupElementIndex());
+    }
+  }
+
+  @Test
+  public void testIncompleteCompletionIsRefilteredUnlessDroppedElementMatches() {
+    final var matcher = new CamelHumpMatcher("fo");
+    final var data = new CompletionService.CompletionData(
+        List.of(new LookupElementWithMatcher(LookupElementBuilder.create("formula"), matcher),
+            new LookupElementWithMatcher(LookupElementBuilder.create("format"), matcher)),
+        1, new Position(0, 2), 2, "fo", Language.ANY, null,
+        List.of(new CompletionService.DroppedElement(Set.of("forward"), matcher)), false);
+    Assertions.assertTrue(data.incomplete());
+
+    final var refiltered = CompletionService.refilter(data, "rmu");
+    Assertions.assertNotNull(refiltered);
+    Assertions.assertEquals(List.of("formula"), refiltered.stream().map(it -> it.lookupElement().getLookupString()).toList());
+    Assertions.assertEquals("formu", refiltered.get(0).prefixMatcher().getPrefix());
+
+    // the dropped element matches, so the cached elements aren't all the ones for this prefix
+    Assertions.assertNull(CompletionService.refilter(data, "r"));
+    // nothing cached matches, IDEA may find other variants
+    Assertions.assertNull(CompletionService.refilter(data, "x"));
+
+    final var emptyPrefix = new CompletionService.CompletionData(
+        List.of(new LookupElementWithMatcher(LookupElementBuilder.create("formula"), new CamelHumpMatcher(""))),
+        2, new Position(0, 0), 0, "", Language.ANY, null, List.of(), true);
+    Assertions.assertNull(CompletionService.refilter(emptyPrefix, "f"));
+  }
+
+  @Test
+  public void testCompletionWithInvalidatedElementIsNotRefiltered() {
+    final var file = (PsiJavaFile) myFixture.configureByText("A.java", "class A { int formula; int format; }");
+    final var fields = file.getClasses()[0].getFields();
+    final var matcher = new CamelHumpMatcher("fo");
+    final var data = new CompletionService.CompletionData(
+        List.of(new LookupElementWithMatcher(LookupElementBuilder.create(fields[0]), matcher),
+            new LookupElementWithMatcher(LookupElementBuilder.create(fields[1]), matcher)),
+        1, new Position(0, 2), 2, "fo", Language.ANY, null, List.of(), false);
+
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> fields[1].delete());
+
+    // the invalid element doesn't match
+    final var refiltered = CompletionService.refilter(data, "rmu");
+    Assertions.assertNotNull(refiltered);
+    Assertions.assertEquals(List.of("formula"), refiltered.stream().map(it -> it.lookupElement().getLookupString()).toList());
+    // the invalid element matches, so the completion runs again
+    Assertions.assertNull(CompletionService.refilter(data, "rma"));
+  }
+
+  @NotNull
+  private static Set<String> labels(@NotNull List<@NotNull CompletionItem> items) {
+    return items.stream().map(CompletionItem::getLabel).collect(Collectors.toSet());
+  }
+
   private static class AlwaysTrueCancelChecker implements CancelChecker {
     @Override
     public void checkCanceled() {
@@ -351,7 +488,7 @@ public class CompletionServiceTest extends LspLightBasePlatformTestCase {
                                                                     @NotNull CancelChecker cancelChecker) {
     myFixture.getEditor().getCaretModel().moveToLogicalPosition(new LogicalPosition(position.getLine(), position.getCharacter()));
     return getProject().getService(CompletionService.class).computeCompletions(
-        new ExecutorContext(file, myFixture.getEditor(), cancelChecker));
+        new ExecutorContext(file, myFixture.getEditor(), cancelChecker)).getItems();
   }
 
   static private void runWithTemplateFlags(@NotNull Runnable action) {
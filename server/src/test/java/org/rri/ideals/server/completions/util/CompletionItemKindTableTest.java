@@ -0,0 +1,33 @@
+package org.rri.ideals.server.completions.util;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.ui.IconManager;
+import org.eclipse.lsp4j.CompletionItemKind;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspLightBasePlatformTestCase;
+
+@RunWith(JUnit4.class)
+public class CompletionItemKindTableTest extends LspLightBasePlatformTestCase {
+  @Test
+  public void testPlatformIcons() {
+    assertEquals(CompletionItemKind.Method, CompletionItemKindTable.findKind(AllIcons.Nodes.Method));
+    assertEquals(CompletionItemKind.Variable, CompletionItemKindTable.findKind(AllIcons.Nodes.Parameter));
+    assertEquals(CompletionItemKind.Snippet, CompletionItemKindTable.findKind(AllIcons.Nodes.Template));
+  }
+
+  @Test
+  public void testCompositeIconIsResolvedByItsMainIcon() {
+    final var iconManager = IconManager.getInstance();
+    assertEquals(CompletionItemKind.Class,
+        CompletionItemKindTable.findKind(iconManager.createLayered(AllIcons.Nodes.Class, AllIcons.Nodes.FinalMark)));
+    assertEquals(CompletionItemKind.Interface,
+        CompletionItemKindTable.findKind(iconManager.tooltipOnlyIfComposite(AllIcons.Nodes.Interface)));
+  }
+
+  @Test
+  public void testUnknownIcon() {
+    assertNull(CompletionItemKindTable.findKind(AllIcons.Actions.Close));
+  }
+}
@@ -1,12 +1,15 @@
 package org.rri.ideals.server.hover;
 
 import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiDocumentManager;
 import org.junit.jupiter.api.Test;
 import org.rri.ideals.server.LspLightBasePlatformTestCase5;
 import org.rri.ideals.server.TestUtil;
 import org.rri.ideals.server.commands.ExecutorContext;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HoverCommandTest extends LspLightBasePlatformTestCase5 {
 
@@ -36,4 +39,35 @@ public class HoverCommandTest extends LspLightBasePlatformTestCase5 {
                 
                 A method""", new HoverCommand().execute(executorContext).getContents().getRight().getValue());
     }
+
+    @Test
+    void testDocumentationIsRenderedAgainAfterChange() {
+        final var file = myFixture.configureByText(JavaFileType.INSTANCE, """
+                public class Dummy {
+                        /**
+                         * A method
+                         */
+                        String dummyMethod(final String name) {
+                          return name;
+                        }
+
+                        void anotherDummyMethod() {
+                           dummyMethod<caret>("foo");
+                        }
+                """);
+
+        final var executorContext = new ExecutorContext(file, myFixture.getEditor(), new TestUtil.DumbCancelChecker());
+        final var first = new HoverCommand().execute(executorContext).getContents().getRight().getValue();
+        assertEquals(first, new HoverCommand().execute(executorContext).getContents().getRight().getValue());
+
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+            final var document = myFixture.getEditor().getDocument();
+            final var start = document.getText().indexOf("A method");
+            document.replaceString(start, start + "A method".length(), "Another method");
+            PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+        });
+
+        final var changed = new ExecutorContext(file, myFixture.getEditor(), new TestUtil.DumbCancelChecker());
+        assertTrue(new HoverCommand().execute(changed).getContents().getRight().getValue().endsWith("Another method"));
+    }
 }
@@ -1,14 +1,30 @@
 package org.rri.ideals.server.lsp;
 
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.lang.LanguageAnnotators;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiJavaToken;
 import org.eclipse.lsp4j.*;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
 import org.junit.Test;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.TestUtil;
+import org.rri.ideals.server.diagnostics.VisibleRangesParams;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.nio.file.Files;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class DiagnosticsTest extends LspServerTestBase {
 
@@ -79,6 +95,62 @@ public class DiagnosticsTest extends LspServerTestBase {
     Assert.assertEquals(new Range(new Position(3, 15), new Position(3, 16)), diagnostic2.getRange());
   }
 
+  @Test
+  public void visibleRanges() {
+    final var filePath = LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java"));
+    // the closing brace of the class is outside the visible range; highlighting it takes a while
+    LanguageAnnotators.INSTANCE.addExplicitExtension(JavaLanguage.INSTANCE, (element, holder) -> {
+      if (element instanceof PsiJavaToken && element.textMatches("}") && element.getParent() instanceof PsiClass) {
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (System.nanoTime() < deadline) {
+          ProgressManager.checkCanceled();
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+      }
+    }, getTestRootDisposable());
+
+    sendOpen(filePath);
+    client().waitAndGetDiagnosticsPublished();
+
+    server().visibleRanges(new VisibleRangesParams(new TextDocumentIdentifier(filePath.toLspUri()),
+        List.of(new Range(new Position(2, 0), new Position(3, 0)))));
+    final var file = filePath.findVirtualFile();
+    Assert.assertNotNull(file);
+    final var editor = ((TextEditor) Objects.requireNonNull(
+        FileEditorManager.getInstance(server().getProject()).getSelectedEditor(file))).getEditor();
+    TestUtil.waitInEdtFor(() -> editor.getScrollingModel().getVisibleArea().height == 2 * editor.getLineHeight(), 5000);
+
+    final var daemonFinished = new AtomicBoolean();
+    server().getProject().getMessageBus().connect(getTestRootDisposable())
+        .subscribe(DaemonCodeAnalyzer.DAEMON_EVENT_TOPIC, new DaemonCodeAnalyzer.DaemonListener() {
+          @Override
+          public void daemonFinished(@NotNull Collection<? extends FileEditor> fileEditors) {
+            if (fileEditors.stream().anyMatch(fileEditor -> file.equals(fileEditor.getFile()))) {
+              daemonFinished.set(true);
+            }
+          }
+        });
+
+    final var params = new DidChangeTextDocumentParams();
+    params.setTextDocument(MiscUtil.with(new VersionedTextDocumentIdentifier(), item -> {
+      item.setUri(filePath.toLspUri());
+      item.setVersion(2);
+    }));
+    params.setContentChanges(List.of(
+        new TextDocumentContentChangeEvent(new Range(new Position(3, 4), new Position(3, 4)), "x")
+    ));
+    client().resetDiagnosticsResult();
+    server().getTextDocumentService().didChange(params);
+
+    // the visible lines are published while the rest of the file is still being highlighted
+    final var diagnosticsParams = client().waitAndGetDiagnosticsPublished();
+    Assert.assertFalse(daemonFinished.get());
+    Assert.assertEquals(filePath, LspPath.fromLspUri(diagnosticsParams.getUri()));
+    Assert.assertTrue(diagnosticsParams.getDiagnostics().stream().anyMatch(diagnostic ->
+        diagnostic.getMessage().equals("';' expected")
+            && diagnostic.getRange().equals(new Range(new Position(3, 14), new Position(3, 15)))));
+  }
+
   private void sendOpen(@NotNull LspPath filePath) {
     //noinspection CodeBlock2Expr
     final var didOpenTextDocumentParams = MiscUtil.with(new DidOpenTextDocumentParams(), params -> {
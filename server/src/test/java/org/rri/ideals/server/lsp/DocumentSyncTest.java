@@ -0,0 +1,119 @@
+package org.rri.ideals.server.lsp;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.CommandEvent;
+import com.intellij.openapi.command.CommandListener;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.*;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.TestUtil;
+import org.rri.ideals.server.util.MiscUtil;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class DocumentSyncTest extends LspServerTestBase {
+
+  @Override
+  protected String getProjectRelativePath() {
+    return "lsp/project1";
+  }
+
+  @Test
+  public void changesAreAppliedAsOneBatch() {
+    final var filePath = LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java"));
+    sendOpen(filePath);
+
+    final var updates = new AtomicInteger();
+    server().getProject().getMessageBus().connect(getTestRootDisposable()).subscribe(CommandListener.TOPIC, new CommandListener() {
+      @Override
+      public void commandFinished(@NotNull CommandEvent event) {
+        if ("LSP: UpdateDocument".equals(event.getCommandName())) {
+          updates.incrementAndGet();
+        }
+      }
+    });
+
+    // the scheduled flush waits for EDT, which this test holds, so all the changes land in one batch
+    sendChange(filePath, 2, new Position(0, 0), "a");
+    sendChange(filePath, 3, new Position(0, 1), "b");
+    sendChange(filePath, 4, new Position(0, 2), "c");
+    Assert.assertEquals(0, updates.get());
+
+    documents().flushPendingChanges();
+
+    Assert.assertEquals(1, updates.get());
+    Assert.assertTrue(getDocument(filePath).getText().startsWith("abcclass Test {"));
+  }
+
+  @Test
+  public void flushWaitsForBatchBeingApplied() {
+    final var filePath = LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java"));
+    sendOpen(filePath);
+    final var document = getDocument(filePath);
+
+    // each request races with the scheduled flush of the change sent before it
+    final var requests = CompletableFuture.runAsync(() -> {
+      for (var version = 2; version < 22; version++) {
+        sendChange(filePath, version, new Position(0, 0), "x");
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(version % 4 * 10));
+
+        documents().flushPendingChanges();
+
+        final var prefix = "x".repeat(version - 1) + "class";
+        Assert.assertTrue(ReadAction.compute(() -> document.getText()).startsWith(prefix));
+      }
+    }, AppExecutorUtil.getAppExecutorService());
+
+    TestUtil.getNonBlockingEdt(requests, 30000);
+  }
+
+  @NotNull
+  private ManagedDocuments documents() {
+    return server().getProject().getService(ManagedDocuments.class);
+  }
+
+  @NotNull
+  private static Document getDocument(@NotNull LspPath filePath) {
+    final var virtualFile = filePath.findVirtualFile();
+    Assert.assertNotNull(virtualFile);
+    final var document = ReadAction.compute(() -> FileDocumentManager.getInstance().getDocument(virtualFile));
+    Assert.assertNotNull(document);
+    return document;
+  }
+
+  private void sendChange(@NotNull LspPath filePath, int version, @NotNull Position position, @NotNull String text) {
+    final var params = new DidChangeTextDocumentParams();
+    params.setTextDocument(MiscUtil.with(new VersionedTextDocumentIdentifier(), item -> {
+      item.setUri(filePath.toLspUri());
+      item.setVersion(version);
+    }));
+    params.setContentChanges(List.of(new TextDocumentContentChangeEvent(new Range(position, position), text)));
+
+    server().getTextDocumentService().didChange(params);
+  }
+
+  private void sendOpen(@NotNull LspPath filePath) {
+    //noinspection CodeBlock2Expr
+    final var didOpenTextDocumentParams = MiscUtil.with(new DidOpenTextDocumentParams(), params -> {
+      params.setTextDocument(MiscUtil.with(new TextDocumentItem(), item -> {
+        item.setUri(filePath.toLspUri());
+
+        item.setText(MiscUtil.makeThrowsUnchecked(() -> Files.readString(filePath.toPath())));
+        item.setVersion(1);
+      }));
+    });
+
+    server().getTextDocumentService().didOpen(didOpenTextDocumentParams);
+  }
+}
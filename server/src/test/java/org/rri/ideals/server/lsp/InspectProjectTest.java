@@ -0,0 +1,44 @@
+package org.rri.ideals.server.lsp;
+
+import com.google.gson.JsonObject;
+import org.eclipse.lsp4j.ExecuteCommandParams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rri.ideals.server.TestUtil;
+
+import java.nio.file.Files;
+import java.util.List;
+
+public class InspectProjectTest extends LspServerTestBase {
+
+  @Override
+  protected String getProjectRelativePath() {
+    return "lsp/project1";
+  }
+
+  @Test
+  public void reportIsWrittenInsideProject() throws Exception {
+    final var report = getProjectPath().resolve("inspection-report.json");
+    try {
+      final var summary = (JsonObject) TestUtil.getNonBlockingEdt(server().getWorkspaceService().executeCommand(
+          new ExecuteCommandParams("ideals.inspectProject", List.of("inspection-report.json", "json"))), 60000);
+
+      Assert.assertEquals(report.toRealPath().toString(), summary.get("output").getAsString());
+      Assert.assertTrue(summary.get("files").getAsInt() > 0);
+      Assert.assertTrue(summary.get("problems").getAsInt() > 0);
+      Assert.assertTrue(Files.readString(report).contains("';' expected"));
+    } finally {
+      Files.deleteIfExists(report);
+    }
+  }
+
+  @Test
+  public void reportOutsideProjectIsRejected() {
+    final var outside = getProjectPath().resolveSibling("inspection-report.sarif");
+    for (var path : List.of("../inspection-report.sarif", outside.toString())) {
+      Assert.assertThrows(RuntimeException.class, () -> TestUtil.getNonBlockingEdt(server().getWorkspaceService()
+          .executeCommand(new ExecuteCommandParams("ideals.inspectProject", List.of(path))), 60000));
+      Assert.assertFalse(Files.exists(outside));
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.rri.ideals.server.lsp;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.testFramework.IndexingTestUtil;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.TestUtil;
+import org.rri.ideals.server.util.MiscUtil;
+
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class PullDiagnosticsTest extends LspServerTestBase {
+
+  @Override
+  protected String getProjectRelativePath() {
+    return "lsp/project1";
+  }
+
+  @Override
+  protected void setupClientCapabilities(@NotNull ClientCapabilities clientCapabilities) {
+    clientCapabilities.setTextDocument(MiscUtil.with(new TextDocumentClientCapabilities(),
+        textDocument -> textDocument.setDiagnostic(new DiagnosticCapabilities())));
+  }
+
+  @Test
+  public void pullDiagnostics() {
+    final var filePath = LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java"));
+
+    final var daemonFinished = daemonFinished(filePath);
+    client().resetDiagnosticsResult();
+    sendOpen(filePath);
+
+    final var params = new DocumentDiagnosticParams(new TextDocumentIdentifier(filePath.toLspUri()));
+    final var report = TestUtil.getNonBlockingEdt(server().getTextDocumentService().diagnostic(params), 30000);
+
+    Assert.assertTrue(report.isLeft());
+    final var fullReport = report.getLeft();
+    Assert.assertNotNull(fullReport.getResultId());
+    Assert.assertEquals(1, fullReport.getItems().size());
+    Assert.assertEquals("';' expected", fullReport.getItems().get(0).getMessage());
+
+    params.setPreviousResultId(fullReport.getResultId());
+    final var secondReport = TestUtil.getNonBlockingEdt(server().getTextDocumentService().diagnostic(params), 30000);
+
+    Assert.assertTrue(secondReport.isRight());
+    Assert.assertEquals(fullReport.getResultId(), secondReport.getRight().getResultId());
+
+    // a pushing server publishes the diagnostics of a file once the daemon has finished with it
+    TestUtil.getNonBlockingEdt(daemonFinished, 30000);
+    Assert.assertFalse(client().isDiagnosticsPublished());
+  }
+
+  @Test
+  public void workspaceDiagnosticsExcludeOpenFiles() {
+    final var openPath = LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java"));
+    final var otherUri = LspPath.fromLocalPath(getProjectPath().resolve("src/CodeActions.java")).toLspUri();
+    sendOpen(openPath);
+    final var openFile = openPath.findVirtualFile();
+    Assert.assertNotNull(openFile);
+    TestUtil.waitInEdtFor(() -> FileEditorManager.getInstance(server().getProject()).isFileOpen(openFile), 5000);
+    // a workspace request is answered with no files while indexing
+    IndexingTestUtil.waitUntilIndexesAreReady(server().getProject());
+
+    final var params = new WorkspaceDiagnosticParams(List.of());
+    final var report = TestUtil.getNonBlockingEdt(server().getWorkspaceService().diagnostic(params), 30000);
+
+    Assert.assertEquals(1, report.getItems().size());
+    Assert.assertTrue(report.getItems().get(0).isLeft());
+    final var fullReport = report.getItems().get(0).getLeft();
+    Assert.assertEquals(otherUri, fullReport.getUri());
+    Assert.assertNotNull(fullReport.getResultId());
+    Assert.assertFalse(fullReport.getItems().isEmpty());
+
+    params.setPreviousResultIds(List.of(new PreviousResultId(otherUri, fullReport.getResultId())));
+    final var secondReport = TestUtil.getNonBlockingEdt(server().getWorkspaceService().diagnostic(params), 30000);
+
+    Assert.assertEquals(1, secondReport.getItems().size());
+    Assert.assertTrue(secondReport.getItems().get(0).isRight());
+    final var unchangedReport = secondReport.getItems().get(0).getRight();
+    Assert.assertEquals(otherUri, unchangedReport.getUri());
+    Assert.assertEquals(fullReport.getResultId(), unchangedReport.getResultId());
+  }
+
+  @Test
+  public void workspaceDiagnosticsAreSentAsPartialResults() {
+    IndexingTestUtil.waitUntilIndexesAreReady(server().getProject());
+    final var params = new WorkspaceDiagnosticParams(List.of());
+    params.setPartialResultToken(Either.forLeft("partial"));
+    final var report = TestUtil.getNonBlockingEdt(server().getWorkspaceService().diagnostic(params), 30000);
+
+    Assert.assertTrue(report.getItems().isEmpty());
+    final var progress = client().getProgressNotifications();
+    Assert.assertTrue(progress.stream().allMatch(it -> it.getToken().equals(Either.forLeft("partial"))));
+    // every file is sent on its own as soon as it is analyzed
+    final var uris = progress.stream()
+        .map(it -> (WorkspaceDiagnosticReport) it.getValue().getRight())
+        .peek(it -> Assert.assertEquals(1, it.getItems().size()))
+        .map(it -> it.getItems().get(0).getLeft().getUri())
+        .sorted()
+        .toList();
+    Assert.assertEquals(List.of(
+        LspPath.fromLocalPath(getProjectPath().resolve("src/CodeActions.java")).toLspUri(),
+        LspPath.fromLocalPath(getProjectPath().resolve("src/Test.java")).toLspUri()), uris);
+  }
+
+  @NotNull
+  private CompletableFuture<Void> daemonFinished(@NotNull LspPath filePath) {
+    final var file = filePath.findVirtualFile();
+    Assert.assertNotNull(file);
+    final var finished = new CompletableFuture<Void>();
+    server().getProject().getMessageBus().connect(getTestRootDisposable())
+        .subscribe(DaemonCodeAnalyzer.DAEMON_EVENT_TOPIC, new DaemonCodeAnalyzer.DaemonListener() {
+          @Override
+          public void daemonFinished(@NotNull Collection<? extends FileEditor> fileEditors) {
+            if (fileEditors.stream().anyMatch(fileEditor -> file.equals(fileEditor.getFile()))) {
+              finished.complete(null);
+            }
+          }
+        });
+    return finished;
+  }
+
+  private void sendOpen(@NotNull LspPath filePath) {
+    //noinspection CodeBlock2Expr
+    final var didOpenTextDocumentParams = MiscUtil.with(new DidOpenTextDocumentParams(), params -> {
+      params.setTextDocument(MiscUtil.with(new TextDocumentItem(), item -> {
+        item.setUri(filePath.toLspUri());
+
+        item.setText(MiscUtil.makeThrowsUnchecked(() -> Files.readString(filePath.toPath())));
+        item.setVersion(1);
+      }));
+    });
+
+    server().getTextDocumentService().didOpen(didOpenTextDocumentParams);
+  }
+}
@@ -6,8 +6,10 @@ import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.MyLanguageClient;
 import org.rri.ideals.server.TestUtil;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MockLanguageClient implements MyLanguageClient {
@@ -31,6 +33,8 @@ public class MockLanguageClient implements MyLanguageClient {
 
   private final AtomicReference<CompletableFuture<PublishDiagnosticsParams>> diagnosticsFuture = new AtomicReference<>();
 
+  private final List<ProgressParams> progressNotifications = new CopyOnWriteArrayList<>();
+
   @Override
   public CompletableFuture<Void> createProgress(WorkDoneProgressCreateParams params) {
     return CompletableFuture.completedFuture(null);
@@ -38,6 +42,12 @@ public class MockLanguageClient implements MyLanguageClient {
 
   @Override
   public void notifyProgress(ProgressParams params) {
+    progressNotifications.add(params);
+  }
+
+  @NotNull
+  public List<ProgressParams> getProgressNotifications() {
+    return List.copyOf(progressNotifications);
   }
 
   @Override
@@ -50,6 +60,10 @@ public class MockLanguageClient implements MyLanguageClient {
     diagnosticsFuture.set(new CompletableFuture<>());
   }
 
+  public boolean isDiagnosticsPublished() {
+    return Optional.ofNullable(diagnosticsFuture.get()).map(CompletableFuture::isDone).orElse(false);
+  }
+
   @NotNull
   public PublishDiagnosticsParams waitAndGetDiagnosticsPublished() {
     return TestUtil.getNonBlockingEdt(
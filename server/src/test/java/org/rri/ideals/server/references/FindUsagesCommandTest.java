@@ -1,6 +1,12 @@
 package org.rri.ideals.server.references;
 
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiJavaFile;
+import org.eclipse.lsp4j.ProgressParams;
 import org.eclipse.lsp4j.ReferenceParams;
+import org.eclipse.lsp4j.WorkDoneProgressEnd;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Test;
@@ -9,9 +15,12 @@ import org.junit.runners.JUnit4;
 import org.rri.ideals.server.TestUtil;
 import org.rri.ideals.server.engine.TestEngine;
 import org.rri.ideals.server.generator.IdeaOffsetPositionConverter;
+import org.rri.ideals.server.mocks.MockLanguageClient;
 import org.rri.ideals.server.references.generators.FindUsagesTestGenerator;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class FindUsagesCommandTest extends ReferencesCommandTestBase<FindUsagesTestGenerator, ReferenceParams> {
@@ -25,6 +34,92 @@ public class FindUsagesCommandTest extends ReferencesCommandTestBase<FindUsagesT
     checkReferencesByDirectory("python/project-find-usages");
   }
 
+  @Test
+  public void testUsagesAreSentInBatches() {
+    final var progress = new ArrayList<ProgressParams>();
+    final var collector = new FindUsagesCommand.LocationCollector(recordingClient(progress),
+        Either.forLeft("partial"), Either.forLeft("work"), 10_000);
+
+    collector.begin();
+    for (var field : fields(450)) {
+      assertTrue(ReadAction.compute(() -> collector.add(field)));
+      collector.flushIfDue();
+    }
+    collector.end();
+
+    final var sent = new HashSet<Object>();
+    for (var batch : partialResults(progress)) {
+      assertTrue(batch.size() <= FindUsagesCommand.BATCH_SIZE);
+      sent.addAll(batch);
+    }
+    assertEquals(450, sent.size());
+    assertEmpty(collector.result());
+    assertEquals("Found 450 usages", endMessage(progress));
+  }
+
+  @Test
+  public void testUsagesBeyondLimitAreReportedAsMoreAvailable() {
+    final var progress = new ArrayList<ProgressParams>();
+    final var collector = new FindUsagesCommand.LocationCollector(recordingClient(progress),
+        Either.forLeft("partial"), Either.forLeft("work"), 100);
+
+    collector.begin();
+    var accepted = true;
+    for (var field : fields(450)) {
+      accepted = ReadAction.compute(() -> collector.add(field));
+      if (!accepted) {
+        break;
+      }
+      collector.flushIfDue();
+    }
+    collector.end();
+
+    assertFalse(accepted);
+    assertTrue(collector.isTruncated());
+    assertEquals(100, partialResults(progress).stream().mapToInt(List::size).sum());
+    assertEquals("Found the first 100 usages, more are available", endMessage(progress));
+  }
+
+  @NotNull
+  private List<PsiField> fields(int count) {
+    final var text = new StringBuilder("class Fields {\n");
+    for (var i = 0; i < count; i++) {
+      text.append("  int f").append(i).append(";\n");
+    }
+    text.append("}\n");
+    final var file = (PsiJavaFile) myFixture.configureByText("Fields.java", text.toString());
+    return List.of(file.getClasses()[0].getFields());
+  }
+
+  @NotNull
+  private static MockLanguageClient recordingClient(@NotNull List<ProgressParams> progress) {
+    return new MockLanguageClient() {
+      @Override
+      public void notifyProgress(ProgressParams params) {
+        progress.add(params);
+      }
+    };
+  }
+
+  @NotNull
+  private static List<List<?>> partialResults(@NotNull List<ProgressParams> progress) {
+    return progress.stream()
+        .filter(params -> params.getToken().getLeft().equals("partial"))
+        .<List<?>>map(params -> (List<?>) params.getValue().getRight())
+        .toList();
+  }
+
+  @Nullable
+  private static String endMessage(@NotNull List<ProgressParams> progress) {
+    return progress.stream()
+        .filter(params -> params.getToken().getLeft().equals("work"))
+        .map(params -> params.getValue().getLeft())
+        .filter(WorkDoneProgressEnd.class::isInstance)
+        .map(notification -> ((WorkDoneProgressEnd) notification).getMessage())
+        .findFirst()
+        .orElse(null);
+  }
+
   @Override
   protected @NotNull FindUsagesTestGenerator getGenerator(@NotNull TestEngine engine) {
     return new FindUsagesTestGenerator(engine, new IdeaOffsetPositionConverter(getProject()));
@@ -0,0 +1,99 @@
+package org.rri.ideals.server.references;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
+import org.eclipse.lsp4j.LocationLink;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspLightBasePlatformTestCase;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.TestUtil;
+
+import java.util.List;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class ReferencesCacheTest extends LspLightBasePlatformTestCase {
+  private static final Key<String> USAGES = Key.create("test.usages");
+
+  @Test
+  public void testResultIsKeptUntilFileWithResultChanges() {
+    final var target = (PsiJavaFile) myFixture.addFileToProject("Target.java", "class Target {}");
+    final var user = myFixture.addFileToProject("User.java", "class User { Target t; }");
+    final var other = myFixture.addFileToProject("Other.java", "class Other {}");
+    final var targetClass = target.getClasses()[0];
+    final var cache = getProject().getService(ReferencesCache.class);
+
+    cache.put(targetClass, USAGES, cache.startSearch(), Set.of(user.getVirtualFile()), "usages");
+    assertEquals("usages", cache.get(targetClass, USAGES));
+
+    setText(other, "class Other { int x; }");
+    assertEquals("usages", cache.get(targetClass, USAGES));
+
+    setText(user, "class User { Target t; int y; }");
+    assertNull(cache.get(targetClass, USAGES));
+  }
+
+  @Test
+  public void testResultIsDroppedWhenFileMentioningTargetChanges() {
+    final var target = (PsiJavaFile) myFixture.addFileToProject("Target.java", "class Target {}");
+    final var other = myFixture.addFileToProject("Other.java", "class Other {}");
+    final var targetClass = target.getClasses()[0];
+    final var cache = getProject().getService(ReferencesCache.class);
+
+    cache.put(targetClass, USAGES, cache.startSearch(), Set.of(), "usages");
+    setText(other, "class Other { Target t; }");
+    assertNull(cache.get(targetClass, USAGES));
+  }
+
+  @Test
+  public void testResultOfOutdatedSearchIsNotKept() {
+    final var target = (PsiJavaFile) myFixture.addFileToProject("Target.java", "class Target {}");
+    final var user = myFixture.addFileToProject("User.java", "class User { }");
+    final var targetClass = target.getClasses()[0];
+    final var cache = getProject().getService(ReferencesCache.class);
+
+    final var change = cache.startSearch();
+    setText(user, "class User { Target t; }");
+    cache.put(targetClass, USAGES, change, Set.of(), "usages");
+    assertNull(cache.get(targetClass, USAGES));
+  }
+
+  @Test
+  public void testImplementationsAreDroppedWhenSubtypeOfImplementationIsAdded() {
+    final var target = myFixture.addFileToProject("Target.java", "interface Target {}");
+    myFixture.addFileToProject("Impl.java", "class Impl implements Target {}");
+    final var other = myFixture.addFileToProject("Other.java", "class Other {}");
+    myFixture.openFileInEditor(target.getVirtualFile());
+
+    assertEquals(1, findImplementations(target).size());
+
+    // the new subtype doesn't mention the target
+    setText(other, "class Other { static class Derived extends Impl {} }");
+    assertEquals(2, findImplementations(target).size());
+  }
+
+  @NotNull
+  private List<? extends LocationLink> findImplementations(@NotNull PsiFile file) {
+    final var document = new TextDocumentIdentifier(LspPath.fromVirtualFile(file.getVirtualFile()).toLspUri());
+    final var future = new FindImplementationCommand().runAsync(getProject(), document, new Position(0, 11));
+    return TestUtil.getNonBlockingEdt(future, 50000).getRight();
+  }
+
+  private void setText(@NotNull PsiFile file, @NotNull String text) {
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      final var documentManager = PsiDocumentManager.getInstance(getProject());
+      final var document = documentManager.getDocument(file);
+      assertNotNull(document);
+      document.setText(text);
+      documentManager.commitDocument(document);
+    });
+  }
+}
@@ -1,9 +1,19 @@
 package org.rri.ideals.server.symbol;
 
+import com.intellij.ide.structureView.TreeBasedStructureViewBuilder;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.LanguageStructureViewBuilder;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.eclipse.lsp4j.DocumentSymbol;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SymbolInformation;
 import org.eclipse.lsp4j.SymbolKind;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
@@ -14,11 +24,14 @@ import org.junit.runners.JUnit4;
 import org.rri.ideals.server.LspLightBasePlatformTestCase;
 import org.rri.ideals.server.TestUtil;
 import org.rri.ideals.server.commands.ExecutorContext;
+import org.rri.ideals.server.util.TextUtil;
 
 import java.lang.String;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static org.eclipse.lsp4j.SymbolKind.Class;
 import static org.eclipse.lsp4j.SymbolKind.Enum;
@@ -202,19 +215,104 @@ public class DocumentSymbolServiceTest extends LspLightBasePlatformTestCase {
     checkDocumentSymbols(answers, virtualFile.findChild("DocumentSymbol.kt"));
   }
 
+  @Test
+  public void testDocumentSymbolsAreKeptUntilEdit() {
+    var virtualFile = myFixture.copyDirectoryToProject("java/project1/src", "");
+    virtualFile = virtualFile.findChild("org");
+    assertNotNull(virtualFile);
+    virtualFile = virtualFile.findChild("DocumentSymbol.java");
+    assertNotNull(virtualFile);
+    myFixture.openFileInEditor(virtualFile);
+
+    final var first = computeFileSymbol();
+    assertSame(first, computeFileSymbol());
+
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      myFixture.getEditor().getDocument().insertString(0, "\n");
+      PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+    });
+
+    final var afterEdit = computeFileSymbol();
+    assertNotSame(first, afterEdit);
+    assertEquals(newRange(0, 0, 29, 1), afterEdit.getRange());
+  }
+
+  @Test
+  public void testOutlineIsUpdatedWhereEdited() {
+    var virtualFile = myFixture.copyDirectoryToProject("java/project1/src", "");
+    virtualFile = virtualFile.findChild("org");
+    assertNotNull(virtualFile);
+    virtualFile = virtualFile.findChild("DocumentSymbol.java");
+    assertNotNull(virtualFile);
+    myFixture.openFileInEditor(virtualFile);
+    final var psiFile = myFixture.getFile();
+    final var document = myFixture.getEditor().getDocument();
+
+    final var before = withStructureView(psiFile, root -> OutlineTree.build(root, psiFile));
+    assertNotNull(before);
+
+    // a statement in the body of foo()
+    final var offset = document.getLineStartOffset(15);
+    final var text = "    int y = 0;\n";
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      document.insertString(offset, text);
+      PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+    });
+    final var region = new TextUtil.ChangedRegion(offset, offset, offset + text.length());
+
+    final var updated = withStructureView(psiFile, root -> OutlineTree.update(before, root, region, psiFile));
+    assertEquals(withStructureView(psiFile, root -> OutlineTree.build(root, psiFile)), updated);
+
+    final var membersBefore = before.children().get(0).children();
+    final var membersAfter = updated.children().get(0).children();
+    // the members before foo() are not converted again
+    for (var i = 0; i < 3; i++) {
+      assertSame(membersBefore.get(i), membersAfter.get(i));
+    }
+    assertEquals(newRange(12, 2, 20, 3), OutlineTree.toDocumentSymbol(membersAfter.get(3), document).getRange());
+    assertEquals(newRange(26, 2, 28, 3), OutlineTree.toDocumentSymbol(membersAfter.get(5), document).getRange());
+  }
+
+  @Nullable
+  private static OutlineTree.Node withStructureView(@NotNull PsiFile psiFile,
+                                                    @NotNull Function<TreeElement, OutlineTree.Node> action) {
+    final var builder = LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(psiFile);
+    assertInstanceOf(builder, TreeBasedStructureViewBuilder.class);
+    final var model = ((TreeBasedStructureViewBuilder) builder).createStructureViewModel(null);
+    try {
+      return ReadAction.compute(() -> action.apply(model.getRoot()));
+    } finally {
+      Disposer.dispose(model);
+    }
+  }
+
+  @NotNull
+  private DocumentSymbol computeFileSymbol() {
+    final var symbols = computeDocumentSymbols(myFixture.getFile());
+    assertEquals(1, symbols.size());
+    return symbols.get(0).getRight();
+  }
+
   private void checkDocumentSymbols(@NotNull List<@NotNull DocumentSymbol> answers, @Nullable VirtualFile virtualFile) {
     assertNotNull(virtualFile);
-    final var service = getProject().getService(DocumentSymbolService.class);
     final var psiFile = PsiManager.getInstance(getProject()).findFile(virtualFile);
     assertNotNull(psiFile);
     myFixture.openFileInEditor(virtualFile);
 
-    var actual = service.computeDocumentSymbols(
-            new ExecutorContext(psiFile, myFixture.getEditor(), new TestUtil.DumbCancelChecker()))
-        .stream().map(Either::getRight).toList();
+    var actual = computeDocumentSymbols(psiFile).stream().map(Either::getRight).toList();
     assertEquals(answers, actual);
   }
 
+  // the outline is built in non-blocking read actions, which can't be run synchronously on EDT
+  @SuppressWarnings("deprecation")
+  @NotNull
+  private List<Either<SymbolInformation, DocumentSymbol>> computeDocumentSymbols(@NotNull PsiFile psiFile) {
+    final var service = getProject().getService(DocumentSymbolService.class);
+    final var context = new ExecutorContext(psiFile, myFixture.getEditor(), new TestUtil.DumbCancelChecker());
+    return TestUtil.getNonBlockingEdt(CompletableFuture.supplyAsync(
+        () -> service.computeDocumentSymbols(context), AppExecutorUtil.getAppExecutorService()), 30000);
+  }
+
   @NotNull
   private static ArrayList<DocumentSymbol> arrayList(DocumentSymbol... symbols) {
     return new ArrayList<>(List.of(symbols));
@@ -88,8 +88,8 @@ public class WorkspaceSymbolServiceTest extends LspLightBasePlatformTestCase {
         location(otherClass1Uri, TestUtil.newRange(0, 0, 2, 0)));
 
     final var result = doSearch("Class1", getProject());
-    final var answer = List.of(workspaceSymbolFuncClass1, workspaceSymbolVarClass1,
-        otherClass1Class1, class1Class1, class1SrcFile, otherClass1SrcFile);
+    final var answer = List.of(class1Class1, otherClass1Class1,
+        workspaceSymbolVarClass1, workspaceSymbolFuncClass1, class1SrcFile, otherClass1SrcFile);
 
     assertEquals(answer, result);
   }
@@ -128,6 +128,24 @@ public class WorkspaceSymbolServiceTest extends LspLightBasePlatformTestCase {
     assertContainsElements(answer, result);
   }
 
+  @Test
+  public void testWorkspaceSymbolCamelHumps() {
+    final var virtualFile = myFixture.copyDirectoryToProject("java/project1/src", "");
+    final var orgVirtualFile = virtualFile.findChild("org");
+    assertNotNull(orgVirtualFile);
+    final var class2VirtualFile = orgVirtualFile.findChild("Class2.java");
+    assertNotNull(class2VirtualFile);
+    final var class2Uri = LspPath.fromVirtualFile(class2VirtualFile).toLspUri();
+
+    final var class2SomeSymbolForWorkspaceSymbol = workspaceSymbol("SomeSymbolForWorkspaceSymbol(int)", SymbolKind.Method,
+        location(class2Uri, TestUtil.newRange(3, 16, 3, 44)), "Class2");
+
+    // typing narrows down the names found for the previous pattern
+    assertContainsElements(doSearch("SoSy", getProject()), class2SomeSymbolForWorkspaceSymbol);
+    assertContainsElements(doSearch("SoSyFoWo", getProject()), class2SomeSymbolForWorkspaceSymbol);
+    assertDoesntContain(doSearch("SoSyFoWoX", getProject()), class2SomeSymbolForWorkspaceSymbol);
+  }
+
   @NotNull
   private static WorkspaceSymbol workspaceSymbol(@NotNull String name, @NotNull SymbolKind kind, @NotNull Location location) {
     return workspaceSymbol(name, kind, location, null);
@@ -0,0 +1,48 @@
+package org.rri.ideals.server.util;
+
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+  @Test
+  public void bucketsAreContiguous() {
+    for (int index = 1; index < 200; index++) {
+      assertEquals(LatencyHistogram.bucketUpperBound(index - 1) + 1, lowerBound(index));
+      assertEquals(index, LatencyHistogram.bucketIndex(lowerBound(index)));
+      assertEquals(index, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(index)));
+    }
+  }
+
+  @Test
+  public void percentilesStayWithinBucketPrecision() {
+    final var histogram = new LatencyHistogram();
+    for (int millis = 1; millis <= 100; millis++) {
+      histogram.record(millis * 1_000_000L);
+    }
+
+    final var summary = histogram.summary();
+    assertEquals(100, summary.count());
+    assertEquals(50.5, summary.meanMs(), 0.01);
+    assertWithinPrecision(50, summary.p50Ms());
+    assertWithinPrecision(90, summary.p90Ms());
+    assertWithinPrecision(99, summary.p99Ms());
+    assertEquals(100, summary.maxMs(), 0.01);
+  }
+
+  @Test
+  public void emptyHistogram() {
+    final var summary = new LatencyHistogram().summary();
+    assertEquals(0, summary.count());
+    assertEquals(0, summary.p99Ms());
+  }
+
+  private static long lowerBound(int index) {
+    return index == 0 ? 0 : LatencyHistogram.bucketUpperBound(index - 1) + 1;
+  }
+
+  private static void assertWithinPrecision(double expectedMs, double actualMs) {
+    assertTrue(actualMs >= expectedMs && actualMs <= expectedMs * 1.125, "expected ~" + expectedMs + " but was " + actualMs);
+  }
+}
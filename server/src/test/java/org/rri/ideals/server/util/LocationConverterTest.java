@@ -0,0 +1,98 @@
+package org.rri.ideals.server.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiIdentifier;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspLightBasePlatformTestCase;
+import org.rri.ideals.server.LspPath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class LocationConverterTest extends LspLightBasePlatformTestCase {
+  private static final Logger LOG = Logger.getInstance(LocationConverterTest.class);
+
+  @Test
+  public void testSameLocationsAsOneByOne() {
+    final var first = myFixture.addFileToProject("First.java", """
+        class First {
+          int a;
+
+          int foo(int b) {
+            return a + b;
+          }
+        }
+        """);
+    final var second = myFixture.addFileToProject("Second.java", "class Second { First f; }");
+
+    final var elements = new ArrayList<>(PsiTreeUtil.findChildrenOfType(second, PsiIdentifier.class));
+    elements.addAll(PsiTreeUtil.findChildrenOfType(first, PsiIdentifier.class));
+    elements.addAll(Arrays.asList(first.getChildren()));
+
+    final var converter = new LocationConverter();
+    elements.forEach(converter::add);
+    converter.add(null);
+    converter.add(first, null);
+
+    final var expected = new ArrayList<Location>();
+    elements.forEach(element -> expected.add(MiscUtil.psiElementToLocation(element)));
+    expected.add(null);
+    expected.add(null);
+    assertEquals(expected, converter.convert());
+  }
+
+  @Test
+  public void testManyUsages() {
+    final var files = new ArrayList<PsiFile>();
+    final var lines = 5000;
+    for (var i = 0; i < 10; i++) {
+      files.add(myFixture.addFileToProject("usages" + i + ".txt", "usage(); usage();\n".repeat(lines)));
+    }
+
+    // 50k usages in the order a search could report them
+    final var usages = new ArrayList<TextRange>();
+    for (var line = 0; line < lines; line++) {
+      final var lineStart = line * 18;
+      usages.add(new TextRange(lineStart, lineStart + 5));
+      usages.add(new TextRange(lineStart + 9, lineStart + 14));
+    }
+
+    var startTime = System.nanoTime();
+    final var expected = new ArrayList<Location>();
+    for (var file : files) {
+      for (var usage : usages) {
+        final var document = MiscUtil.getDocument(file);
+        assertNotNull(document);
+        expected.add(new Location(LspPath.fromVirtualFile(file.getVirtualFile()).toLspUri(),
+            MiscUtil.getRange(document, usage)));
+      }
+    }
+    final var oneByOneTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    final var converter = new LocationConverter();
+    for (var file : files) {
+      for (var usage : usages) {
+        converter.add(file, usage);
+      }
+    }
+    final List<Location> actual = converter.convert();
+    final var batchedTime = System.nanoTime() - startTime;
+
+    assertEquals(expected, actual);
+    assertEquals(new Range(new Position(lines - 1, 9), new Position(lines - 1, 14)), actual.get(actual.size() - 1).getRange());
+    LOG.info(String.format("Converted %d usages in %d ms one by one, in %d ms batched", actual.size(),
+        TimeUnit.NANOSECONDS.toMillis(oneByOneTime), TimeUnit.NANOSECONDS.toMillis(batchedTime)));
+  }
+}
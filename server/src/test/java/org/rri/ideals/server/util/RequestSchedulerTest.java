@@ -0,0 +1,146 @@
+package org.rri.ideals.server.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestSchedulerTest {
+  // the workers the scheduler has started, run by the test one at a time
+  private final ArrayDeque<Runnable> workers = new ArrayDeque<>();
+
+  @Test
+  public void startsQueuedTasksByPriorityThenInOrder() {
+    final var scheduler = new RequestScheduler(workers::add, 1, 0);
+    final var started = new ArrayList<String>();
+
+    scheduler.executor(RequestScheduler.Priority.BACKGROUND).execute(() -> started.add("background 1"));
+    scheduler.executor(RequestScheduler.Priority.NAVIGATIONAL).execute(() -> started.add("navigational"));
+    scheduler.executor(RequestScheduler.Priority.BACKGROUND).execute(() -> started.add("background 2"));
+    scheduler.executor(RequestScheduler.Priority.INTERACTIVE).execute(() -> started.add("interactive 1"));
+    scheduler.executor(RequestScheduler.Priority.INTERACTIVE).execute(() -> started.add("interactive 2"));
+    runWorkers();
+
+    assertEquals(List.of("interactive 1", "interactive 2", "navigational", "background 1", "background 2"), started);
+  }
+
+  @Test
+  public void supersededTaskIsNotStarted() {
+    final var scheduler = new RequestScheduler(workers::add, 1, 0);
+    final var executor = scheduler.executor(RequestScheduler.Priority.INTERACTIVE);
+    final var computed = new AtomicInteger();
+
+    final var first = CompletableFuture.supplyAsync(computed::incrementAndGet, executor);
+    scheduler.supersede("completion file:///Test.java", first);
+    final var second = CompletableFuture.supplyAsync(computed::incrementAndGet, executor);
+    scheduler.supersede("completion file:///Test.java", second);
+    final var other = CompletableFuture.supplyAsync(computed::incrementAndGet, executor);
+    scheduler.supersede("completion file:///Other.java", other);
+
+    assertTrue(first.isCancelled());
+    runWorkers();
+
+    assertEquals(2, computed.get());
+    assertFalse(second.isCompletedExceptionally());
+    assertFalse(other.isCompletedExceptionally());
+  }
+
+  @Test
+  public void runsAtMostMaxTasksAtOnce() {
+    final var scheduler = new RequestScheduler(workers::add, 2, 0);
+    final var executor = scheduler.executor(RequestScheduler.Priority.NAVIGATIONAL);
+    for (var i = 0; i < 5; i++) {
+      executor.execute(() -> {
+      });
+    }
+    assertEquals(2, workers.size());
+
+    // a finished task frees its slot for the next queued one
+    workers.poll().run();
+    assertEquals(2, workers.size());
+
+    runWorkers();
+    assertTrue(workers.isEmpty());
+  }
+
+  @Test
+  public void runsAtMostMaxTasksAtOnceInPool() throws InterruptedException {
+    final var pool = Executors.newCachedThreadPool();
+    try {
+      final var scheduler = new RequestScheduler(pool, 3, 0);
+      final var executor = scheduler.executor(RequestScheduler.Priority.NAVIGATIONAL);
+      final var running = new AtomicInteger();
+      final var maxRunning = new AtomicInteger();
+      final var done = new CountDownLatch(50);
+      for (var i = 0; i < 50; i++) {
+        executor.execute(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(2);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          done.countDown();
+        });
+      }
+
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertTrue(maxRunning.get() <= 3);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void interactiveTaskStartsWhileOtherSlotsAreBlocked() throws InterruptedException {
+    final var pool = Executors.newCachedThreadPool();
+    try {
+      final var scheduler = new RequestScheduler(pool, 3, 1);
+      final var release = new CountDownLatch(1);
+      final var blocked = new CountDownLatch(2);
+      final var finished = new CountDownLatch(3);
+      final var started = new AtomicInteger();
+      for (var priority : List.of(RequestScheduler.Priority.NAVIGATIONAL, RequestScheduler.Priority.BACKGROUND,
+          RequestScheduler.Priority.BACKGROUND)) {
+        scheduler.executor(priority).execute(() -> {
+          started.incrementAndGet();
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          finished.countDown();
+        });
+      }
+      assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+      final var interactiveDone = new CountDownLatch(1);
+      scheduler.executor(RequestScheduler.Priority.INTERACTIVE).execute(interactiveDone::countDown);
+
+      assertTrue(interactiveDone.await(10, TimeUnit.SECONDS));
+      // the third one waits for a slot that isn't reserved
+      assertEquals(2, started.get());
+
+      release.countDown();
+      assertTrue(finished.await(10, TimeUnit.SECONDS));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void runWorkers() {
+    while (!workers.isEmpty()) {
+      workers.poll().run();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.rri.ideals.server.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TopKCollectorTest {
+  @Test
+  public void keepsBestItemsOfParallelProducers() {
+    final var collector = new TopKCollector<Integer>(100, Comparator.reverseOrder());
+    final var values = new ArrayList<Integer>();
+    IntStream.range(0, 100_000).forEach(values::add);
+    Collections.shuffle(values);
+
+    values.parallelStream().forEach(collector::offer);
+
+    assertEquals(IntStream.range(99_900, 100_000).boxed().sorted(Comparator.reverseOrder()).toList(),
+        collector.toSortedList());
+  }
+
+  @Test
+  public void rejectsItemsNoBetterThanTheWorstKept() {
+    final var collector = new TopKCollector<Integer>(2, Comparator.reverseOrder());
+
+    assertTrue(collector.offer(5));
+    assertNull(collector.worstIfFull());
+    assertTrue(collector.offer(7));
+    assertTrue(collector.isFull());
+    assertEquals(Integer.valueOf(5), collector.worstIfFull());
+
+    assertFalse(collector.offer(5));
+    assertFalse(collector.offer(1));
+    assertTrue(collector.offer(6));
+    assertEquals(List.of(7, 6), collector.toSortedList());
+  }
+
+  @Test
+  public void emptyCollectorKeepsNothing() {
+    final var collector = new TopKCollector<Integer>(0, Comparator.naturalOrder());
+
+    assertFalse(collector.offer(1));
+    assertTrue(collector.isFull());
+    assertEquals(List.of(), collector.toSortedList());
+  }
+}